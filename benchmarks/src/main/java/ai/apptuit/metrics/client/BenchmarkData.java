@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Metric names, tags and points shaped like those of a service reporting JVM and request metrics:
+ * dotted names and tags of a few common keys, each with a realistic number of distinct values.
+ */
+final class BenchmarkData {
+
+  static final Map<String, String> GLOBAL_TAGS;
+
+  private static final String[] METRICS = {
+      "jvm.memory.heap.used", "jvm.memory.pools.G1-Old-Gen.usage", "jvm.gc.G1-Young-Generation.time",
+      "jvm.threads.runnable.count", "http.server.requests.duration", "http.server.requests.count",
+      "db.pool.connections.active", "cache.gets.hit", "kafka.consumer.records-lag-max",
+      "executor.queue.size", "process.cpu.usage", "jetty.responses.5xx.rate"
+  };
+
+  private static final String[] TAG_KEYS = {
+      "endpoint", "method", "status", "region", "az", "pod", "namespace", "version", "instance",
+      "cluster", "service", "team", "outcome", "exception", "uri", "client"
+  };
+
+  /**
+   * The number of distinct values of each of the {@link #TAG_KEYS}.
+   */
+  private static final int[] TAG_CARDINALITIES = {
+      200, 5, 12, 6, 18, 500, 20, 8, 1000, 4, 50, 10, 3, 15, 300, 25
+  };
+
+  static {
+    Map<String, String> globalTags = new HashMap<>();
+    globalTags.put("host", "ip-10-0-12-34");
+    globalTags.put("env", "production");
+    globalTags.put("service", "order-router");
+    GLOBAL_TAGS = Collections.unmodifiableMap(globalTags);
+  }
+
+  private BenchmarkData() {
+  }
+
+  static String metric(Random random) {
+    return metric(random.nextInt(METRICS.length));
+  }
+
+  static String metric(int id) {
+    return METRICS[id % METRICS.length];
+  }
+
+  /**
+   * @return the first tagCount tag keys, each with a random one of its values
+   */
+  static Map<String, String> tags(Random random, int tagCount) {
+    Map<String, String> tags = new HashMap<>();
+    for (int i = 0; i < tagCount; i++) {
+      tags.put(TAG_KEYS[i], TAG_KEYS[i] + "-" + random.nextInt(TAG_CARDINALITIES[i]));
+    }
+    return tags;
+  }
+
+  static List<DataPoint> dataPoints(Random random, int count, int tagCount) {
+    List<DataPoint> dataPoints = new ArrayList<>(count);
+    long epoch = 1500000000000L;
+    for (int i = 0; i < count; i++) {
+      Number value = (i & 1) == 0 ? (Number) (long) random.nextInt(100000) : (Number) (random.nextDouble() * 1000);
+      dataPoints.add(new DataPoint(metric(random), epoch + i, value, tags(random, tagCount)));
+    }
+    return dataPoints;
+  }
+
+  static DataPointBatch batch(List<DataPoint> dataPoints) {
+    SeriesRegistry registry = new SeriesRegistry();
+    DataPointBatch batch = new DataPointBatch(dataPoints.size());
+    for (DataPoint dp : dataPoints) {
+      DataPointBatch.Series series = registry.intern(dp.getMetric(), dp.getTags());
+      if (dp.getValue() instanceof Long) {
+        batch.add(series, dp.getTimestamp(), dp.getValue().longValue());
+      } else {
+        batch.add(series, dp.getTimestamp(), dp.getValue().doubleValue());
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Discards what is written to it, counting the bytes.
+   */
+  static final class CountingOutputStream extends OutputStream {
+
+    private long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+}
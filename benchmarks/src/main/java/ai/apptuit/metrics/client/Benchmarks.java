@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports the bytes allocated per operation and the
+ * collections they cause. Takes the usual JMH options, for example a regular expression to run only
+ * some benchmarks: {@code java -jar benchmarks.jar Sanitizer -prof stack}, or {@code -l} to list
+ * them.
+ */
+public class Benchmarks {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    Options options = new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .build();
+    Runner runner = new Runner(options);
+    if (commandLine.shouldHelp()) {
+      commandLine.showHelp();
+    } else if (commandLine.shouldList()) {
+      runner.list();
+    } else if (commandLine.shouldListWithParams()) {
+      runner.listWithParams(commandLine);
+    } else if (commandLine.shouldListProfilers()) {
+      commandLine.listProfilers();
+    } else if (commandLine.shouldListResultFormats()) {
+      commandLine.listResultFormats();
+    } else {
+      runner.run();
+    }
+  }
+}
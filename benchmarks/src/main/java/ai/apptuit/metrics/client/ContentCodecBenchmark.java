@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.ApptuitPutClient.DatapointsHttpEntity;
+import ai.apptuit.metrics.client.BenchmarkData.CountingOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing put request bodies of a few sizes with each codec and level. Scores are per body. The
+ * encoded size of the body is printed when a trial starts, to weigh the time against the ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentCodecBenchmark {
+
+  private static final int TAGS = 8;
+
+  @Param({"identity", "gzip-1", "gzip-6", "gzip-9", "deflate-1", "deflate-6"})
+  private String codecName;
+
+  @Param({"4096", "65536", "1048576"})
+  private int bodySize;
+
+  private ContentCodec codec;
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws IOException {
+    codec = codec(codecName);
+    body = body(bodySize);
+    CountingOutputStream out = new CountingOutputStream();
+    codec.encode(out, stream -> stream.write(body));
+    System.out.printf("%n%s encodes %d bytes to %d, a ratio of %.2f%n", codec, body.length, out.getCount(),
+        (double) body.length / out.getCount());
+  }
+
+  @Benchmark
+  public long encode() throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    codec.encode(out, stream -> stream.write(body));
+    return out.getCount();
+  }
+
+  private static ContentCodec codec(String name) {
+    if (name.equals("identity")) {
+      return ContentCodec.NONE;
+    }
+    int separator = name.indexOf('-');
+    int level = Integer.parseInt(name.substring(separator + 1));
+    switch (name.substring(0, separator)) {
+      case "gzip":
+        return ContentCodec.gzip(level);
+      case "deflate":
+        return ContentCodec.deflate(level);
+      default:
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+  }
+
+  /**
+   * @return the start of an uncompressed put request body, of the given size
+   */
+  private static byte[] body(int size) throws IOException {
+    Random random = new Random(42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+    while (out.size() < size) {
+      new DatapointsHttpEntity(BenchmarkData.dataPoints(random, 100, TAGS), BenchmarkData.GLOBAL_TAGS,
+          Sanitizer.DEFAULT_SANITIZER, ContentCodec.NONE).writeTo(out);
+    }
+    return Arrays.copyOf(out.toByteArray(), size);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.BenchmarkData.CountingOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a single point as JSON and as a text line. Scores are per point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPointBenchmark {
+
+  private static final int POINTS = 1024;
+
+  @Param({"2", "8", "16"})
+  private int tagCount;
+
+  private List<DataPoint> dataPoints;
+  private CountingOutputStream out;
+  private PrintStream printStream;
+  private Sanitizer sanitizer;
+
+  @Setup
+  public void setUp() {
+    dataPoints = BenchmarkData.dataPoints(new Random(42), POINTS, tagCount);
+    out = new CountingOutputStream();
+    printStream = new PrintStream(out);
+    sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public long toJson() {
+    for (DataPoint dp : dataPoints) {
+      dp.toJson(printStream, BenchmarkData.GLOBAL_TAGS, sanitizer);
+    }
+    return out.getCount();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public long toTextLine() {
+    for (DataPoint dp : dataPoints) {
+      dp.toTextLine(out, BenchmarkData.GLOBAL_TAGS, sanitizer);
+    }
+    return out.getCount();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.ApptuitPutClient.DatapointsHttpEntity;
+import ai.apptuit.metrics.client.BenchmarkData.CountingOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the body of a put request of a thousand points, from a collection of points and from a
+ * batch, with and without gzip. Scores are per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatapointsHttpEntityBenchmark {
+
+  private static final int POINTS = 1000;
+  private static final int TAGS = 8;
+
+  @Param({"false", "true"})
+  private boolean gzip;
+
+  private List<DataPoint> dataPoints;
+  private DataPointBatch batch;
+  private ContentCodec codec;
+  private Sanitizer sanitizer;
+  private EncodedGlobalTags globalTags;
+
+  @Setup
+  public void setUp() {
+    dataPoints = BenchmarkData.dataPoints(new Random(42), POINTS, TAGS);
+    batch = BenchmarkData.batch(dataPoints);
+    codec = gzip ? ContentCodec.GZIP : ContentCodec.NONE;
+    sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER);
+    globalTags = EncodedGlobalTags.encode(BenchmarkData.GLOBAL_TAGS, sanitizer, null);
+  }
+
+  @Benchmark
+  public long writeDataPoints() throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    new DatapointsHttpEntity(dataPoints, BenchmarkData.GLOBAL_TAGS, sanitizer, codec).writeTo(out);
+    return out.getCount();
+  }
+
+  /**
+   * The batch entity leaves compression to the client, so the codec is applied here the same way.
+   */
+  @Benchmark
+  public long writeBatch() throws IOException {
+    CountingOutputStream out = new CountingOutputStream();
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(batch, globalTags, sanitizer);
+    codec.encode(out, entity::writeTo);
+    return out.getCount();
+  }
+}
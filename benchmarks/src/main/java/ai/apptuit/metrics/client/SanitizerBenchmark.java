@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sanitizing a name with each sanitizer, and with a {@link Sanitizer.CachingSanitizer} in front of
+ * it at different hit rates. Names are drawn from a hot set that fits in the cache with the hit
+ * rate as probability, and otherwise from a cold set many times larger than the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizerBenchmark {
+
+  private static final int NAMES = 1 << 16;
+  private static final int HOT_NAMES = 1000;
+  private static final int CACHE_CAPACITY = 10000;
+
+  @Param({"PROMETHEUS", "APPTUIT"})
+  private String sanitizerName;
+
+  @Param({"0", "50", "90", "100"})
+  private int hitRate;
+
+  private Sanitizer sanitizer;
+  private Sanitizer cachingSanitizer;
+  private String[] names;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    sanitizer = "APPTUIT".equals(sanitizerName) ? Sanitizer.APPTUIT_SANITIZER : Sanitizer.PROMETHEUS_SANITIZER;
+    cachingSanitizer = new Sanitizer.CachingSanitizer(sanitizer, CACHE_CAPACITY);
+    Random random = new Random(42);
+    names = new String[NAMES];
+    for (int i = 0; i < NAMES; i++) {
+      int id = random.nextInt(100) < hitRate ? random.nextInt(HOT_NAMES) : HOT_NAMES + i;
+      names[i] = BenchmarkData.metric(id) + ".host-" + id + ".p99";
+    }
+    //warm the cache with the hot set
+    for (String name : names) {
+      cachingSanitizer.sanitizer(name);
+    }
+  }
+
+  @Benchmark
+  public String sanitize() {
+    return sanitizer.sanitizer(names[next++ & (NAMES - 1)]);
+  }
+
+  @Benchmark
+  public String cachingSanitize() {
+    return cachingSanitizer.sanitizer(names[next++ & (NAMES - 1)]);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding tag encoded names, with and without a decode cache, and deriving names from them the way
+ * the reporter does for each metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagEncodedMetricNameBenchmark {
+
+  private static final int NAMES = 1024;
+
+  @Param({"0", "4", "8"})
+  private int tagCount;
+
+  private String[] encodedNames;
+  private TagEncodedMetricName[] names;
+  private TagEncodedMetricName.DecodeCache decodeCache;
+  private Map<String, String> additionalTags;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    encodedNames = new String[NAMES];
+    names = new TagEncodedMetricName[NAMES];
+    decodeCache = new TagEncodedMetricName.DecodeCache();
+    for (int i = 0; i < NAMES; i++) {
+      TagEncodedMetricName name = TagEncodedMetricName.decode(BenchmarkData.metric(random))
+          .withTags(BenchmarkData.tags(random, tagCount));
+      encodedNames[i] = name.toString();
+      names[i] = name;
+      decodeCache.decode(encodedNames[i]);
+    }
+    additionalTags = Collections.singletonMap("window", "1m");
+  }
+
+  @Benchmark
+  public TagEncodedMetricName decode() {
+    return TagEncodedMetricName.decode(encodedNames[next++ & (NAMES - 1)]);
+  }
+
+  @Benchmark
+  public TagEncodedMetricName cachedDecode() {
+    return decodeCache.decode(encodedNames[next++ & (NAMES - 1)]);
+  }
+
+  @Benchmark
+  public TagEncodedMetricName withTag() {
+    return names[next++ & (NAMES - 1)].withTags("quantile", "0.99");
+  }
+
+  @Benchmark
+  public TagEncodedMetricName withTagsMap() {
+    return names[next++ & (NAMES - 1)].withTags(additionalTags);
+  }
+
+  @Benchmark
+  public TagEncodedMetricName submetric() {
+    return names[next++ & (NAMES - 1)].submetric("count");
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forwarding a thousand points to a UDP socket on the loopback interface, which a background thread
+ * drains. Scores are per forward, and include the system calls that send the packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XCollectorForwarderBenchmark {
+
+  private static final int POINTS = 1000;
+
+  @Param({"2", "8"})
+  private int tagCount;
+
+  private DatagramChannel server;
+  private Thread drainer;
+  private XCollectorForwarder forwarder;
+  private Sanitizer sanitizer;
+  private List<DataPoint> dataPoints;
+  private DataPointBatch batch;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+    drainer = new Thread(this::drain, "xcollector-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+    forwarder = new XCollectorForwarder(BenchmarkData.GLOBAL_TAGS, server.getLocalAddress());
+    sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER);
+    dataPoints = BenchmarkData.dataPoints(new Random(42), POINTS, tagCount);
+    batch = BenchmarkData.batch(dataPoints);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  private void drain() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    try {
+      while (true) {
+        buffer.clear();
+        server.receive(buffer);
+      }
+    } catch (IOException e) {
+      //closed by tearDown
+    }
+  }
+
+  @Benchmark
+  public long forwardDataPoints() {
+    forwarder.forward(dataPoints, sanitizer);
+    return forwarder.getPacketsSent();
+  }
+
+  @Benchmark
+  public long forwardBatch() {
+    forwarder.forward(batch, sanitizer);
+    return forwarder.getPacketsSent();
+  }
+}
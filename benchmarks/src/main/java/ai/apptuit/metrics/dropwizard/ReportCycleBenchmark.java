@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.dropwizard;
+
+import ai.apptuit.metrics.client.ApptuitPutClient;
+import ai.apptuit.metrics.client.DataPointBatch;
+import ai.apptuit.metrics.client.Sanitizer;
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.dropwizard.ApptuitReporter.BatchDataPointsSender;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures complete report cycles of an {@link ApptuitReporter} over a synthetic registry, sending
+ * to a stand-in for the put API on the loopback interface. For each cycle it prints the wall time,
+ * split into building the report and sending it, the peak heap, the bytes allocated per point by
+ * the reporting thread, and the bytes of request bodies received by the server.
+ *
+ * <p>Takes {@code key=value} arguments:
+ * <ul>
+ * <li>{@code metrics}: the number of metrics in the registry, 10000 by default</li>
+ * <li>{@code mix}: relative numbers of gauges, counters, histograms, meters and timers,
+ * {@code 30,30,10,20,10} by default</li>
+ * <li>{@code tagged}: the percentage of metrics with tag encoded names, 50 by default</li>
+ * <li>{@code cycles}: the number of measured report cycles, 10 by default</li>
+ * <li>{@code warmup}: the number of report cycles run before measuring, 3 by default</li>
+ * </ul>
+ *
+ * <p>The peak heap is the sum of the peaks of the heap memory pools during the cycle, which may
+ * have been reached at different times, and includes what the server allocates. Run with a fixed
+ * heap, for example {@code -Xms4g -Xmx4g}, so that cycles are comparable.
+ */
+public class ReportCycleBenchmark {
+
+  private static final String[] KINDS = {"gauges", "counters", "histograms", "meters", "timers"};
+  private static final int SAMPLES_PER_METRIC = 16;
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final TimedSender sender;
+  private final ApptuitReporter reporter;
+  private final HttpServer server;
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final int[] metricCounts = new int[KINDS.length];
+  private final List<Counter> counters = new ArrayList<>();
+  private final List<Histogram> histograms = new ArrayList<>();
+  private final List<Meter> meters = new ArrayList<>();
+  private final List<Timer> timers = new ArrayList<>();
+  private final Random random = new Random(42);
+
+  private ReportCycleBenchmark(int metrics, int[] mix, int taggedPercent) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] buffer = new byte[64 * 1024];
+      try (InputStream body = exchange.getRequestBody()) {
+        int read;
+        while ((read = body.read(buffer)) > 0) {
+          bytesReceived.addAndGet(read);
+        }
+      }
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+
+    URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/api/put");
+    Map<String, String> globalTags = new HashMap<>();
+    globalTags.put("host", "ip-10-0-12-34");
+    globalTags.put("env", "benchmark");
+    ApptuitPutClient client = new ApptuitPutClient("token", globalTags, url);
+    sender = new TimedSender(client, new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER));
+    reporter = new ApptuitReporter(registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, sender);
+    populate(metrics, mix, taggedPercent);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Expected key=value: " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    int metrics = Integer.parseInt(options.getOrDefault("metrics", "10000"));
+    int[] mix = Arrays.stream(options.getOrDefault("mix", "30,30,10,20,10").split(","))
+        .mapToInt(Integer::parseInt).toArray();
+    if (mix.length != KINDS.length) {
+      throw new IllegalArgumentException("mix needs " + KINDS.length + " numbers: " + String.join(",", KINDS));
+    }
+    int tagged = Integer.parseInt(options.getOrDefault("tagged", "50"));
+    int cycles = Integer.parseInt(options.getOrDefault("cycles", "10"));
+    int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+
+    ReportCycleBenchmark benchmark = new ReportCycleBenchmark(metrics, mix, tagged);
+    try {
+      benchmark.run(warmup, cycles);
+    } finally {
+      benchmark.close();
+    }
+  }
+
+  private void populate(int metrics, int[] mix, int taggedPercent) {
+    int total = Arrays.stream(mix).sum();
+    for (int i = 0; i < metrics; i++) {
+      int kind = kindOf(i % total, mix);
+      String name = name(i, KINDS[kind], random.nextInt(100) < taggedPercent);
+      int seed = i;
+      switch (kind) {
+        case 0:
+          registry.register(name, (Gauge<Double>) () -> seed * 1.5);
+          break;
+        case 1:
+          counters.add(registry.counter(name));
+          break;
+        case 2:
+          histograms.add(registry.histogram(name));
+          break;
+        case 3:
+          meters.add(registry.meter(name));
+          break;
+        default:
+          timers.add(registry.timer(name));
+          break;
+      }
+      metricCounts[kind]++;
+    }
+    for (int s = 0; s < SAMPLES_PER_METRIC; s++) {
+      update();
+    }
+  }
+
+  /**
+   * Records a sample in every metric. The reporter sends only the count of a histogram, meter or
+   * timer whose count did not change since the last report, so each cycle is preceded by an update
+   * to report the whole registry.
+   */
+  private void update() {
+    for (Counter counter : counters) {
+      counter.inc(1 + random.nextInt(1000));
+    }
+    for (Histogram histogram : histograms) {
+      histogram.update(random.nextInt(10000));
+    }
+    for (Meter meter : meters) {
+      meter.mark(1 + random.nextInt(1000));
+    }
+    for (Timer timer : timers) {
+      timer.update(random.nextInt(100_000), TimeUnit.MICROSECONDS);
+    }
+  }
+
+  private static int kindOf(int slot, int[] mix) {
+    for (int kind = 0; kind < mix.length; kind++) {
+      if (slot < mix[kind]) {
+        return kind;
+      }
+      slot -= mix[kind];
+    }
+    throw new IllegalStateException();
+  }
+
+  private static String name(int i, String kind, boolean tagged) {
+    String metric = "app." + kind + ".component" + (i % 100) + ".op";
+    if (!tagged) {
+      return metric + i;
+    }
+    return TagEncodedMetricName.decode(metric)
+        .withTags("endpoint", "endpoint-" + (i % 200), "status", String.valueOf(200 + i % 5),
+            "instance", "i-" + i)
+        .toString();
+  }
+
+  private void run(int warmup, int cycles) {
+    System.out.printf("metrics: %s%n", describeMix());
+    for (int i = 0; i < warmup; i++) {
+      cycle();
+    }
+    System.out.printf("%6s %10s %10s %10s %10s %10s %12s %12s%n", "cycle", "points", "wall ms",
+        "build ms", "send ms", "peak MB", "alloc B/pt", "wire B/pt");
+    double[] walls = new double[cycles];
+    for (int i = 0; i < cycles; i++) {
+      Cycle c = cycle();
+      walls[i] = c.wallNanos / 1e6;
+      System.out.printf("%6d %10d %10.1f %10.1f %10.1f %10.1f %12.1f %12.1f%n", i, c.points, walls[i],
+          (c.wallNanos - c.sendNanos) / 1e6, c.sendNanos / 1e6, c.peakHeapBytes / (1024.0 * 1024),
+          (double) c.allocatedBytes / c.points, (double) c.wireBytes / c.points);
+    }
+    Arrays.sort(walls);
+    System.out.printf("median wall ms: %.1f, send errors: %d%n", walls[cycles / 2], sender.errors);
+  }
+
+  private String describeMix() {
+    StringBuilder sb = new StringBuilder();
+    for (int kind = 0; kind < KINDS.length; kind++) {
+      sb.append(kind > 0 ? ", " : "").append(metricCounts[kind]).append(' ').append(KINDS[kind]);
+    }
+    return sb.toString();
+  }
+
+  private Cycle cycle() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    update();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    sender.reset();
+    long bytesBefore = bytesReceived.get();
+    long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+
+    reporter.report();
+
+    Cycle cycle = new Cycle();
+    cycle.wallNanos = System.nanoTime() - start;
+    cycle.allocatedBytes = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    cycle.sendNanos = sender.sendNanos;
+    cycle.points = Math.max(1, sender.points);
+    cycle.wireBytes = bytesReceived.get() - bytesBefore;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        cycle.peakHeapBytes += pool.getPeakUsage().getUsed();
+      }
+    }
+    return cycle;
+  }
+
+  private void close() {
+    reporter.close();
+    server.stop(0);
+  }
+
+  private static class Cycle {
+
+    private long wallNanos;
+    private long sendNanos;
+    private long points;
+    private long allocatedBytes;
+    private long wireBytes;
+    private long peakHeapBytes;
+  }
+
+  /**
+   * Sends with the put client as the reporter's API_PUT mode does, timing the sends.
+   */
+  private static class TimedSender implements BatchDataPointsSender {
+
+    private final ApptuitPutClient client;
+    private final Sanitizer sanitizer;
+    private long sendNanos;
+    private long points;
+    private long errors;
+
+    private TimedSender(ApptuitPutClient client, Sanitizer sanitizer) {
+      this.client = client;
+      this.sanitizer = sanitizer;
+    }
+
+    private void reset() {
+      sendNanos = 0;
+      points = 0;
+    }
+
+    @Override
+    public void send(DataPointBatch batch) {
+      long start = System.nanoTime();
+      try {
+        client.send(batch, sanitizer);
+      } catch (IOException e) {
+        errors++;
+      }
+      sendNanos += System.nanoTime() - start;
+      points += batch.size();
+    }
+  }
+}
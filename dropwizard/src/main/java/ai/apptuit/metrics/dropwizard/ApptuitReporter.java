@@ -17,6 +17,8 @@
 package ai.apptuit.metrics.dropwizard;
 
 import ai.apptuit.metrics.client.*;
+import ai.apptuit.metrics.client.AsyncApptuitPutClient.OverflowPolicy;
+import ai.apptuit.metrics.client.DataPointBatch.Series;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
@@ -26,11 +28,22 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -44,22 +57,80 @@ public class ApptuitReporter extends ScheduledReporter {
   private static final Logger LOGGER = Logger.getLogger(ApptuitReporter.class.getName());
   private static final boolean DEBUG = false;
   private static final ReportingMode DEFAULT_REPORTING_MODE = ReportingMode.API_PUT;
+  private static final String DEFAULT_RING_BUFFER_FILE = "apptuit-metrics.ring";
   private static final String REPORTER_NAME = "apptuit-reporter";
+  private static final int DECODE_CACHE_CAPACITY = 250_000;
 
   private final Timer buildReportTimer;
   private final Timer sendReportTimer;
   private final Counter metricsSentCounter;
   private final Counter pointsSentCounter;
+  private final Counter reportsSkippedCounter;
   private final DataPointsSender dataPointsSender;
-  final Map<TagEncodedMetricName, Long> lastReportedCount = new HashMap<>();
+  private DataPointBatch batch;
+  private DataPointBatch rolledUpBatch;
+  private volatile Rollup rollup;
+  private Set<String> globalTagKeys = Collections.emptySet();
+  private DiskSpool spool;
+  final TagEncodedMetricName.DecodeCache decodeCache = new TagEncodedMetricName.DecodeCache(DECODE_CACHE_CAPACITY);
+  final SeriesRegistry seriesRegistry = new SeriesRegistry();
+  final Map<Series, Long> lastReportedCount = new HashMap<>();
 
   protected ApptuitReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
                             TimeUnit durationUnit, Map<String, String> globalTags,
                             String key, URL apiUrl,
                             ReportingMode reportingMode, Sanitizer sanitizer,
                             SendErrorHandler errorHandler) {
+    this(registry, filter, rateUnit, durationUnit, globalTags, key, apiUrl, reportingMode, sanitizer,
+        errorHandler, 0, null);
+  }
+
+  protected ApptuitReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
+                            TimeUnit durationUnit, Map<String, String> globalTags,
+                            String key, URL apiUrl,
+                            ReportingMode reportingMode, Sanitizer sanitizer,
+                            SendErrorHandler errorHandler, int sendQueueCapacity,
+                            OverflowPolicy overflowPolicy) {
+    this(registry, filter, rateUnit, durationUnit, globalTags, key, apiUrl, reportingMode, sanitizer,
+        errorHandler, sendQueueCapacity, overflowPolicy, false);
+  }
+
+  /**
+   * @param reportSenderMetrics whether to add the request sizes and timings of the XCOLLECTOR and
+   *                            API_PUT senders to the registry, see {@link MetricRegistrySendListener}
+   */
+  protected ApptuitReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
+                            TimeUnit durationUnit, Map<String, String> globalTags,
+                            String key, URL apiUrl,
+                            ReportingMode reportingMode, Sanitizer sanitizer,
+                            SendErrorHandler errorHandler, int sendQueueCapacity,
+                            OverflowPolicy overflowPolicy, boolean reportSenderMetrics) {
+    this(registry, filter, rateUnit, durationUnit, globalTags, key, apiUrl, reportingMode, sanitizer,
+        errorHandler, sendQueueCapacity, overflowPolicy, reportSenderMetrics, null, 0);
+  }
+
+  /**
+   * @param spool                        the spool to save reports that fail with a transient error
+   *                                     to, or null. Applies to the API_PUT mode, and is closed when
+   *                                     the reporter is stopped
+   * @param spoolReplayRequestsPerSecond the rate at which spooled reports are replayed, see
+   *                                     {@link ApptuitPutClient#setSpool(DiskSpool, int)}
+   */
+  protected ApptuitReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
+                            TimeUnit durationUnit, Map<String, String> globalTags,
+                            String key, URL apiUrl,
+                            ReportingMode reportingMode, Sanitizer sanitizer,
+                            SendErrorHandler errorHandler, int sendQueueCapacity,
+                            OverflowPolicy overflowPolicy, boolean reportSenderMetrics,
+                            DiskSpool spool, int spoolReplayRequestsPerSecond) {
     this(registry, filter, rateUnit, durationUnit,
-        getDataPointSender(globalTags, key, apiUrl, reportingMode, sanitizer, errorHandler));
+        getDataPointSender(reportSenderMetrics ? registry : null, globalTags, key, apiUrl, reportingMode,
+            cachingSanitizer(sanitizer), errorHandler, sendQueueCapacity, overflowPolicy,
+            spool, spoolReplayRequestsPerSecond));
+    if (globalTags != null) {
+      this.globalTagKeys = new HashSet<>(globalTags.keySet());
+    }
+    this.spool = spool;
   }
 
   protected ApptuitReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
@@ -70,12 +141,20 @@ public class ApptuitReporter extends ScheduledReporter {
     this.sendReportTimer = registry.timer("apptuit.reporter.report.send");
     this.metricsSentCounter = registry.counter("apptuit.reporter.metrics.sent.count");
     this.pointsSentCounter = registry.counter("apptuit.reporter.points.sent.count");
+    this.reportsSkippedCounter = registry.counter("apptuit.reporter.reports.skipped.count");
     this.dataPointsSender = sender;
   }
 
-  private static DataPointsSender getDataPointSender(Map<String, String> globalTags, String key, URL apiUrl,
+  /**
+   * @param senderMetricsRegistry the registry to add the measurements of the sender to, or null
+   */
+  private static DataPointsSender getDataPointSender(MetricRegistry senderMetricsRegistry,
+                                                     Map<String, String> globalTags,
+                                                     String key, URL apiUrl,
                                                      ReportingMode reportingMode, Sanitizer sanitizer,
-                                                     SendErrorHandler errorHandler) {
+                                                     SendErrorHandler errorHandler, int sendQueueCapacity,
+                                                     OverflowPolicy overflowPolicy, DiskSpool spool,
+                                                     int spoolReplayRequestsPerSecond) {
     if (reportingMode == null) {
       reportingMode = DEFAULT_REPORTING_MODE;
     }
@@ -85,53 +164,117 @@ public class ApptuitReporter extends ScheduledReporter {
         return dataPoints -> {
         };
       case SYS_OUT:
-        return dataPoints -> {
-          dataPoints.forEach(dp -> dp.toTextLine(System.out, globalTags, sanitizer));
+        return (StreamingDataPointsSender) producer -> {
+          producer.produce(DataPoint.textLineWriter(System.out, globalTags, sanitizer));
         };
       case XCOLLECTOR:
         XCollectorForwarder forwarder = new XCollectorForwarder(globalTags);
-        return dataPoints -> forwarder.forward(dataPoints, sanitizer);
+        if (senderMetricsRegistry != null) {
+          forwarder.setSendListener(new MetricRegistrySendListener(senderMetricsRegistry));
+        }
+        return (BatchDataPointsSender) batch -> forwarder.forward(batch, sanitizer);
+      case TELNET:
+        SocketAddress address = apiUrl == null
+            ? new InetSocketAddress("127.0.0.1", TelnetForwarder.DEFAULT_PORT)
+            : new InetSocketAddress(apiUrl.getHost(), apiUrl.getPort() < 0 ? TelnetForwarder.DEFAULT_PORT : apiUrl.getPort());
+        return new TelnetSender(new TelnetForwarder(globalTags, address), sanitizer);
+      case RING_BUFFER:
+        Path ringFile = apiUrl != null && "file".equals(apiUrl.getProtocol())
+            ? Paths.get(apiUrl.getPath())
+            : Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_RING_BUFFER_FILE);
+        try {
+          return new RingBufferDataPointsSender(new RingBufferSender(globalTags, ringFile));
+        } catch (IOException e) {
+          throw new UncheckedIOException("Error opening ring buffer " + ringFile, e);
+        }
+      case PROMETHEUS_REMOTE_WRITE:
+        RemoteWriteClient remoteWriteClient = new RemoteWriteClient(key, globalTags, apiUrl);
+        return dataPoints -> {
+          try {
+            remoteWriteClient.send(dataPoints, sanitizer);
+          } catch (IOException e) {
+            handleSendError(e, errorHandler);
+          }
+        };
       case API_PUT:
       default:
         ApptuitPutClient putClient = new ApptuitPutClient(key, globalTags, apiUrl);
-        return dataPoints -> {
+        if (spool != null) {
+          putClient.setSpool(spool, spoolReplayRequestsPerSecond);
+        }
+        MetricRegistrySendListener sendListener = null;
+        if (senderMetricsRegistry != null) {
+          sendListener = new MetricRegistrySendListener(senderMetricsRegistry);
+          putClient.setSendListener(sendListener);
+        }
+        if (sendQueueCapacity > 0) {
+          AsyncApptuitPutClient asyncClient = new AsyncApptuitPutClient(putClient, sendQueueCapacity,
+              AsyncApptuitPutClient.DEFAULT_SENDER_THREADS,
+              overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_OLDEST,
+              AsyncApptuitPutClient.DEFAULT_BLOCK_TIMEOUT_MS);
+          if (sendListener != null) {
+            sendListener.monitor(asyncClient);
+          }
+          return new AsyncPutSender(asyncClient, sanitizer, errorHandler);
+        }
+        return (BatchDataPointsSender) batch -> {
           try {
-            putClient.send(dataPoints, sanitizer);
+            putClient.send(batch, sanitizer);
           } catch (IOException e) {
-            if (errorHandler != null) {
-              errorHandler.handle(e);
-            } else {
-              LOGGER.log(Level.SEVERE, "Error Sending Datapoints", e);
-            }
+            handleSendError(e, errorHandler);
           }
         };
     }
   }
 
+  /**
+   * Wraps the sanitizer in a cache that lives as long as the reporter, so that names are sanitized
+   * once rather than in every report.
+   */
+  private static Sanitizer cachingSanitizer(Sanitizer sanitizer) {
+    if (sanitizer == null || sanitizer == Sanitizer.NO_OP_SANITIZER
+        || sanitizer instanceof Sanitizer.CachingSanitizer) {
+      return sanitizer;
+    }
+    return new Sanitizer.CachingSanitizer(sanitizer);
+  }
+
+  private static void handleSendError(IOException e, SendErrorHandler errorHandler) {
+    if (errorHandler != null) {
+      errorHandler.handle(e);
+    } else {
+      LOGGER.log(Level.SEVERE, "Error Sending Datapoints", e);
+    }
+  }
+
   @Override
   public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
                      SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
                      SortedMap<String, Timer> timers) {
 
-    DataPointCollector collector = new DataPointCollector(System.currentTimeMillis() / 1000, this);
+    if (dataPointsSender.isBackpressured()) {
+      reportsSkippedCounter.inc();
+      LOGGER.warning("Sender is backpressured, skipping report.");
+      return;
+    }
+
+    long epoch = System.currentTimeMillis() / 1000;
+    int numMetrics = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+    if (dataPointsSender instanceof BatchDataPointsSender || rollup != null) {
+      batchReport(epoch, numMetrics, gauges, counters, histograms, meters, timers);
+      return;
+    }
+    if (dataPointsSender instanceof StreamingDataPointsSender) {
+      streamReport(epoch, numMetrics, gauges, counters, histograms, meters, timers);
+      return;
+    }
+
+    DataPointCollector collector = new DataPointCollector(epoch, this);
     try {
       long t0 = System.currentTimeMillis();
-      debug("################");
-      debug(">>>>>>>> Guages <<<<<<<<<");
-      gauges.forEach(collector::collectGauge);
-      debug(">>>>>>>> Counters <<<<<<<<<");
-      counters.forEach(collector::collectCounter);
-      debug(">>>>>>>> Histograms <<<<<<<<<");
-      histograms.forEach(collector::collectHistogram);
-      debug(">>>>>>>> Meters <<<<<<<<<");
-      meters.forEach(collector::collectMeter);
-      debug(">>>>>>>> Timers <<<<<<<<<");
-      timers.forEach(collector::collectTimer);
-
-      debug("################");
-      int numMetrics = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+      collect(collector, gauges, counters, histograms, meters, timers);
       metricsSentCounter.inc(numMetrics);
-      pointsSentCounter.inc(collector.getDataPoints().size());
+      pointsSentCounter.inc(collector.getPointCount());
 
       buildReportTimer.update(System.currentTimeMillis() - t0, TimeUnit.MILLISECONDS);
     } catch (Exception | Error e) {
@@ -150,6 +293,131 @@ public class ApptuitReporter extends ScheduledReporter {
 
   }
 
+  /**
+   * Aggregates the points of each report as the rules say before they are sent. Rolling up needs a
+   * whole report, so reports are collected into a batch even if the sender could stream them.
+   *
+   * <p>Only the tags of the metrics can be dropped. The global tags are added by the sender after
+   * the points are rolled up, so rules that drop one of them are rejected.
+   *
+   * @param rules the rules, or an empty collection to send points as they are collected
+   * @throws IllegalArgumentException if a rule drops a global tag
+   */
+  public void setRollupRules(Collection<RollupRule> rules) {
+    for (RollupRule rule : rules) {
+      for (String tag : rule.getDroppedTags()) {
+        if (globalTagKeys.contains(tag)) {
+          throw new IllegalArgumentException("Rollup rule [" + rule + "] drops the global tag [" + tag
+              + "], global tags are added after the rollup");
+        }
+      }
+    }
+    this.rollup = rules.isEmpty() ? null : new Rollup(rules);
+  }
+
+  /**
+   * Collects the report into a batch that is reused by every report, so that the points of a report
+   * are stored in columns that are allocated once.
+   */
+  private void batchReport(long epoch, int numMetrics, SortedMap<String, Gauge> gauges,
+                           SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+                           SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+    if (batch == null) {
+      batch = new DataPointBatch();
+    }
+    Rollup rollup = this.rollup;
+    DataPointBatch report = batch;
+    try {
+      DataPointCollector collector = new DataPointCollector(epoch, this, batch);
+      try {
+        long t0 = System.currentTimeMillis();
+        collect(collector, gauges, counters, histograms, meters, timers);
+        if (rollup != null) {
+          if (rolledUpBatch == null) {
+            rolledUpBatch = new DataPointBatch();
+          }
+          report = rollup.apply(batch, rolledUpBatch);
+        }
+        metricsSentCounter.inc(numMetrics);
+        pointsSentCounter.inc(report.size());
+
+        buildReportTimer.update(System.currentTimeMillis() - t0, TimeUnit.MILLISECONDS);
+      } catch (Exception | Error e) {
+        LOGGER.log(Level.SEVERE, "Error building metrics.", e);
+      }
+
+      try {
+        long t1 = System.currentTimeMillis();
+        send(report);
+        sendReportTimer.update(System.currentTimeMillis() - t1, TimeUnit.MILLISECONDS);
+      } catch (Exception | Error e) {
+        LOGGER.log(Level.SEVERE, "Error reporting metrics.", e);
+      }
+    } finally {
+      batch.clear();
+      if (rolledUpBatch != null) {
+        rolledUpBatch.clear();
+      }
+    }
+  }
+
+  private void send(DataPointBatch report) {
+    if (dataPointsSender instanceof BatchDataPointsSender) {
+      ((BatchDataPointsSender) dataPointsSender).send(report);
+    } else if (dataPointsSender instanceof StreamingDataPointsSender) {
+      ((StreamingDataPointsSender) dataPointsSender).send(report::forEach);
+    } else {
+      List<DataPoint> dataPoints = new ArrayList<>(report.size());
+      report.forEach(dataPoints::add);
+      dataPointsSender.send(dataPoints);
+    }
+  }
+
+  /**
+   * Sends points while they are being collected, so a report is never held in memory. Building and
+   * sending overlap, the whole report is timed as a send.
+   */
+  private void streamReport(long epoch, int numMetrics, SortedMap<String, Gauge> gauges,
+                            SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+                            SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+    try {
+      long t1 = System.currentTimeMillis();
+      ((StreamingDataPointsSender) dataPointsSender).send(sink -> {
+        DataPointCollector collector = new DataPointCollector(epoch, this, sink);
+        try {
+          collect(collector, gauges, counters, histograms, meters, timers);
+        } catch (UncheckedIOException e) {
+          //failure writing to the sender, not in building the report
+          throw e;
+        } catch (Exception | Error e) {
+          LOGGER.log(Level.SEVERE, "Error building metrics.", e);
+        }
+        pointsSentCounter.inc(collector.getPointCount());
+      });
+      metricsSentCounter.inc(numMetrics);
+      sendReportTimer.update(System.currentTimeMillis() - t1, TimeUnit.MILLISECONDS);
+    } catch (Exception | Error e) {
+      LOGGER.log(Level.SEVERE, "Error reporting metrics.", e);
+    }
+  }
+
+  private void collect(DataPointCollector collector, SortedMap<String, Gauge> gauges,
+                       SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+                       SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+    debug("################");
+    debug(">>>>>>>> Guages <<<<<<<<<");
+    gauges.forEach(collector::collectGauge);
+    debug(">>>>>>>> Counters <<<<<<<<<");
+    counters.forEach(collector::collectCounter);
+    debug(">>>>>>>> Histograms <<<<<<<<<");
+    histograms.forEach(collector::collectHistogram);
+    debug(">>>>>>>> Meters <<<<<<<<<");
+    meters.forEach(collector::collectMeter);
+    debug(">>>>>>>> Timers <<<<<<<<<");
+    timers.forEach(collector::collectTimer);
+    debug("################");
+  }
+
   @Override
   protected double convertDuration(double duration) {
     return super.convertDuration(duration);
@@ -166,13 +434,166 @@ public class ApptuitReporter extends ScheduledReporter {
     }
   }
 
+  @Override
+  public void stop() {
+    try {
+      super.stop();
+    } finally {
+      if (dataPointsSender instanceof Closeable) {
+        try {
+          ((Closeable) dataPointsSender).close();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Error closing sender.", e);
+        }
+      }
+      if (spool != null) {
+        spool.close();
+      }
+    }
+  }
+
+  /**
+   * TELNET sends OpenTSDB {@code put} lines over TCP, to the host and port of the API URL if one is
+   * set, or else to port 4242 on the local host.
+   *
+   * <p>RING_BUFFER writes the points to a ring buffer in a memory mapped file, for a sidecar process
+   * to drain with a {@link RingBufferReader} and send. The file is the path of the API URL if it is
+   * a {@code file:} URL, or else {@code apptuit-metrics.ring} in the temp directory. The sanitizer is
+   * not applied, the sidecar's client sanitizes the points it sends.
+   */
   public enum ReportingMode {
-    NO_OP, SYS_OUT, XCOLLECTOR, API_PUT
+    NO_OP, SYS_OUT, XCOLLECTOR, API_PUT, PROMETHEUS_REMOTE_WRITE, TELNET, RING_BUFFER
   }
 
   public interface DataPointsSender {
 
     void send(Collection<DataPoint> dataPoints);
+
+    /**
+     * @return true if the sender has fallen behind, and reports should be skipped until it catches
+     *     up rather than dropped
+     */
+    default boolean isBackpressured() {
+      return false;
+    }
+  }
+
+  /**
+   * Sender that can send a batch of points stored in columns. Reports are collected into a batch
+   * that is reused across reports, which must not be held on to once the send returns.
+   */
+  public interface BatchDataPointsSender extends DataPointsSender {
+
+    void send(DataPointBatch batch);
+
+    @Override
+    default void send(Collection<DataPoint> dataPoints) {
+      DataPointBatch batch = new DataPointBatch(Math.max(1, dataPoints.size()));
+      for (DataPoint dp : dataPoints) {
+        Series series = new Series(dp.getMetric(), dp.getTags());
+        Number value = dp.getValue();
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+          batch.add(series, dp.getTimestamp(), value.longValue());
+        } else {
+          batch.add(series, dp.getTimestamp(), value.doubleValue());
+        }
+      }
+      send(batch);
+    }
+  }
+
+  /**
+   * Sender that can send points as they are produced, without the report being collected first.
+   */
+  public interface StreamingDataPointsSender extends DataPointsSender {
+
+    void send(DataPointProducer producer);
+
+    @Override
+    default void send(Collection<DataPoint> dataPoints) {
+      send(dataPoints::forEach);
+    }
+  }
+
+
+  private static class TelnetSender implements BatchDataPointsSender, Closeable {
+
+    private final TelnetForwarder forwarder;
+    private final Sanitizer sanitizer;
+
+    private TelnetSender(TelnetForwarder forwarder, Sanitizer sanitizer) {
+      this.forwarder = forwarder;
+      this.sanitizer = sanitizer;
+    }
+
+    @Override
+    public void send(DataPointBatch batch) {
+      forwarder.forward(batch, sanitizer);
+    }
+
+    @Override
+    public boolean isBackpressured() {
+      return forwarder.isBackpressured();
+    }
+
+    @Override
+    public void close() {
+      forwarder.close();
+    }
+  }
+
+  /**
+   * Queues reports to be sent in the background. When the queue is full, the overflow policy of the
+   * client decides which report is dropped. Closing the sender waits for the queued reports to be sent.
+   */
+  private static class AsyncPutSender implements DataPointsSender, Closeable {
+
+    private final AsyncApptuitPutClient client;
+    private final Sanitizer sanitizer;
+    private final SendErrorHandler errorHandler;
+
+    private AsyncPutSender(AsyncApptuitPutClient client, Sanitizer sanitizer, SendErrorHandler errorHandler) {
+      this.client = client;
+      this.sanitizer = sanitizer;
+      this.errorHandler = errorHandler;
+    }
+
+    @Override
+    public void send(Collection<DataPoint> dataPoints) {
+      client.send(dataPoints, sanitizer).whenComplete((v, t) -> {
+        if (t != null) {
+          handleSendError(t instanceof IOException ? (IOException) t : new IOException(t), errorHandler);
+        }
+      });
+    }
+
+    @Override
+    public void close() {
+      client.close();
+    }
   }
 
+  private static class RingBufferDataPointsSender implements BatchDataPointsSender, Closeable {
+
+    private final RingBufferSender sender;
+
+    private RingBufferDataPointsSender(RingBufferSender sender) {
+      this.sender = sender;
+    }
+
+    @Override
+    public void send(DataPointBatch batch) {
+      sender.send(batch);
+    }
+
+    @Override
+    public void send(Collection<DataPoint> dataPoints) {
+      sender.send(dataPoints);
+    }
+
+    @Override
+    public void close() throws IOException {
+      sender.close();
+    }
+  }
 }
@@ -16,16 +16,24 @@
 
 package ai.apptuit.metrics.dropwizard;
 
+import ai.apptuit.metrics.client.AsyncApptuitPutClient.OverflowPolicy;
+import ai.apptuit.metrics.client.DiskSpool;
+import ai.apptuit.metrics.client.RollupRule;
 import ai.apptuit.metrics.client.Sanitizer;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +49,10 @@ public class ApptuitReporterFactory {
   private static final RegexStringMatchingStrategy REGEX_STRING_MATCHING_STRATEGY =
       new RegexStringMatchingStrategy();
 
+  private static final long DEFAULT_SPOOL_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final int DEFAULT_SPOOL_REPLAY_REQUESTS_PER_SECOND = 10;
+
   private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
 
   private TimeUnit rateUnit = TimeUnit.SECONDS;
@@ -63,6 +75,20 @@ public class ApptuitReporterFactory {
 
   private SendErrorHandler errorHandler;
 
+  private int sendQueueCapacity = 0;
+
+  private boolean reportSenderMetrics = false;
+
+  private OverflowPolicy sendOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+  private List<RollupRule> rollupRules = new ArrayList<>();
+
+  private String spoolDirectory;
+
+  private long spoolMaxBytes = DEFAULT_SPOOL_MAX_BYTES;
+
+  private int spoolReplayRequestsPerSecond = DEFAULT_SPOOL_REPLAY_REQUESTS_PER_SECOND;
+
   public void addGlobalTag(String tag, String value) {
     globalTags.put(tag, value);
   }
@@ -135,6 +161,89 @@ public class ApptuitReporterFactory {
     this.errorHandler = errorHandler;
   }
 
+  public int getSendQueueCapacity() {
+    return sendQueueCapacity;
+  }
+
+  /**
+   * Number of reports that can be queued for sending in the background. When zero (the default),
+   * reports are sent synchronously on the reporter thread. When the queue is full, the
+   * {@link #setSendOverflowPolicy(OverflowPolicy) overflow policy} decides which report is dropped.
+   * Stopping the reporter waits for the queued reports to be sent.
+   */
+  public void setSendQueueCapacity(int sendQueueCapacity) {
+    this.sendQueueCapacity = sendQueueCapacity;
+  }
+
+  public boolean getReportSenderMetrics() {
+    return reportSenderMetrics;
+  }
+
+  /**
+   * Whether to report the request sizes, timings and errors of the sender, and the size of its
+   * queue, as metrics named {@code apptuit.sender.*} in the reported registry. Off by default, as
+   * it adds more than a hundred series. Applies to the XCOLLECTOR and API_PUT modes.
+   */
+  public void setReportSenderMetrics(boolean reportSenderMetrics) {
+    this.reportSenderMetrics = reportSenderMetrics;
+  }
+
+  public OverflowPolicy getSendOverflowPolicy() {
+    return sendOverflowPolicy;
+  }
+
+  public void setSendOverflowPolicy(OverflowPolicy sendOverflowPolicy) {
+    this.sendOverflowPolicy = sendOverflowPolicy;
+  }
+
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  /**
+   * Directory to spool reports that fail with a transient error to, so that they are sent once the
+   * API is reachable again, even after a restart. Not set by default, so that such reports are lost.
+   * Applies to the API_PUT mode.
+   */
+  public void setSpoolDirectory(String spoolDirectory) {
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  public long getSpoolMaxBytes() {
+    return spoolMaxBytes;
+  }
+
+  /**
+   * Disk space the spool may use, 64 MB by default. The oldest reports are dropped beyond it.
+   */
+  public void setSpoolMaxBytes(long spoolMaxBytes) {
+    this.spoolMaxBytes = spoolMaxBytes;
+  }
+
+  public int getSpoolReplayRequestsPerSecond() {
+    return spoolReplayRequestsPerSecond;
+  }
+
+  /**
+   * Maximum rate at which spooled reports are sent once the API is reachable again.
+   */
+  public void setSpoolReplayRequestsPerSecond(int spoolReplayRequestsPerSecond) {
+    this.spoolReplayRequestsPerSecond = spoolReplayRequestsPerSecond;
+  }
+
+  public List<RollupRule> getRollupRules() {
+    return rollupRules;
+  }
+
+  /**
+   * Adds a rule to aggregate the points of matching metrics across tags before they are sent. The
+   * rule can only drop the tags of the metrics, {@link #build(MetricRegistry)} rejects rules that drop
+   * a global tag.
+   */
+  public void addRollupRule(RollupRule rule) {
+    rollupRules.add(rule);
+  }
+
   public MetricFilter getFilter() {
     final StringMatchingStrategy stringMatchingStrategy = getUseRegexFilters()
         ? REGEX_STRING_MATCHING_STRATEGY : DEFAULT_STRING_MATCHING_STRATEGY;
@@ -148,13 +257,38 @@ public class ApptuitReporterFactory {
   }
 
   public ScheduledReporter build(MetricRegistry registry) {
+    URL url;
     try {
-      return new ApptuitReporter(registry, getFilter(), getRateUnit(), getDurationUnit(),
-          globalTags, apiKey, apiUrl != null ? new URL(apiUrl) : null,
-          reportingMode, sanitizer, errorHandler);
+      url = apiUrl != null ? new URL(apiUrl) : null;
     } catch (MalformedURLException e) {
       throw new IllegalArgumentException(e);
     }
+    DiskSpool spool = openSpool();
+    try {
+      ApptuitReporter reporter = new ApptuitReporter(registry, getFilter(), getRateUnit(), getDurationUnit(),
+          globalTags, apiKey, url, reportingMode, sanitizer, errorHandler, sendQueueCapacity, sendOverflowPolicy,
+          reportSenderMetrics, spool, spoolReplayRequestsPerSecond);
+      if (!rollupRules.isEmpty()) {
+        reporter.setRollupRules(rollupRules);
+      }
+      return reporter;
+    } catch (RuntimeException e) {
+      if (spool != null) {
+        spool.close();
+      }
+      throw e;
+    }
+  }
+
+  private DiskSpool openSpool() {
+    if (spoolDirectory == null) {
+      return null;
+    }
+    try {
+      return new DiskSpool(new File(spoolDirectory), spoolMaxBytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error opening spool " + spoolDirectory, e);
+    }
   }
 
   private interface StringMatchingStrategy {
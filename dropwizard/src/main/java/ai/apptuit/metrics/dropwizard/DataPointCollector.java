@@ -17,13 +17,17 @@
 package ai.apptuit.metrics.dropwizard;
 
 import ai.apptuit.metrics.client.DataPoint;
+import ai.apptuit.metrics.client.DataPointBatch;
+import ai.apptuit.metrics.client.DataPointBatch.Series;
 import ai.apptuit.metrics.client.TagEncodedMetricName;
 import com.codahale.metrics.*;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * @author Rajiv Shivane
@@ -36,11 +40,40 @@ public class DataPointCollector {
   private final long epoch;
   private final ApptuitReporter apptuitReporter;
   private final List<DataPoint> dataPoints;
+  private final Consumer<DataPoint> sink;
+  private final DataPointBatch batch;
+  private int pointCount = 0;
 
   DataPointCollector(long epoch, ApptuitReporter apptuitReporter) {
     this.epoch = epoch;
     this.apptuitReporter = apptuitReporter;
     this.dataPoints = new LinkedList<>();
+    this.sink = dataPoints::add;
+    this.batch = null;
+  }
+
+  /**
+   * Creates a collector that passes each point to the sink as soon as it is collected, instead of
+   * holding on to it. {@link #getDataPoints()} is always empty for such a collector.
+   */
+  DataPointCollector(long epoch, ApptuitReporter apptuitReporter, Consumer<DataPoint> sink) {
+    this.epoch = epoch;
+    this.apptuitReporter = apptuitReporter;
+    this.dataPoints = Collections.emptyList();
+    this.sink = sink;
+    this.batch = null;
+  }
+
+  /**
+   * Creates a collector that adds the points to the batch, with their values as primitives.
+   * {@link #getDataPoints()} is always empty for such a collector.
+   */
+  DataPointCollector(long epoch, ApptuitReporter apptuitReporter, DataPointBatch batch) {
+    this.epoch = epoch;
+    this.apptuitReporter = apptuitReporter;
+    this.dataPoints = Collections.emptyList();
+    this.sink = null;
+    this.batch = batch;
   }
 
   public void collectGauge(String name, Gauge gauge) {
@@ -64,17 +97,17 @@ public class DataPointCollector {
 
 
   public void collectHistogram(String name, Histogram histogram) {
-    TagEncodedMetricName rootMetric = TagEncodedMetricName.decode(name);
+    TagEncodedMetricName rootMetric = apptuitReporter.decodeCache.decode(name);
     collectCounting(rootMetric.submetric("count"), histogram, () -> reportSnapshot(rootMetric, histogram.getSnapshot()));
   }
 
   public void collectMeter(String name, Meter meter) {
-    TagEncodedMetricName rootMetric = TagEncodedMetricName.decode(name);
+    TagEncodedMetricName rootMetric = apptuitReporter.decodeCache.decode(name);
     collectCounting(rootMetric.submetric("total"), meter, () -> reportMetered(rootMetric, meter));
   }
 
   public void collectTimer(String name, final Timer timer) {
-    TagEncodedMetricName rootMetric = TagEncodedMetricName.decode(name);
+    TagEncodedMetricName rootMetric = apptuitReporter.decodeCache.decode(name);
     collectCounting(rootMetric.submetric("count"), timer, () -> {
       reportSnapshot(rootMetric.submetric("duration"), timer.getSnapshot());
       reportMetered(rootMetric, timer)
@@ -86,11 +119,21 @@ public class DataPointCollector {
     return dataPoints;
   }
 
+  public int getPointCount() {
+    return pointCount;
+  }
+
   private <T extends Counting> void collectCounting(TagEncodedMetricName countMetric, T metric,
                                                     Runnable reportSubmetrics) {
     long currentCount = metric.getCount();
-    addDataPoint(countMetric, currentCount);
-    Long lastCount = apptuitReporter.lastReportedCount.put(countMetric, currentCount);
+    Series countSeries = intern(countMetric);
+    if (batch == null) {
+      addDataPoint(countMetric, (Number) currentCount);
+    } else {
+      batch.add(countSeries, epoch, currentCount);
+      pointCount++;
+    }
+    Long lastCount = apptuitReporter.lastReportedCount.put(countSeries, currentCount);
     if (lastCount == null || lastCount != currentCount) {
       reportSubmetrics.run();
     }
@@ -110,12 +153,10 @@ public class DataPointCollector {
   }
 
   private void reportMetered(TagEncodedMetricName metric, Metered meter) {
-    addDataPoint(metric.submetric(RATE_SUBMETRIC).withTags(WINDOW_TAG_NAME, "1m"),
-        convertRate(meter.getOneMinuteRate()));
-    addDataPoint(metric.submetric(RATE_SUBMETRIC).withTags(WINDOW_TAG_NAME, "5m"),
-        convertRate(meter.getFiveMinuteRate()));
-    addDataPoint(metric.submetric(RATE_SUBMETRIC).withTags(WINDOW_TAG_NAME, "15m"),
-        convertRate(meter.getFifteenMinuteRate()));
+    TagEncodedMetricName rate = metric.submetric(RATE_SUBMETRIC);
+    addDataPoint(rate.withTags(WINDOW_TAG_NAME, "1m"), convertRate(meter.getOneMinuteRate()));
+    addDataPoint(rate.withTags(WINDOW_TAG_NAME, "5m"), convertRate(meter.getFiveMinuteRate()));
+    addDataPoint(rate.withTags(WINDOW_TAG_NAME, "15m"), convertRate(meter.getFifteenMinuteRate()));
     //addDataPoint(rootMetric.submetric("rate", "window", "all"), epoch, meter.getMeanRate());
   }
 
@@ -128,11 +169,33 @@ public class DataPointCollector {
   }
 
   private void addDataPoint(String name, double value) {
-    addDataPoint(TagEncodedMetricName.decode(name), value);
+    addDataPoint(apptuitReporter.decodeCache.decode(name), value);
   }
 
   private void addDataPoint(String name, long value) {
-    addDataPoint(TagEncodedMetricName.decode(name), value);
+    addDataPoint(apptuitReporter.decodeCache.decode(name), value);
+  }
+
+  private void addDataPoint(TagEncodedMetricName name, long value) {
+    if (batch == null) {
+      addDataPoint(name, (Number) value);
+      return;
+    }
+    batch.add(intern(name), epoch, value);
+    pointCount++;
+  }
+
+  private void addDataPoint(TagEncodedMetricName name, double value) {
+    if (batch == null) {
+      addDataPoint(name, (Number) value);
+      return;
+    }
+    batch.add(intern(name), epoch, value);
+    pointCount++;
+  }
+
+  private Series intern(TagEncodedMetricName name) {
+    return apptuitReporter.seriesRegistry.intern(name.getMetricName(), name.getTags());
   }
 
   private void addDataPoint(TagEncodedMetricName name, Number value) {
@@ -144,7 +207,8 @@ public class DataPointCollector {
     */
 
     DataPoint dataPoint = new DataPoint(name.getMetricName(), epoch, value, name.getTags());
-    dataPoints.add(dataPoint);
+    sink.accept(dataPoint);
+    pointCount++;
     ApptuitReporter.debug(dataPoint);
   }
 }
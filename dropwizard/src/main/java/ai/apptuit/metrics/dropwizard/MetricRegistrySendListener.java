@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.dropwizard;
+
+import ai.apptuit.metrics.client.AsyncApptuitPutClient;
+import ai.apptuit.metrics.client.RequestStats;
+import ai.apptuit.metrics.client.SendListener;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes the measurements of the send clients to a {@link MetricRegistry}, so that they are
+ * reported along with the application metrics.
+ */
+public class MetricRegistrySendListener implements SendListener {
+
+  static final String PREFIX = "apptuit.sender.";
+
+  private final MetricRegistry registry;
+  private final Histogram rawBytes;
+  private final Histogram compressedBytes;
+  private final LongAdder totalRawBytes = new LongAdder();
+  private final LongAdder totalCompressedBytes = new LongAdder();
+  private final Timer encodeTimer;
+  private final Timer compressTimer;
+  private final Timer connectTimer;
+  private final Timer uploadTimer;
+  private final Timer serverWaitTimer;
+  private final Timer requestTimer;
+  private final Counter retries;
+  private final Counter errors;
+  private final Meter packets;
+  private final Histogram packetBytes;
+  private final Timer packetSendTimer;
+  private final Counter packetErrors;
+
+  public MetricRegistrySendListener(MetricRegistry registry) {
+    this.registry = registry;
+    this.rawBytes = registry.histogram(PREFIX + "request.bytes.raw");
+    this.compressedBytes = registry.histogram(PREFIX + "request.bytes.compressed");
+    this.encodeTimer = registry.timer(PREFIX + "request.encode");
+    this.compressTimer = registry.timer(PREFIX + "request.compress");
+    this.connectTimer = registry.timer(PREFIX + "request.connect");
+    this.uploadTimer = registry.timer(PREFIX + "request.upload");
+    this.serverWaitTimer = registry.timer(PREFIX + "request.server.wait");
+    this.requestTimer = registry.timer(PREFIX + "request.total");
+    this.retries = registry.counter(PREFIX + "request.retries");
+    this.errors = registry.counter(PREFIX + "request.errors");
+    this.packets = registry.meter(PREFIX + "packets");
+    this.packetBytes = registry.histogram(PREFIX + "packet.bytes");
+    this.packetSendTimer = registry.timer(PREFIX + "packet.send");
+    this.packetErrors = registry.counter(PREFIX + "packet.errors");
+    register(PREFIX + "request.compression.ratio", new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(totalRawBytes.sum(), totalCompressedBytes.sum());
+      }
+    });
+  }
+
+  /**
+   * Publishes the queue size and the number of dropped batches of the client.
+   */
+  public void monitor(AsyncApptuitPutClient client) {
+    register(PREFIX + "queue.size", (Gauge<Integer>) client::getQueueSize);
+    register(PREFIX + "queue.dropped", (Gauge<Long>) client::getDroppedBatches);
+  }
+
+  @Override
+  public void onRequest(RequestStats stats) {
+    int status = stats.getStatus();
+    if (status < 0) {
+      errors.inc();
+    } else {
+      registry.counter(PREFIX + "responses." + (status / 100) + "xx").inc();
+    }
+    if (stats.getRetryCount() > 0) {
+      retries.inc();
+    }
+    rawBytes.update(stats.getRawBytes());
+    compressedBytes.update(stats.getCompressedBytes());
+    totalRawBytes.add(stats.getRawBytes());
+    totalCompressedBytes.add(stats.getCompressedBytes());
+    encodeTimer.update(stats.getEncodeNanos(), TimeUnit.NANOSECONDS);
+    compressTimer.update(stats.getCompressNanos(), TimeUnit.NANOSECONDS);
+    connectTimer.update(stats.getConnectNanos(), TimeUnit.NANOSECONDS);
+    uploadTimer.update(stats.getUploadNanos(), TimeUnit.NANOSECONDS);
+    serverWaitTimer.update(stats.getServerWaitNanos(), TimeUnit.NANOSECONDS);
+    requestTimer.update(stats.getTotalNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void onPacket(int bytes, long sendNanos, boolean success) {
+    packets.mark();
+    packetBytes.update(bytes);
+    packetSendTimer.update(sendNanos, TimeUnit.NANOSECONDS);
+    if (!success) {
+      packetErrors.inc();
+    }
+  }
+
+  /**
+   * Registers the gauge, replacing the gauge of an earlier listener on the same registry.
+   */
+  private <T extends Metric> void register(String name, T metric) {
+    registry.remove(name);
+    registry.register(name, metric);
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.dropwizard;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ai.apptuit.metrics.client.AsyncApptuitPutClient.OverflowPolicy;
+import ai.apptuit.metrics.client.DataPoint;
+import ai.apptuit.metrics.client.MockIngestServer;
+import ai.apptuit.metrics.client.ResponseStatusException;
+import ai.apptuit.metrics.client.RollupRule;
+import ai.apptuit.metrics.client.RollupRule.Aggregation;
+import ai.apptuit.metrics.client.Sanitizer;
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.dropwizard.ApptuitReporter.ReportingMode;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the reporter against a {@link MockIngestServer}, through the put client and the network
+ * stack, to see how reports fare when the server fails or falls behind.
+ */
+public class ApptuitReporterIngestTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private MockIngestServer server;
+  private MetricRegistry registry;
+  private List<IOException> errors;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new MockIngestServer().setRecordPoints(true);
+    registry = new MetricRegistry();
+    errors = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testReportsResumeAfterServerErrors() throws Exception {
+    registry.counter("test.counter").inc(5);
+    server.failNext(1, 503);
+    try (ScheduledReporter reporter = createFactory().build(registry)) {
+      reporter.report();
+      assertEquals(1, errors.size());
+      assertEquals(503, ((ResponseStatusException) errors.get(0)).getResponseStatus());
+      assertEquals(0, server.getPointsAccepted());
+
+      server.closeNext(1);
+      reporter.report();
+      assertEquals(2, errors.size());
+      assertEquals(0, server.getPointsAccepted());
+
+      registry.counter("test.counter").inc();
+      reporter.report();
+      assertEquals(2, errors.size());
+      assertEquals(3, server.getRequestCount());
+      assertEquals(6L, lastValue("test.counter"));
+    }
+  }
+
+  @Test
+  public void testFullSendQueueDropsNewestReports() throws Exception {
+    server.setLatencyMillis(500);
+    ApptuitReporterFactory factory = createFactory();
+    factory.setSendQueueCapacity(1);
+    factory.setSendOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+    try (ScheduledReporter reporter = factory.build(registry)) {
+      for (int i = 1; i <= 3; i++) {
+        registry.counter("test.counter").inc();
+        reporter.report();
+      }
+    }
+    assertEquals(0, registry.counter("apptuit.reporter.reports.skipped.count").getCount());
+    assertTrue(!errors.isEmpty());
+    for (IOException error : errors) {
+      assertTrue(error.getCause() instanceof RejectedExecutionException);
+    }
+    assertTrue(lastValue("test.counter").longValue() < 3);
+  }
+
+  @Test
+  public void testFullSendQueueDropsOldestReports() throws Exception {
+    server.setLatencyMillis(500);
+    ApptuitReporterFactory factory = createFactory();
+    factory.setSendQueueCapacity(1);
+    factory.setSendOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    try (ScheduledReporter reporter = factory.build(registry)) {
+      for (int i = 1; i <= 3; i++) {
+        registry.counter("test.counter").inc();
+        reporter.report();
+      }
+    }
+    assertTrue(!errors.isEmpty());
+    assertEquals(3L, lastValue("test.counter"));
+  }
+
+  @Test
+  public void testStopFlushesSendQueue() throws Exception {
+    server.setLatencyMillis(200);
+    ApptuitReporterFactory factory = createFactory();
+    factory.setSendQueueCapacity(4);
+    ScheduledReporter reporter = factory.build(registry);
+    for (int i = 1; i <= 3; i++) {
+      registry.counter("test.counter").inc();
+      reporter.report();
+    }
+    assertTrue(server.getRequestCount() < 3);
+
+    reporter.stop();
+    assertEquals(3, server.getResponseCount(200));
+    assertEquals(3L, lastValue("test.counter"));
+    assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  public void testSenderMetricsAreOptIn() throws Exception {
+    try (ScheduledReporter reporter = createFactory().build(registry)) {
+      reporter.report();
+    }
+    assertTrue(registry.getNames().stream().noneMatch(name -> name.startsWith("apptuit.sender.")));
+
+    ApptuitReporterFactory factory = createFactory();
+    factory.setReportSenderMetrics(true);
+    try (ScheduledReporter reporter = factory.build(registry)) {
+      reporter.report();
+    }
+    assertEquals(1, registry.timer("apptuit.sender.request.total").getCount());
+  }
+
+  @Test
+  public void testSpoolReplaysFailedReports() throws Exception {
+    server.failNext(1, 503);
+    ApptuitReporterFactory factory = createFactory();
+    factory.setSpoolDirectory(tempFolder.newFolder().getPath());
+    try (ScheduledReporter reporter = factory.build(registry)) {
+      registry.counter("test.counter").inc();
+      reporter.report();
+      assertEquals(0, server.getPointsAccepted());
+
+      registry.counter("test.counter").inc();
+      reporter.report();
+      await().atMost(5, TimeUnit.SECONDS).until(() -> server.getResponseCount(200) == 2);
+    }
+    assertEquals(Collections.emptyList(), errors);
+    Set<Number> values = new HashSet<>();
+    for (DataPoint point : server.getPoints()) {
+      if (point.getMetric().equals("test.counter")) {
+        values.add(point.getValue());
+      }
+    }
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), values);
+  }
+
+  @Test
+  public void testRollupDropsMetricTags() throws Exception {
+    registry.counter(TagEncodedMetricName.decode("test.requests").withTags("host", "a").toString()).inc(2);
+    registry.counter(TagEncodedMetricName.decode("test.requests").withTags("host", "b").toString()).inc(3);
+    ApptuitReporterFactory factory = createFactory();
+    factory.addGlobalTag("env", "prod");
+    factory.addRollupRule(RollupRule.forMetric("test.requests", Aggregation.SUM, "host"));
+    try (ScheduledReporter reporter = factory.build(registry)) {
+      reporter.report();
+    }
+
+    List<DataPoint> points = new ArrayList<>();
+    for (DataPoint point : server.getPoints()) {
+      if (point.getMetric().equals("test.requests")) {
+        points.add(point);
+      }
+    }
+    assertEquals(1, points.size());
+    assertEquals(5L, points.get(0).getValue());
+    assertEquals(Collections.singletonMap("env", "prod"), points.get(0).getTags());
+    assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRollupRejectsGlobalTags() throws Exception {
+    ApptuitReporterFactory factory = createFactory();
+    factory.addGlobalTag("env", "prod");
+    factory.addRollupRule(RollupRule.forMetric("test.requests", Aggregation.SUM, "env"));
+    factory.build(registry);
+  }
+
+  private ApptuitReporterFactory createFactory() throws IOException {
+    ApptuitReporterFactory factory = new ApptuitReporterFactory();
+    factory.setApiKey("token");
+    factory.setApiUrl(server.getPutUrl().toString());
+    factory.setReportingMode(ReportingMode.API_PUT);
+    factory.setSanitizer(Sanitizer.NO_OP_SANITIZER);
+    factory.setErrorHandler(errors::add);
+    return factory;
+  }
+
+  private Number lastValue(String metric) {
+    Number value = null;
+    for (DataPoint point : server.getPoints()) {
+      if (point.getMetric().equals(metric)) {
+        value = point.getValue();
+      }
+    }
+    assertTrue("No points for " + metric, value != null);
+    return value;
+  }
+}
@@ -16,6 +16,7 @@
 package ai.apptuit.metrics.dropwizard;
 
 import ai.apptuit.metrics.client.DataPoint;
+import ai.apptuit.metrics.client.DataPointProducer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -40,6 +41,12 @@ public abstract class BaseMockClient {
     listeners.forEach(listener -> listener.onData(dataPoints));
   }
 
+  protected void notifyListeners(DataPointProducer producer) {
+    List<DataPoint> dataPoints = new ArrayList<>();
+    producer.produce(dataPoints::add);
+    notifyListeners(dataPoints);
+  }
+
   public static interface DataListener {
 
     public void onData(Collection<DataPoint> dataPoints);
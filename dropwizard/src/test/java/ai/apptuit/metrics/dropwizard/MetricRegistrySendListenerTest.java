@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.dropwizard;
+
+import static ai.apptuit.metrics.dropwizard.MetricRegistrySendListener.PREFIX;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ai.apptuit.metrics.client.RequestStats;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricRegistrySendListenerTest {
+
+  private MetricRegistry registry;
+  private MetricRegistrySendListener listener;
+
+  @Before
+  public void setUp() throws Exception {
+    registry = new MetricRegistry();
+    listener = new MetricRegistrySendListener(registry);
+  }
+
+  @Test
+  public void testOnRequest() throws Exception {
+    listener.onRequest(stats(200, 0, 4000, 1000));
+    listener.onRequest(stats(200, 1, 2000, 1000));
+    listener.onRequest(stats(400, 0, 3000, 1000));
+    listener.onRequest(stats(-1, 0, 3000, 1000));
+
+    assertEquals(2, registry.counter(PREFIX + "responses.2xx").getCount());
+    assertEquals(1, registry.counter(PREFIX + "responses.4xx").getCount());
+    assertEquals(1, registry.counter(PREFIX + "request.errors").getCount());
+    assertEquals(1, registry.counter(PREFIX + "request.retries").getCount());
+    assertEquals(4, registry.histogram(PREFIX + "request.bytes.raw").getCount());
+    assertEquals(4, registry.timer(PREFIX + "request.upload").getCount());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(5),
+        registry.timer(PREFIX + "request.total").getSnapshot().getMax());
+    assertEquals(3.0, (Double) registry.getGauges().get(PREFIX + "request.compression.ratio").getValue(), 0);
+  }
+
+  @Test
+  public void testOnPacket() throws Exception {
+    listener.onPacket(8192, 1000, true);
+    listener.onPacket(100, 1000, false);
+
+    assertEquals(2, registry.meter(PREFIX + "packets").getCount());
+    assertEquals(8192, registry.histogram(PREFIX + "packet.bytes").getSnapshot().getMax());
+    assertEquals(1, registry.counter(PREFIX + "packet.errors").getCount());
+  }
+
+  @Test
+  public void testListenersShareRegistry() throws Exception {
+    MetricRegistrySendListener other = new MetricRegistrySendListener(registry);
+    other.onRequest(stats(200, 0, 2000, 1000));
+    listener.onRequest(stats(200, 0, 4000, 1000));
+    assertEquals(2, registry.counter(PREFIX + "responses.2xx").getCount());
+    assertEquals(2.0, (Double) registry.getGauges().get(PREFIX + "request.compression.ratio").getValue(), 0);
+  }
+
+  private static RequestStats stats(int status, int retryCount, long rawBytes, long compressedBytes) {
+    RequestStats stats = mock(RequestStats.class);
+    when(stats.getStatus()).thenReturn(status);
+    when(stats.getRetryCount()).thenReturn(retryCount);
+    when(stats.getRawBytes()).thenReturn(rawBytes);
+    when(stats.getCompressedBytes()).thenReturn(compressedBytes);
+    when(stats.getUploadNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(1));
+    when(stats.getTotalNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(5));
+    return stats;
+  }
+}
@@ -23,7 +23,10 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 
 import ai.apptuit.metrics.client.ApptuitPutClient;
 import ai.apptuit.metrics.client.DataPoint;
+import ai.apptuit.metrics.client.DataPointBatch;
+import ai.apptuit.metrics.client.DataPointProducer;
 import ai.apptuit.metrics.client.Sanitizer;
+import java.util.Collection;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 
@@ -48,10 +51,23 @@ public class MockApptuitPutClient extends BaseMockClient {
 
     doAnswer((Answer<Void>) invocation -> {
       Object[] args = invocation.getArguments();
-      getInstance().notifyListeners(getDataPoints(args));
+      Collection<DataPoint> dataPoints = getDataPoints(args);
+      getInstance().notifyListeners(dataPoints);
       return null;
     }).when(mockPutClient).send(anyCollectionOf(DataPoint.class), any(Sanitizer.class));
 
+    doAnswer((Answer<Void>) invocation -> {
+      Object[] args = invocation.getArguments();
+      getInstance().notifyListeners((DataPointProducer) args[0]);
+      return null;
+    }).when(mockPutClient).send(any(DataPointProducer.class), any(Sanitizer.class));
+
+    doAnswer((Answer<Void>) invocation -> {
+      Object[] args = invocation.getArguments();
+      getInstance().notifyListeners(((DataPointBatch) args[0])::forEach);
+      return null;
+    }).when(mockPutClient).send(any(DataPointBatch.class), any(Sanitizer.class));
+
   }
 
   @SuppressWarnings("unchecked")
@@ -22,8 +22,11 @@ import static org.mockito.Mockito.doAnswer;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
 import ai.apptuit.metrics.client.DataPoint;
+import ai.apptuit.metrics.client.DataPointBatch;
+import ai.apptuit.metrics.client.DataPointProducer;
 import ai.apptuit.metrics.client.Sanitizer;
 import ai.apptuit.metrics.client.XCollectorForwarder;
+import java.util.Collection;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 
@@ -49,9 +52,22 @@ public class MockXCollectorForwarder extends BaseMockClient {
 
     doAnswer((Answer<Void>) invocation -> {
       Object[] args = invocation.getArguments();
-      getInstance().notifyListeners(getDataPoints(args));
+      Collection<DataPoint> dataPoints = getDataPoints(args);
+      getInstance().notifyListeners(dataPoints);
       return null;
     }).when(forwarder).forward(anyCollectionOf(DataPoint.class), any(Sanitizer.class));
+
+    doAnswer((Answer<Void>) invocation -> {
+      Object[] args = invocation.getArguments();
+      getInstance().notifyListeners((DataPointProducer) args[0]);
+      return null;
+    }).when(forwarder).forward(any(DataPointProducer.class), any(Sanitizer.class));
+
+    doAnswer((Answer<Void>) invocation -> {
+      Object[] args = invocation.getArguments();
+      getInstance().notifyListeners(((DataPointBatch) args[0])::forEach);
+      return null;
+    }).when(forwarder).forward(any(DataPointBatch.class), any(Sanitizer.class));
   }
 
   @SuppressWarnings("unchecked")
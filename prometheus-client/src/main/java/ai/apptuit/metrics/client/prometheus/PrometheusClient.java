@@ -112,10 +112,13 @@ public class PrometheusClient {
 
     InputStream inputStr = (responseCode < HttpURLConnection.HTTP_BAD_REQUEST) ? urlConnection.getInputStream()
         : urlConnection.getErrorStream();
-    try (BufferedReader in = new BufferedReader(new InputStreamReader(inputStr, StandardCharsets.UTF_8))) {
-      String line;
-      while ((line = in.readLine()) != null) {
-        sb.append(line);
+    if (inputStr != null) {
+      //Read to the end and close, so the connection goes back to the keep-alive pool
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(inputStr, StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          sb.append(line);
+        }
       }
     }
 
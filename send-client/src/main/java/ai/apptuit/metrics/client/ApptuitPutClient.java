@@ -18,13 +18,19 @@ package ai.apptuit.metrics.client;
 
 import static ai.apptuit.metrics.client.Sanitizer.DEFAULT_SANITIZER;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -32,9 +38,20 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
+import java.util.stream.Stream;
 
 
 /**
@@ -45,17 +62,24 @@ public class ApptuitPutClient {
   private static final Logger LOGGER = Logger.getLogger(ApptuitPutClient.class.getName());
 
   private static final boolean DEBUG = false;
-  private static final boolean GZIP = true;
 
   private static final int BUFFER_SIZE = 8 * 1024;
   private static final int MAX_RESP_LENGTH = 5 * 1024 * 1024;
-  private static final int CONNECT_TIMEOUT_MS = 5000;
-  private static final int SOCKET_TIMEOUT_MS = 15000;
+  private static final int MAX_CAPTURED_RESP_LENGTH = 64 * 1024;
+  private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 60;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
 
   private static final String CONTENT_TYPE = "Content-Type";
   private static final String APPLICATION_JSON = "application/json";
   private static final String CONTENT_ENCODING = "Content-Encoding";
-  private static final String CONTENT_ENCODING_GZIP = "gzip";
+  private static final String USER_AGENT = "User-Agent";
+  private static final String USER_AGENT_VALUE = "metrics-apptuit/" + Package.VERSION
+      + " Java/" + System.getProperty("java.version");
+
+  private static final byte[] JSON_METRIC = ascii("{\"metric\":\"");
+  private static final byte[] JSON_TIMESTAMP = ascii("\",\"timestamp\":");
+  private static final byte[] JSON_VALUE = ascii(",\"value\":");
+  private static final byte[] JSON_TAGS = ascii(",\"tags\":{");
 
   private static final URL DEFAULT_PUT_API_URI;
 
@@ -68,8 +92,22 @@ public class ApptuitPutClient {
   }
 
   private final URL apiEndPoint;
+  private final Sanitizer defaultSanitizer = new Sanitizer.CachingSanitizer(DEFAULT_SANITIZER);
+
+  private HttpTransport transport = HttpTransports.shared();
+  private volatile ContentCodec codec = ContentCodec.GZIP;
+  private volatile Predicate<PutResponse.PointError> resendPolicy;
+  private volatile SendListener sendListener;
+  private int maxPointsPerRequest = 0;
+  private int maxBytesPerRequest = 0;
+  private volatile int maxConcurrentRequests = 1;
+  private ThreadPoolExecutor chunkExecutor;
+  private volatile DiskSpool spool;
+  private int maxReplayRequestsPerSecond;
+  private final AtomicBoolean replaying = new AtomicBoolean(false);
 
   private Map<String, String> globalTags;
+  private volatile EncodedGlobalTags encodedGlobalTags;
   private String token;
   private String userId;
 
@@ -89,7 +127,7 @@ public class ApptuitPutClient {
   }
 
   public void send(Collection<DataPoint> dataPoints) throws ConnectException, ResponseStatusException, IOException {
-    send(dataPoints, new Sanitizer.CachingSanitizer(DEFAULT_SANITIZER));
+    send(dataPoints, defaultSanitizer);
   }
 
   public void send(Collection<DataPoint> dataPoints, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
@@ -97,58 +135,461 @@ public class ApptuitPutClient {
   }
   public void send(Collection<DataPoint> dataPoints, Sanitizer sanitizer, Map<String, String> reqHeaders) throws ConnectException, ResponseStatusException, IOException {
 
-
     if (dataPoints.isEmpty()) {
       return;
     }
+    send(dataPoints::forEach, sanitizer, reqHeaders);
+  }
+
+  public void send(Iterator<DataPoint> dataPoints, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
+    if (!dataPoints.hasNext()) {
+      return;
+    }
+    send(DataPointProducer.of(dataPoints), sanitizer, null);
+  }
+
+  public void send(Stream<DataPoint> dataPoints, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
+    send(dataPoints.iterator(), sanitizer);
+  }
+
+  public void send(DataPointProducer producer, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
+    send(producer, sanitizer, null);
+  }
+
+  /**
+   * Sends the points as they are produced. Unless requests are split or spooled, points are encoded
+   * and compressed straight into the request body, otherwise at most one request worth of points
+   * is buffered per in-flight request.
+   *
+   * <p>A producer that produces no points still results in a request with an empty array of points.
+   */
+  public void send(DataPointProducer producer, Sanitizer sanitizer, Map<String, String> reqHeaders) throws ConnectException, ResponseStatusException, IOException {
+    if (isSplittingRequests() || spool != null) {
+      sendInChunks(producer, sanitizer, reqHeaders).throwIfFailed();
+      return;
+    }
+
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(producer, encodeGlobalTags(sanitizer), sanitizer);
+    post(entity::writeTo, reqHeaders);
+  }
+
+  public void send(DataPointBatch batch) throws ConnectException, ResponseStatusException, IOException {
+    send(batch, defaultSanitizer);
+  }
+
+  /**
+   * Sends the points of the batch, encoding them straight from its columns. The batch must not be
+   * modified until the send returns.
+   */
+  public void send(DataPointBatch batch, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (isSplittingRequests() || spool != null) {
+      sendInChunks(batch, sanitizer, null).throwIfFailed();
+      return;
+    }
 
-    DatapointsHttpEntity entity = new DatapointsHttpEntity(dataPoints, globalTags, sanitizer);
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(batch, encodeGlobalTags(sanitizer), sanitizer);
+    post(entity::writeTo, null);
+  }
+
+  /**
+   * Splits the points into requests of at most {@link #setMaxPointsPerRequest(int) maxPointsPerRequest}
+   * points and {@link #setMaxBytesPerRequest(int) maxBytesPerRequest} bytes, and sends up to
+   * {@link #setMaxConcurrentRequests(int) maxConcurrentRequests} of them at a time.
+   *
+   * <p>Errors are not thrown, they are reported per chunk in the returned result.
+   */
+  public SendResult sendInChunks(Collection<DataPoint> dataPoints, Sanitizer sanitizer,
+                                 Map<String, String> reqHeaders) {
+    return sendInChunks(dataPoints::forEach, sanitizer, reqHeaders);
+  }
 
-    HttpURLConnection urlConnection;
-    int status;
+  /**
+   * Same as {@link #sendInChunks(Collection, Sanitizer, Map)}, but chunks are sent as soon as they
+   * fill up, while the producer is still producing points.
+   */
+  public SendResult sendInChunks(DataPointProducer producer, Sanitizer sanitizer,
+                                 Map<String, String> reqHeaders) {
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(producer, encodeGlobalTags(sanitizer), sanitizer);
+    ChunkSender chunkSender = new ChunkSender(reqHeaders);
+    ChunkBuilder chunkBuilder = new ChunkBuilder(entity, chunkSender);
     try {
-      urlConnection = (HttpURLConnection) apiEndPoint.openConnection();
-      urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
-      urlConnection.setReadTimeout(SOCKET_TIMEOUT_MS);
-      urlConnection.setChunkedStreamingMode(0);
-
-      urlConnection.setRequestProperty(CONTENT_TYPE, APPLICATION_JSON);
-      setUserAgent(urlConnection);
-      if (GZIP) {
-        urlConnection.setRequestProperty(CONTENT_ENCODING, CONTENT_ENCODING_GZIP);
+      producer.produce(chunkBuilder);
+      chunkBuilder.finish();
+    } catch (UncheckedIOException e) {
+      //Encoding into memory does not fail, unless the sanitizer or a DataPoint throws
+      chunkSender.fail(chunkBuilder.chunk, e.getCause());
+    }
+    return awaitResults(chunkSender);
+  }
+
+  private SendResult awaitResults(ChunkSender chunkSender) {
+    SendResult result = chunkSender.awaitResults();
+    if (spool != null && result.getSentPoints() > 0) {
+      replaySpool();
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #sendInChunks(Collection, Sanitizer, Map)}, with the points encoded straight from
+   * the columns of the batch.
+   */
+  public SendResult sendInChunks(DataPointBatch batch, Sanitizer sanitizer, Map<String, String> reqHeaders) {
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(batch, encodeGlobalTags(sanitizer), sanitizer);
+    ChunkSender chunkSender = new ChunkSender(reqHeaders);
+    ChunkBuilder chunkBuilder = new ChunkBuilder(entity, chunkSender);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        chunkBuilder.accept(batch, i);
       }
-      urlConnection.setRequestProperty("Authorization", generateAuthHeader());
-      if (reqHeaders != null && !reqHeaders.isEmpty()) {
-        reqHeaders.forEach(urlConnection::setRequestProperty);
+      chunkBuilder.finish();
+    } catch (UncheckedIOException e) {
+      chunkSender.fail(chunkBuilder.chunk, e.getCause());
+    }
+    return awaitResults(chunkSender);
+  }
+
+  /**
+   * Saves requests that fail with a transient error (connection errors, 429 and 5xx responses) to
+   * the spool. Once a later request succeeds, the spooled requests are replayed in the background,
+   * oldest first, at no more than maxReplayRequestsPerSecond, with the request headers they were
+   * first sent with.
+   *
+   * <p>Setting a spool buffers each request in memory before it is sent, as when splitting requests.
+   */
+  public void setSpool(DiskSpool spool, int maxReplayRequestsPerSecond) {
+    if (spool != null && maxReplayRequestsPerSecond <= 0) {
+      throw new IllegalArgumentException("maxReplayRequestsPerSecond must be positive");
+    }
+    this.spool = spool;
+    this.maxReplayRequestsPerSecond = maxReplayRequestsPerSecond;
+  }
+
+  private void replaySpool() {
+    DiskSpool diskSpool = this.spool;
+    if (diskSpool.isEmpty() || !replaying.compareAndSet(false, true)) {
+      return;
+    }
+    long intervalMillis = 1000L / maxReplayRequestsPerSecond;
+    Thread replayThread = new Thread(() -> {
+      try {
+        while (diskSpool.replay(this::sendSpooled, 1) > 0) {
+          Thread.sleep(intervalMillis);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        replaying.set(false);
       }
-      urlConnection.setRequestMethod("POST");
-      urlConnection.setDoInput(true);
-      urlConnection.setDoOutput(true);
-      OutputStream outputStream = new BufferedOutputStream(urlConnection.getOutputStream(), BUFFER_SIZE);
-      entity.writeTo(outputStream);
-      outputStream.flush();
-
-      status = urlConnection.getResponseCode();
-      debug("-------------------" + status + "---------------------");
+    }, "apptuit-spool-replay");
+    replayThread.setDaemon(true);
+    replayThread.start();
+  }
+
+  /**
+   * Spooled records start with the headers of the request, as a count followed by the keys and
+   * values in modified UTF-8, so that replayed requests carry the headers of the original request.
+   */
+  private static byte[] spoolRecord(Map<String, String> reqHeaders, byte[] body, int length) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream(length + 64);
+    DataOutputStream out = new DataOutputStream(record);
+    if (reqHeaders == null) {
+      out.writeInt(0);
+    } else {
+      out.writeInt(reqHeaders.size());
+      for (Map.Entry<String, String> header : reqHeaders.entrySet()) {
+        out.writeUTF(header.getKey());
+        out.writeUTF(header.getValue());
+      }
+    }
+    out.write(body, 0, length);
+    return record.toByteArray();
+  }
+
+  private void sendSpooled(long timestamp, byte[] record) throws IOException {
+    try {
+      ByteArrayInputStream recordStream = new ByteArrayInputStream(record);
+      DataInputStream in = new DataInputStream(recordStream);
+      Map<String, String> reqHeaders = null;
+      int headerCount = in.readInt();
+      if (headerCount > 0) {
+        reqHeaders = new LinkedHashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+          reqHeaders.put(in.readUTF(), in.readUTF());
+        }
+      }
+      int offset = record.length - recordStream.available();
+      post(outputStream -> outputStream.write(record, offset, record.length - offset), reqHeaders, 1);
+    } catch (EOFException e) {
+      LOGGER.log(Level.WARNING, "Discarding truncated spooled request with timestamp [" + timestamp + "]", e);
     } catch (IOException e) {
-      throw e;
+      if (isTransient(e)) {
+        throw e;
+      }
+      LOGGER.log(Level.WARNING, "Discarding spooled request with timestamp [" + timestamp + "]", e);
     }
-    String responseBody = null;
+  }
+
+  private static boolean isTransient(IOException e) {
+    if (!(e instanceof ResponseStatusException)) {
+      return true;
+    }
+    int status = ((ResponseStatusException) e).getResponseStatus();
+    return status == HTTP_TOO_MANY_REQUESTS || status >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+  }
+
+  private boolean isSplittingRequests() {
+    return maxPointsPerRequest > 0 || maxBytesPerRequest > 0;
+  }
+
+  /**
+   * Posts the entity and, if enabled, resends the points the server rejected for transient reasons.
+   *
+   * @return details of the response, or null if the server did not send any
+   */
+  private PutResponse post(HttpTransport.EntityWriter entity, Map<String, String> reqHeaders) throws IOException {
+    return post(entity, reqHeaders, 0);
+  }
+
+  private PutResponse post(HttpTransport.EntityWriter entity, Map<String, String> reqHeaders, int retryCount)
+      throws IOException {
     try {
-      InputStream inputStr = getInputStream(urlConnection, status);
+      return postOnce(entity, reqHeaders, retryCount);
+    } catch (ResponseStatusException e) {
+      return resendRejectedPoints(e, reqHeaders);
+    }
+  }
 
-      String encoding = urlConnection.getContentEncoding() == null ? "UTF-8"
-          : urlConnection.getContentEncoding();
-      responseBody = inputStr != null ? consumeResponse(inputStr, Charset.forName(encoding)) : null;
+  /**
+   * Posts the entity, compressed with the current codec. Entities write the uncompressed body.
+   */
+  private PutResponse postOnce(HttpTransport.EntityWriter entity, Map<String, String> reqHeaders, int retryCount)
+      throws IOException {
+    SendListener listener = this.sendListener;
+    if (listener == null) {
+      return postOnce(entity, reqHeaders, null);
+    }
+    RequestStats stats = new RequestStats(retryCount);
+    try {
+      return postOnce(entity, reqHeaders, stats);
+    } finally {
+      stats.finish();
+      try {
+        listener.onRequest(stats);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Error in send listener", e);
+      }
+    }
+  }
+
+  private PutResponse postOnce(HttpTransport.EntityWriter entity, Map<String, String> reqHeaders, RequestStats stats)
+      throws IOException {
+    ContentCodec contentCodec = this.codec;
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put(CONTENT_TYPE, APPLICATION_JSON);
+    headers.put(USER_AGENT, USER_AGENT_VALUE);
+    String contentEncoding = contentCodec.getContentEncoding();
+    if (contentEncoding != null) {
+      headers.put(CONTENT_ENCODING, contentEncoding);
+    }
+    headers.put("Authorization", generateAuthHeader());
+    if (reqHeaders != null && !reqHeaders.isEmpty()) {
+      headers.putAll(reqHeaders);
+    }
+
+    HttpTransport.EntityWriter body = outputStream -> contentCodec.encode(outputStream, entity);
+    if (stats != null) {
+      body = stats.instrument(contentCodec, entity);
+      stats.start();
+    }
+    HttpTransport.Response response = transport.post(apiEndPoint, headers, body);
+    try {
+      int status = response.getStatus();
+      if (stats != null) {
+        stats.responseReceived(status);
+      }
+      debug("-------------------" + status + "---------------------");
+      InputStream inputStr = response.getBody();
+      if (inputStr == null) {
+        if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
+          return null;
+        }
+        throw new ResponseStatusException(status, null);
+      }
+      CapturingInputStream capture = new CapturingInputStream(inputStr,
+          status < HttpURLConnection.HTTP_BAD_REQUEST ? 0 : MAX_CAPTURED_RESP_LENGTH);
+      PutResponse details;
+      try {
+        details = PutResponse.parse(new BufferedReader(new InputStreamReader(capture, StandardCharsets.UTF_8)));
+      } catch (IOException e) {
+        //not a details response, or a broken one
+        details = null;
+      }
+      try {
+        capture.drain();
+      } catch (IOException e) {
+        throw new IOException("Error draining response", e);
+      }
+      if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
+        return details;
+      }
+      String responseBody = capture.getCaptured();
       debug(responseBody);
-    } catch (IOException e) {
-      throw new IOException("Error draining response", e);
+      throw new ResponseStatusException(status, responseBody, details);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Resends the rejected points accepted by the resend policy. Points are resent as echoed by the
+   * server, which already have global tags merged and names sanitized.
+   *
+   * @return combined details of both requests, if every rejected point was resent successfully
+   * @throws ResponseStatusException with the remaining failures, if any points were not resent
+   */
+  private PutResponse resendRejectedPoints(ResponseStatusException e, Map<String, String> reqHeaders)
+      throws IOException {
+    Predicate<PutResponse.PointError> policy = this.resendPolicy;
+    PutResponse details = e.getPutResponse();
+    if (policy == null || details == null) {
+      throw e;
+    }
+    List<DataPoint> resend = new ArrayList<>();
+    List<PutResponse.PointError> remaining = new ArrayList<>();
+    for (PutResponse.PointError error : details.getErrors()) {
+      if (error.getDataPoint() != null && policy.test(error)) {
+        resend.add(error.getDataPoint());
+      } else {
+        remaining.add(error);
+      }
+    }
+    if (resend.isEmpty()) {
+      throw e;
+    }
+
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(resend::forEach, EncodedGlobalTags.NONE,
+        Sanitizer.NO_OP_SANITIZER);
+    try {
+      postOnce(entity::writeTo, reqHeaders, 1);
+    } catch (IOException resendError) {
+      e.addSuppressed(resendError);
+      throw e;
+    }
+    PutResponse merged = new PutResponse(details.getSuccess() + resend.size(),
+        details.getFailed() - resend.size(), remaining);
+    if (merged.getFailed() > 0) {
+      throw new ResponseStatusException(e.getResponseStatus(), e.getResponseBody(), merged);
     }
-    if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
-      throw new ResponseStatusException(status, responseBody);
+    return merged;
+  }
+
+  /**
+   * Resends the points of a partially failed request that the policy accepts, typically
+   * {@link PutResponse#TRANSIENT_ERRORS}. Points are resent once, in a single request. Null (the
+   * default) disables resending.
+   */
+  public void setResendPolicy(Predicate<PutResponse.PointError> resendPolicy) {
+    this.resendPolicy = resendPolicy;
+  }
+
+  /**
+   * Maximum number of points sent in a single request. Larger collections are split across
+   * several requests. Zero (the default) means no limit.
+   */
+  public void setMaxPointsPerRequest(int maxPointsPerRequest) {
+    this.maxPointsPerRequest = Math.max(0, maxPointsPerRequest);
+  }
+
+  public int getMaxPointsPerRequest() {
+    return maxPointsPerRequest;
+  }
+
+  /**
+   * Maximum size of the uncompressed body of a single request. Larger collections are split across
+   * several requests. A single point larger than this is sent in a request of its own.
+   * Zero (the default) means no limit.
+   */
+  public void setMaxBytesPerRequest(int maxBytesPerRequest) {
+    this.maxBytesPerRequest = Math.max(0, maxBytesPerRequest);
+  }
+
+  public int getMaxBytesPerRequest() {
+    return maxBytesPerRequest;
+  }
+
+  /**
+   * Number of requests that are sent in parallel when a collection is split into several requests.
+   */
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    if (maxConcurrentRequests <= 0) {
+      throw new IllegalArgumentException("maxConcurrentRequests must be positive");
+    }
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    shutdownChunkExecutor();
+  }
+
+  private synchronized void shutdownChunkExecutor() {
+    if (chunkExecutor != null) {
+      chunkExecutor.shutdown();
+      chunkExecutor = null;
     }
   }
 
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  private synchronized Executor getChunkExecutor() {
+    if (chunkExecutor == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests,
+          EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "apptuit-put-client-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+      executor.allowCoreThreadTimeOut(true);
+      chunkExecutor = executor;
+    }
+    return chunkExecutor;
+  }
+
+  /**
+   * Sets the transport used to execute requests. The same transport can be shared with other clients
+   * so they share connections.
+   */
+  public void setTransport(HttpTransport transport) {
+    if (transport == null) {
+      throw new IllegalArgumentException("transport cannot be null");
+    }
+    this.transport = transport;
+  }
+
+  /**
+   * Sets a listener that is told the size and timings of every request, or null to measure nothing.
+   */
+  public void setSendListener(SendListener sendListener) {
+    this.sendListener = sendListener;
+  }
+
+  /**
+   * Sets the compression applied to request bodies, {@link ContentCodec#GZIP} by default.
+   */
+  public void setCodec(ContentCodec codec) {
+    if (codec == null) {
+      throw new IllegalArgumentException("codec cannot be null");
+    }
+    this.codec = codec;
+  }
+
+  public ContentCodec getCodec() {
+    return codec;
+  }
+
   private String generateAuthHeader() {
     if (userId != null && !userId.isEmpty()) {
       return "Basic " + Base64.getEncoder().encodeToString((userId + ":" + token).getBytes(StandardCharsets.UTF_8));
@@ -156,24 +597,13 @@ public class ApptuitPutClient {
     return "Bearer " + token;
   }
 
-  private InputStream getInputStream(HttpURLConnection urlConnection, int status) throws IOException {
-    InputStream inputStr;
-    if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
-      inputStr = urlConnection.getInputStream();
-    } else {
-      /* error from server */
-      inputStr = urlConnection.getErrorStream();
-    }
-    return inputStr;
-  }
-
   /**
    * @deprecated There is no way to know if points are successfully put
    * in this method, so replaced put(...) with send(...)
    */
   @Deprecated
   public void put(Collection<DataPoint> dataPoints) {
-    put(dataPoints, DEFAULT_SANITIZER);
+    put(dataPoints, defaultSanitizer);
   }
 
   /**
@@ -189,13 +619,7 @@ public class ApptuitPutClient {
     }
   }
 
-  private void setUserAgent(HttpURLConnection urlConnection) {
-    String userAgent = "Java/" + System.getProperty("java.version");
-    userAgent = "metrics-apptuit/" + Package.VERSION + " " + userAgent;
-    urlConnection.setRequestProperty("User-Agent", userAgent);
-  }
-
-  private String consumeResponse(InputStream inputStr, Charset encoding) throws IOException {
+  static String consumeResponse(InputStream inputStr, Charset encoding) throws IOException {
     StringBuilder body = new StringBuilder();
     BufferedReader reader = new BufferedReader(new InputStreamReader(inputStr, encoding));
     try {
@@ -218,56 +642,380 @@ public class ApptuitPutClient {
     return body == null ? "Response too long" : body.toString();
   }
 
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return the global tags encoded with the sanitizer. The encoding is cached, as a client is
+   *     typically always used with the same sanitizer.
+   */
+  private EncodedGlobalTags encodeGlobalTags(Sanitizer sanitizer) {
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, sanitizer, encodedGlobalTags);
+    encodedGlobalTags = encoded;
+    return encoded;
+  }
+
   private void debug(String s) {
     if (DEBUG) {
       LOGGER.info(s);
     }
   }
 
+  /**
+   * Encodes points into chunks, and submits each chunk to the sender once it is full.
+   */
+  private class ChunkBuilder implements Consumer<DataPoint> {
+
+    private final DatapointsHttpEntity entity;
+    private final ChunkSender chunkSender;
+    private final ByteArrayOutputStream pointBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+    private final Utf8Writer pointWriter = new Utf8Writer(BUFFER_SIZE);
+    private EncodedChunk chunk = new EncodedChunk(0);
+
+    private ChunkBuilder(DatapointsHttpEntity entity, ChunkSender chunkSender) {
+      this.entity = entity;
+      this.chunkSender = chunkSender;
+    }
+
+    @Override
+    public void accept(DataPoint dataPoint) {
+      try {
+        pointBytes.reset();
+        entity.writeDataPoint(pointWriter.reset(pointBytes), dataPoint);
+        append(dataPoint.getTimestamp());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void accept(DataPointBatch batch, int index) {
+      try {
+        pointBytes.reset();
+        entity.writeDataPoint(pointWriter.reset(pointBytes), batch, index);
+        append(batch.getTimestamp(index));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void append(long timestamp) throws IOException {
+      pointWriter.flush();
+      if (!chunk.canAppend(pointBytes.size(), maxPointsPerRequest, maxBytesPerRequest)) {
+        chunkSender.submit(chunk.seal());
+        chunk = new EncodedChunk(chunk.index + 1);
+      }
+      chunk.append(pointBytes, timestamp);
+    }
+
+    private void finish() {
+      if (chunk.pointCount > 0) {
+        chunkSender.submit(chunk.seal());
+      }
+    }
+  }
+
+  /**
+   * Sends chunks, at most maxConcurrentRequests at a time, and collects their results.
+   */
+  private class ChunkSender {
+
+    private final Map<String, String> reqHeaders;
+    private final int concurrency;
+    private final Semaphore permits;
+    private final List<CompletableFuture<SendResult.ChunkResult>> results = new ArrayList<>();
+
+    private ChunkSender(Map<String, String> reqHeaders) {
+      this.reqHeaders = reqHeaders;
+      this.concurrency = maxConcurrentRequests;
+      this.permits = new Semaphore(concurrency);
+    }
+
+    private void submit(EncodedChunk chunk) {
+      if (concurrency == 1) {
+        results.add(CompletableFuture.completedFuture(send(chunk)));
+        return;
+      }
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(chunk, new InterruptedIOException("Interrupted before chunk could be sent"));
+        return;
+      }
+      try {
+        results.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return send(chunk);
+          } finally {
+            permits.release();
+          }
+        }, getChunkExecutor()));
+      } catch (RejectedExecutionException e) {
+        permits.release();
+        fail(chunk, new IOException("Could not schedule chunk", e));
+      }
+    }
+
+    private SendResult.ChunkResult send(EncodedChunk chunk) {
+      try {
+        return chunk.result(post(chunk::writeTo, reqHeaders));
+      } catch (IOException e) {
+        DiskSpool diskSpool = spool;
+        if (diskSpool != null && isTransient(e)) {
+          try {
+            chunk.spoolTo(diskSpool, reqHeaders);
+            return chunk.result(e, true);
+          } catch (IOException spoolError) {
+            e.addSuppressed(spoolError);
+          }
+        }
+        return chunk.result(e);
+      }
+    }
+
+    private void fail(EncodedChunk chunk, IOException e) {
+      results.add(CompletableFuture.completedFuture(chunk.result(e)));
+    }
+
+    private SendResult awaitResults() {
+      List<SendResult.ChunkResult> chunkResults = new ArrayList<>(results.size());
+      for (CompletableFuture<SendResult.ChunkResult> result : results) {
+        chunkResults.add(result.join());
+      }
+      return new SendResult(chunkResults);
+    }
+  }
+
+  /**
+   * JSON array of encoded points, the uncompressed body of a single request.
+   */
+  private static class EncodedChunk extends ByteArrayOutputStream {
+
+    private final int index;
+    private int pointCount = 0;
+    private long minTimestamp = Long.MAX_VALUE;
+
+    private EncodedChunk(int index) {
+      super(BUFFER_SIZE);
+      this.index = index;
+    }
+
+    private boolean canAppend(int pointSize, int maxPoints, int maxBytes) {
+      if (pointCount == 0) {
+        return true;
+      }
+      if (maxPoints > 0 && pointCount >= maxPoints) {
+        return false;
+      }
+      // +2 for the separator and the closing bracket
+      return maxBytes <= 0 || size() + pointSize + 2 <= maxBytes;
+    }
+
+    private void append(ByteArrayOutputStream point, long timestamp) throws IOException {
+      write(pointCount == 0 ? '[' : ',');
+      point.writeTo(this);
+      pointCount++;
+      minTimestamp = Math.min(minTimestamp, timestamp);
+    }
+
+    private EncodedChunk seal() {
+      write(']');
+      return this;
+    }
+
+    private synchronized void spoolTo(DiskSpool diskSpool, Map<String, String> reqHeaders) throws IOException {
+      byte[] record = spoolRecord(reqHeaders, buf, count);
+      diskSpool.append(minTimestamp, record, 0, record.length);
+    }
+
+    private SendResult.ChunkResult result(PutResponse putResponse) {
+      return new SendResult.ChunkResult(index, pointCount, size(), null, false, putResponse);
+    }
+
+    private SendResult.ChunkResult result(IOException error) {
+      return result(error, false);
+    }
+
+    private SendResult.ChunkResult result(IOException error, boolean spooled) {
+      PutResponse putResponse = error instanceof ResponseStatusException
+          ? ((ResponseStatusException) error).getPutResponse() : null;
+      return new SendResult.ChunkResult(index, pointCount, size(), error, spooled, putResponse);
+    }
+  }
+
+  /**
+   * Keeps a copy of the first bytes read from the response, so error responses can be reported
+   * without buffering the whole body.
+   */
+  private static class CapturingInputStream extends FilterInputStream {
+
+    private final ByteArrayOutputStream captured;
+    private final int maxCaptured;
+    private boolean truncated = false;
+
+    private CapturingInputStream(InputStream in, int maxCaptured) {
+      super(in);
+      this.maxCaptured = maxCaptured;
+      this.captured = new ByteArrayOutputStream(Math.min(maxCaptured, BUFFER_SIZE));
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        capture(new byte[]{(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        capture(b, off, read);
+      }
+      return read;
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      int room = maxCaptured - captured.size();
+      if (len > room) {
+        truncated = true;
+      }
+      if (room > 0) {
+        captured.write(b, off, Math.min(room, len));
+      }
+    }
+
+    private void drain() throws IOException {
+      byte[] discard = new byte[BUFFER_SIZE];
+      while (read(discard, 0, discard.length) >= 0) {
+        //capture the rest of the body
+      }
+    }
+
+    private String getCaptured() {
+      String body = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+      return truncated ? body + "..." : body;
+    }
+  }
+
   static class DatapointsHttpEntity {
 
-    private final Collection<DataPoint> dataPoints;
-    private final Map<String, String> globalTags;
-    private final boolean doZip;
+    private static final ThreadLocal<Utf8Writer> WRITERS =
+        ThreadLocal.withInitial(() -> new Utf8Writer(BUFFER_SIZE));
+
+    private final DataPointProducer dataPoints;
+    private final DataPointBatch batch;
+    private final EncodedGlobalTags globalTags;
+    private final ContentCodec codec;
     private final Sanitizer sanitizer;
 
     public DatapointsHttpEntity(Collection<DataPoint> dataPoints,
                                 Map<String, String> globalTags,
                                 Sanitizer sanitizer) {
-      this(dataPoints, globalTags, sanitizer, GZIP);
+      this(dataPoints, globalTags, sanitizer, ContentCodec.GZIP);
     }
 
     public DatapointsHttpEntity(Collection<DataPoint> dataPoints,
                                 Map<String, String> globalTags,
                                 Sanitizer sanitizer, boolean doZip) {
+      this(dataPoints, globalTags, sanitizer, doZip ? ContentCodec.GZIP : ContentCodec.NONE);
+    }
+
+    public DatapointsHttpEntity(Collection<DataPoint> dataPoints,
+                                Map<String, String> globalTags,
+                                Sanitizer sanitizer, ContentCodec codec) {
+      this(dataPoints::forEach, globalTags, sanitizer, codec);
+    }
+
+    public DatapointsHttpEntity(DataPointProducer dataPoints,
+                                Map<String, String> globalTags,
+                                Sanitizer sanitizer, ContentCodec codec) {
+      this(dataPoints, null, EncodedGlobalTags.encode(globalTags, sanitizer, null), sanitizer, codec);
+    }
+
+    DatapointsHttpEntity(DataPointProducer dataPoints, EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+      this(dataPoints, null, globalTags, sanitizer, ContentCodec.NONE);
+    }
+
+    DatapointsHttpEntity(DataPointBatch batch, EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+      this(null, batch, globalTags, sanitizer, ContentCodec.NONE);
+    }
+
+    private DatapointsHttpEntity(DataPointProducer dataPoints, DataPointBatch batch, EncodedGlobalTags globalTags,
+                                 Sanitizer sanitizer, ContentCodec codec) {
       this.dataPoints = dataPoints;
+      this.batch = batch;
       this.globalTags = globalTags;
-      this.doZip = doZip;
+      this.codec = codec;
       this.sanitizer = sanitizer;
     }
 
     public void writeTo(OutputStream outputStream) throws IOException {
-      if (doZip) {
-        outputStream = new GZIPOutputStream(outputStream);
+      codec.encode(outputStream, this::writeJson);
+    }
+
+    private void writeJson(OutputStream outputStream) throws IOException {
+      Utf8Writer writer = WRITERS.get().reset(outputStream);
+      try {
+        writer.writeByte('[');
+        if (batch != null) {
+          writeBatch(writer);
+        } else {
+          boolean[] first = {true};
+          dataPoints.produce(dp -> {
+            try {
+              if (!first[0]) {
+                writer.writeByte(',');
+              }
+              first[0] = false;
+              writeDataPoint(writer, dp);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+        }
+        writer.writeByte(']');
+        writer.flush();
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      } finally {
+        writer.reset(null);
       }
+    }
 
-      PrintStream ps = new PrintStream(outputStream, false, "UTF-8");
-      ps.println("[");
-      Iterator<DataPoint> iterator = dataPoints.iterator();
-      while (iterator.hasNext()) {
-        DataPoint dp = iterator.next();
-        dp.toJson(ps, globalTags, this.sanitizer);
-        if (iterator.hasNext()) {
-          ps.println(",");
+    private void writeBatch(Utf8Writer writer) throws IOException {
+      for (int i = 0; i < batch.size(); i++) {
+        if (i > 0) {
+          writer.writeByte(',');
         }
+        writeDataPoint(writer, batch, i);
       }
-      ps.println("]");
+    }
 
-      ps.flush();
+    /**
+     * Writes the point in the same form as {@link DataPoint#toJson}. Global tags override point tags
+     * with the same key, and are written after the point tags.
+     */
+    void writeDataPoint(Utf8Writer writer, DataPoint dp) throws IOException {
+      writer.writeBytes(JSON_METRIC).writeJsonString(sanitizer.sanitizer(dp.getMetric()))
+          .writeBytes(JSON_TIMESTAMP).writeLong(dp.getTimestamp())
+          .writeBytes(JSON_VALUE).writeNumber(dp.getValue())
+          .writeBytes(JSON_TAGS);
+      globalTags.writeJson(writer, dp.getTags(), sanitizer);
+      writer.writeByte('}').writeByte('}');
+    }
 
-      if (doZip) {
-        ((GZIPOutputStream) outputStream).finish();
-      }
+    void writeDataPoint(Utf8Writer writer, DataPointBatch batch, int index) throws IOException {
+      EncodedSeries series = batch.getSeries(index).encode(globalTags, sanitizer);
+      writer.writeBytes(JSON_METRIC).writeBytes(series.jsonMetric)
+          .writeBytes(JSON_TIMESTAMP).writeLong(batch.getTimestamp(index))
+          .writeBytes(JSON_VALUE);
+      batch.writeValue(writer, index);
+      writer.writeBytes(JSON_TAGS).writeBytes(series.jsonTags)
+          .writeByte('}').writeByte('}');
     }
   }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sends batches of {@link DataPoint}s through an {@link ApptuitPutClient} on background threads,
+ * so that a slow endpoint does not stall the caller.
+ *
+ * <p>Batches are held in a bounded in-memory queue. When the queue is full, the {@link OverflowPolicy}
+ * decides which batch is dropped. The future of a dropped batch completes exceptionally with a
+ * {@link RejectedExecutionException}. The sender threads are started by the first batch.
+ */
+public class AsyncApptuitPutClient implements Closeable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 16;
+  public static final int DEFAULT_SENDER_THREADS = 1;
+  public static final long DEFAULT_BLOCK_TIMEOUT_MS = 5000;
+
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+  private final ApptuitPutClient putClient;
+  private final BlockingDeque<Batch> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutMillis;
+  private final int senderThreads;
+  private final List<Thread> senders = new ArrayList<>();
+  private final AtomicLong droppedBatches = new AtomicLong();
+  //Batches are enqueued under the read lock and the client is closed under the write lock, so that
+  //no batch can be queued after close() has drained the queue
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private volatile boolean closed = false;
+
+  public AsyncApptuitPutClient(ApptuitPutClient putClient) {
+    this(putClient, DEFAULT_QUEUE_CAPACITY, DEFAULT_SENDER_THREADS, OverflowPolicy.DROP_OLDEST,
+        DEFAULT_BLOCK_TIMEOUT_MS);
+  }
+
+  public AsyncApptuitPutClient(ApptuitPutClient putClient, int queueCapacity, int senderThreads,
+                               OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+    if (putClient == null) {
+      throw new IllegalArgumentException("putClient cannot be null");
+    }
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("queueCapacity must be positive");
+    }
+    if (senderThreads <= 0) {
+      throw new IllegalArgumentException("senderThreads must be positive");
+    }
+    if (overflowPolicy == null) {
+      throw new IllegalArgumentException("overflowPolicy cannot be null");
+    }
+    this.putClient = putClient;
+    this.queue = new LinkedBlockingDeque<>(queueCapacity);
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+    this.senderThreads = senderThreads;
+  }
+
+  public CompletableFuture<Void> send(Collection<DataPoint> dataPoints) {
+    return send(dataPoints, null);
+  }
+
+  public CompletableFuture<Void> send(Collection<DataPoint> dataPoints, Sanitizer sanitizer) {
+    Batch batch = new Batch(dataPoints, sanitizer);
+    Lock lock = closeLock.readLock();
+    lock.lock();
+    try {
+      if (closed) {
+        batch.reject("Client is closed");
+        return batch.future;
+      }
+      if (dataPoints.isEmpty()) {
+        batch.future.complete(null);
+        return batch.future;
+      }
+      startSenders();
+      enqueue(batch);
+    } finally {
+      lock.unlock();
+    }
+    return batch.future;
+  }
+
+  private void startSenders() {
+    synchronized (senders) {
+      if (!senders.isEmpty()) {
+        return;
+      }
+      for (int i = 0; i < senderThreads; i++) {
+        Thread sender = new Thread(this::drainQueue, "apptuit-async-sender-" + i);
+        sender.setDaemon(true);
+        senders.add(sender);
+        sender.start();
+      }
+    }
+  }
+
+  private void enqueue(Batch batch) {
+    switch (overflowPolicy) {
+      case DROP_NEWEST:
+        if (!queue.offerLast(batch)) {
+          drop(batch);
+        }
+        break;
+      case BLOCK:
+        try {
+          if (!queue.offerLast(batch, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            drop(batch);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop(batch);
+        }
+        break;
+      case DROP_OLDEST:
+      default:
+        while (!queue.offerLast(batch)) {
+          Batch oldest = queue.pollFirst();
+          if (oldest != null) {
+            drop(oldest);
+          }
+        }
+        break;
+    }
+  }
+
+  private void drop(Batch batch) {
+    droppedBatches.incrementAndGet();
+    batch.reject("Send queue full, dropped batch of " + batch.dataPoints.size() + " points");
+  }
+
+  private void drainQueue() {
+    while (!closed || !queue.isEmpty()) {
+      Batch batch;
+      try {
+        batch = queue.pollFirst(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (batch == null) {
+        continue;
+      }
+      try {
+        if (batch.sanitizer == null) {
+          putClient.send(batch.dataPoints);
+        } else {
+          putClient.send(batch.dataPoints, batch.sanitizer);
+        }
+        batch.future.complete(null);
+      } catch (Exception e) {
+        batch.future.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * @return number of batches waiting to be sent
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * @return number of batches dropped because the queue was full
+   */
+  public long getDroppedBatches() {
+    return droppedBatches.get();
+  }
+
+  /**
+   * Stops accepting new batches and waits for the queued batches to be sent. Batches still queued
+   * when the shutdown timeout elapses are rejected.
+   */
+  @Override
+  public void close() {
+    Lock lock = closeLock.writeLock();
+    lock.lock();
+    try {
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+    List<Thread> started;
+    synchronized (senders) {
+      started = new ArrayList<>(senders);
+    }
+    long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+    for (Thread sender : started) {
+      try {
+        sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    started.forEach(Thread::interrupt);
+    Batch batch;
+    while ((batch = queue.pollFirst()) != null) {
+      batch.reject("Client closed before batch could be sent");
+    }
+  }
+
+  public enum OverflowPolicy {
+    /**
+     * Evict the oldest queued batch to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Reject the new batch.
+     */
+    DROP_NEWEST,
+    /**
+     * Block the caller until there is room or the timeout elapses, then reject the new batch.
+     */
+    BLOCK
+  }
+
+  private static class Batch {
+
+    private final Collection<DataPoint> dataPoints;
+    private final Sanitizer sanitizer;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private Batch(Collection<DataPoint> dataPoints, Sanitizer sanitizer) {
+      this.dataPoints = dataPoints;
+      this.sanitizer = sanitizer;
+    }
+
+    private void reject(String reason) {
+      future.completeExceptionally(new RejectedExecutionException(reason));
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded cache that is safe for concurrent use. It grows as entries are added, up to its capacity.
+ *
+ * <p>Lookups are lock free. When the cache is full, entries are evicted with the CLOCK algorithm:
+ * a hit marks the entry as referenced, and the eviction hand skips and clears referenced entries
+ * until it finds one that was not used since the hand last passed it.
+ */
+final class ClockCache<K, V> {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final ConcurrentHashMap<K, CacheEntry<K, V>> cache;
+  private final int capacity;
+  private CacheEntry<K, V>[] clock;
+  private int size = 0;
+  private int hand = 0;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  ClockCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    int initialCapacity = Math.min(capacity, INITIAL_CAPACITY);
+    this.capacity = capacity;
+    this.cache = new ConcurrentHashMap<>(initialCapacity * 4 / 3 + 1);
+    @SuppressWarnings("unchecked")
+    CacheEntry<K, V>[] clock = (CacheEntry<K, V>[]) new CacheEntry<?, ?>[initialCapacity];
+    this.clock = clock;
+  }
+
+  /**
+   * @return the cached value of the key, or the value computed by the loader, which is then cached.
+   *     The loader may be called more than once for a key that is looked up concurrently.
+   */
+  V get(K key, Function<K, V> loader) {
+    CacheEntry<K, V> entry = cache.get(key);
+    if (entry != null) {
+      if (!entry.referenced) {
+        entry.referenced = true;
+      }
+      hits.increment();
+      return entry.value;
+    }
+    misses.increment();
+    V value = loader.apply(key);
+    add(new CacheEntry<>(key, value));
+    return value;
+  }
+
+  private synchronized void add(CacheEntry<K, V> entry) {
+    if (cache.putIfAbsent(entry.key, entry) != null) {
+      return;
+    }
+    if (size < capacity) {
+      if (size == clock.length) {
+        clock = Arrays.copyOf(clock, Math.min(capacity, size * 2));
+      }
+      clock[size++] = entry;
+      return;
+    }
+    while (clock[hand].referenced) {
+      clock[hand].referenced = false;
+      hand = (hand + 1) % clock.length;
+    }
+    cache.remove(clock[hand].key);
+    evictions.increment();
+    clock[hand] = entry;
+    hand = (hand + 1) % clock.length;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  private static class CacheEntry<K, V> {
+    private final K key;
+    private final V value;
+    private volatile boolean referenced;
+
+    private CacheEntry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compression applied to request bodies.
+ *
+ * <p>The compressing codecs reuse their {@link Deflater}s, resetting them between requests instead
+ * of allocating a new native deflater for every request.
+ */
+public abstract class ContentCodec {
+
+  public static final ContentCodec NONE = new IdentityCodec();
+  public static final ContentCodec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_POOLED_DEFLATERS = 8;
+
+  /**
+   * @return value of the Content-Encoding header, or null if the body is not encoded
+   */
+  public abstract String getContentEncoding();
+
+  /**
+   * Writes the entity to the stream, compressed by this codec.
+   */
+  public abstract void encode(OutputStream out, HttpTransport.EntityWriter entity) throws IOException;
+
+  /**
+   * @param level compression level between {@link Deflater#BEST_SPEED} and
+   *              {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  public static ContentCodec gzip(int level) {
+    return new GzipCodec(level);
+  }
+
+  /**
+   * Deflate as defined for the HTTP "deflate" content coding, i.e. a zlib stream. Compared to gzip
+   * it saves the 18 byte header and trailer and uses the cheaper Adler-32 checksum instead of CRC-32.
+   */
+  public static ContentCodec deflate(int level) {
+    return new DeflateCodec(level);
+  }
+
+  private static void checkLevel(int level) {
+    if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+  }
+
+  private static class IdentityCodec extends ContentCodec {
+
+    @Override
+    public String getContentEncoding() {
+      return null;
+    }
+
+    @Override
+    public void encode(OutputStream out, HttpTransport.EntityWriter entity) throws IOException {
+      entity.writeTo(out);
+    }
+
+    @Override
+    public String toString() {
+      return "identity";
+    }
+  }
+
+  private abstract static class DeflaterCodec extends ContentCodec {
+
+    private final int level;
+    private final boolean nowrap;
+    private final Queue<Deflater> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private DeflaterCodec(int level, boolean nowrap) {
+      checkLevel(level);
+      this.level = level;
+      this.nowrap = nowrap;
+    }
+
+    @Override
+    public void encode(OutputStream out, HttpTransport.EntityWriter entity) throws IOException {
+      Deflater deflater = borrow();
+      boolean reusable = false;
+      try {
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(new NonClosingOutputStream(out),
+            deflater, BUFFER_SIZE);
+        writeCompressed(out, deflaterStream, entity);
+        reusable = true;
+      } finally {
+        release(deflater, reusable);
+      }
+    }
+
+    abstract void writeCompressed(OutputStream out, DeflaterOutputStream deflaterStream,
+                                  HttpTransport.EntityWriter entity) throws IOException;
+
+    private Deflater borrow() {
+      Deflater deflater = pool.poll();
+      if (deflater == null) {
+        return new Deflater(level, nowrap);
+      }
+      pooled.decrementAndGet();
+      return deflater;
+    }
+
+    private void release(Deflater deflater, boolean reusable) {
+      if (reusable && pooled.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+        deflater.reset();
+        pool.offer(deflater);
+        return;
+      }
+      if (reusable) {
+        pooled.decrementAndGet();
+      }
+      deflater.end();
+    }
+
+    int getLevel() {
+      return level;
+    }
+  }
+
+  private static class DeflateCodec extends DeflaterCodec {
+
+    private DeflateCodec(int level) {
+      super(level, false);
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return "deflate";
+    }
+
+    @Override
+    void writeCompressed(OutputStream out, DeflaterOutputStream deflaterStream,
+                         HttpTransport.EntityWriter entity) throws IOException {
+      entity.writeTo(deflaterStream);
+      deflaterStream.finish();
+    }
+
+    @Override
+    public String toString() {
+      return "deflate(" + getLevel() + ")";
+    }
+  }
+
+  private static class GzipCodec extends DeflaterCodec {
+
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private GzipCodec(int level) {
+      super(level, true);
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return "gzip";
+    }
+
+    @Override
+    void writeCompressed(OutputStream out, DeflaterOutputStream deflaterStream,
+                         HttpTransport.EntityWriter entity) throws IOException {
+      out.write(HEADER);
+      ChecksumOutputStream checksumStream = new ChecksumOutputStream(deflaterStream);
+      entity.writeTo(checksumStream);
+      deflaterStream.finish();
+      writeIntLE(out, (int) checksumStream.crc.getValue());
+      writeIntLE(out, (int) checksumStream.count);
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+      out.write(value & 0xff);
+      out.write((value >> 8) & 0xff);
+      out.write((value >> 16) & 0xff);
+      out.write((value >> 24) & 0xff);
+    }
+
+    @Override
+    public String toString() {
+      return "gzip(" + getLevel() + ")";
+    }
+  }
+
+  private static class ChecksumOutputStream extends FilterOutputStream {
+
+    private final CRC32 crc = new CRC32();
+    private long count = 0;
+
+    private ChecksumOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      crc.update(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      crc.update(b, off, len);
+      count += len;
+    }
+  }
+
+  /**
+   * Keeps entities from closing the request stream, which the transport owns.
+   */
+  private static class NonClosingOutputStream extends FilterOutputStream {
+
+    private NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -16,22 +16,23 @@
 
 package ai.apptuit.metrics.client;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.io.UncheckedIOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Consumer;
 
 /**
  * @author Rajiv Shivane
  */
 public class DataPoint {
 
+  private static final ThreadLocal<Utf8Writer> TEXT_WRITERS = ThreadLocal.withInitial(() -> new Utf8Writer(1024));
+
   private final String metric;
   private final long timestamp;
   private final Number value;
@@ -73,7 +74,7 @@ public class DataPoint {
   @Override
   public String toString() {
     StringWriter out = new StringWriter();
-    toTextPlain(new PrintWriter(out), null, Sanitizer.NO_OP_SANITIZER);
+    toTextPlain(new PrintWriter(out), Sanitizer.NO_OP_SANITIZER);
     return out.toString();
   }
 
@@ -85,17 +86,15 @@ public class DataPoint {
               .append("\n\"value\":").append(String.valueOf(getValue()));
       ps.append(",\n\"tags\": {");
 
-      Map<String, String> tagsToMarshall = new LinkedHashMap<>(getTags());
-      if (globalTags != null) {
-        tagsToMarshall.putAll(globalTags);
+      boolean first = true;
+      for (Entry<String, String> tag : getTags().entrySet()) {
+        if (globalTags == null || !globalTags.containsKey(tag.getKey())) {
+          first = appendJsonTag(ps, first, tag, sanitizer);
+        }
       }
-      Iterator<Entry<String, String>> iterator = tagsToMarshall.entrySet().iterator();
-      while (iterator.hasNext()) {
-        Entry<String, String> tag = iterator.next();
-        ps.append("\n\"").append(sanitizer.sanitizer(tag.getKey())).append("\":\"")
-                .append(tag.getValue().replace("\"", "\\\"")).append("\"");
-        if (iterator.hasNext()) {
-          ps.append(",");
+      if (globalTags != null) {
+        for (Entry<String, String> tag : globalTags.entrySet()) {
+          first = appendJsonTag(ps, first, tag, sanitizer);
         }
       }
       ps.append("}\n");
@@ -103,29 +102,58 @@ public class DataPoint {
     ps.append("}");
   }
 
+  private static boolean appendJsonTag(PrintStream ps, boolean first, Entry<String, String> tag, Sanitizer sanitizer) {
+    if (!first) {
+      ps.append(",");
+    }
+    ps.append("\n\"").append(sanitizer.sanitizer(tag.getKey())).append("\":\"")
+            .append(tag.getValue().replace("\"", "\\\"")).append("\"");
+    return false;
+  }
+
   public void toTextLine(OutputStream out, Map<String, String> globalTags, Sanitizer sanitizer) {
+    toTextLine(out, EncodedGlobalTags.encode(globalTags, sanitizer, null), sanitizer);
+  }
+
+  /**
+   * @return a consumer that writes the points it is given as text lines, like
+   *     {@link #toTextLine(OutputStream, Map, Sanitizer)}, with the global tags encoded once rather
+   *     than for every point
+   */
+  public static Consumer<DataPoint> textLineWriter(OutputStream out, Map<String, String> globalTags,
+                                                   Sanitizer sanitizer) {
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, sanitizer, null);
+    return dataPoint -> dataPoint.toTextLine(out, encoded, sanitizer);
+  }
+
+  private void toTextLine(OutputStream out, EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+    Utf8Writer writer = TEXT_WRITERS.get().reset(out);
     try {
-      PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
-      toTextPlain(writer, globalTags, sanitizer);
-      writer.append('\n');
+      toTextLine(writer, globalTags, sanitizer);
       writer.flush();
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      writer.reset(null);
     }
   }
 
-  private void toTextPlain(PrintWriter ps, Map<String, String> globalTags, Sanitizer sanitizer) {
+  /**
+   * Writes the point as a text line, with global tags that were encoded in advance.
+   */
+  void toTextLine(Utf8Writer writer, EncodedGlobalTags globalTags, Sanitizer sanitizer) throws IOException {
+    writer.writeString(sanitizer.sanitizer(getMetric())).writeByte(' ')
+        .writeLong(getTimestamp()).writeByte(' ')
+        .writeNumber(getValue());
+    globalTags.writeText(writer, getTags(), sanitizer);
+    writer.writeByte('\n');
+  }
+
+  private void toTextPlain(PrintWriter ps, Sanitizer sanitizer) {
     ps.append(sanitizer.sanitizer(getMetric())).append(" ")
             .append(Long.toString(getTimestamp())).append(" ")
             .append(String.valueOf(getValue()));
-
-    Map<String, String> tagsToMarshall = getTags();
-    if (globalTags != null) {
-      LinkedHashMap<String, String> t = new LinkedHashMap<>(tagsToMarshall);
-      t.putAll(globalTags);
-      tagsToMarshall = t;
-    }
-    tagsToMarshall.forEach((key, val) -> ps.append(" ")
+    getTags().forEach((key, val) -> ps.append(" ")
             .append(sanitizer.sanitizer(key)).append("=").append(val));
   }
 
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Points stored column wise: a reference to the {@link Series} of each point, its timestamp and its
+ * value as a primitive. Adding a point allocates nothing once the columns have grown to fit, so a
+ * batch that is {@link #clear() cleared} and refilled every reporting cycle avoids allocating a
+ * {@link DataPoint} and a boxed value per point.
+ *
+ * <p>Instances are not thread safe, and must not be modified while they are being sent.
+ */
+public class DataPointBatch {
+
+  private static final int DEFAULT_CAPACITY = 256;
+
+  private Series[] series;
+  private long[] timestamps;
+  private long[] values;
+  private boolean[] doubles;
+  private int size = 0;
+
+  public DataPointBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public DataPointBatch(int initialCapacity) {
+    if (initialCapacity <= 0) {
+      throw new IllegalArgumentException("initialCapacity must be positive: " + initialCapacity);
+    }
+    series = new Series[initialCapacity];
+    timestamps = new long[initialCapacity];
+    values = new long[initialCapacity];
+    doubles = new boolean[initialCapacity];
+  }
+
+  public void add(Series series, long epoch, long value) {
+    add(series, epoch, value, false);
+  }
+
+  public void add(Series series, long epoch, double value) {
+    add(series, epoch, Double.doubleToRawLongBits(value), true);
+  }
+
+  private void add(Series series, long epoch, long bits, boolean isDouble) {
+    if (series == null) {
+      throw new IllegalArgumentException("series cannot be null");
+    }
+    if (size == timestamps.length) {
+      grow();
+    }
+    this.series[size] = series;
+    timestamps[size] = epoch;
+    values[size] = bits;
+    doubles[size] = isDouble;
+    size++;
+  }
+
+  private void grow() {
+    int capacity = timestamps.length * 2;
+    series = Arrays.copyOf(series, capacity);
+    timestamps = Arrays.copyOf(timestamps, capacity);
+    values = Arrays.copyOf(values, capacity);
+    doubles = Arrays.copyOf(doubles, capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Removes all points, keeping the columns for reuse.
+   */
+  public void clear() {
+    Arrays.fill(series, 0, size, null);
+    size = 0;
+  }
+
+  public Series getSeries(int index) {
+    checkIndex(index);
+    return series[index];
+  }
+
+  public long getTimestamp(int index) {
+    checkIndex(index);
+    return timestamps[index];
+  }
+
+  /**
+   * @return true if the value of the point is a double, false if it is a long
+   */
+  public boolean isDouble(int index) {
+    checkIndex(index);
+    return doubles[index];
+  }
+
+  public long getLongValue(int index) {
+    checkIndex(index);
+    return doubles[index] ? (long) Double.longBitsToDouble(values[index]) : values[index];
+  }
+
+  public double getDoubleValue(int index) {
+    checkIndex(index);
+    return doubles[index] ? Double.longBitsToDouble(values[index]) : values[index];
+  }
+
+  /**
+   * @return the point as a {@link DataPoint}, with the value boxed as a Long or a Double
+   */
+  public DataPoint getDataPoint(int index) {
+    checkIndex(index);
+    Number value = doubles[index] ? (Number) Double.longBitsToDouble(values[index]) : (Number) values[index];
+    return new DataPoint(series[index].metric, timestamps[index], value, series[index].tags);
+  }
+
+  /**
+   * Passes each point to the action as a {@link DataPoint}. This allocates the objects the batch
+   * avoids, and is meant for consumers that do not read the columns directly.
+   */
+  public void forEach(Consumer<DataPoint> action) {
+    for (int i = 0; i < size; i++) {
+      action.accept(getDataPoint(i));
+    }
+  }
+
+  /**
+   * Writes the value of the point in the same form as {@link Utf8Writer#writeNumber} writes a Long
+   * or a Double.
+   */
+  void writeValue(Utf8Writer writer, int index) throws IOException {
+    if (doubles[index]) {
+      writer.writeDouble(Double.longBitsToDouble(values[index]));
+    } else {
+      writer.writeLong(values[index]);
+    }
+  }
+
+  /**
+   * Writes the point in the same form as {@link DataPoint#toTextLine}.
+   */
+  void writeTextLine(Utf8Writer writer, int index, EncodedGlobalTags globalTags, Sanitizer sanitizer)
+      throws IOException {
+    EncodedSeries encoded = series[index].encode(globalTags, sanitizer);
+    writer.writeBytes(encoded.textMetric).writeByte(' ')
+        .writeLong(timestamps[index]).writeByte(' ');
+    writeValue(writer, index);
+    writer.writeBytes(encoded.textTags).writeByte('\n');
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  /**
+   * A metric name and its tags, shared by all points of the metric. Series are immutable, and are
+   * meant to be created once per metric and reused across batches, usually by interning them in a
+   * {@link SeriesRegistry}.
+   */
+  public static final class Series {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long id;
+    private final long hash;
+    private final String metric;
+    private final Map<String, String> tags;
+    private volatile EncodedSeries encoded;
+
+    public Series(String metric, Map<String, String> tags) {
+      this(checkMetric(metric), checkTags(tags), hash(metric, tags));
+    }
+
+    private Series(String metric, Map<String, String> tags, long hash) {
+      this(hash, hash, metric, tags);
+    }
+
+    Series(long id, long hash, String metric, Map<String, String> tags) {
+      this.id = id;
+      this.hash = hash;
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    private static String checkMetric(String metric) {
+      if (metric == null) {
+        throw new IllegalArgumentException("metric cannot be null");
+      }
+      return metric;
+    }
+
+    private static Map<String, String> checkTags(Map<String, String> tags) {
+      if (tags == null) {
+        throw new IllegalArgumentException("Tags cannot be null");
+      }
+      return tags;
+    }
+
+    /**
+     * A 64-bit hash of the metric and tags, which does not depend on the order of the tags.
+     */
+    static long hash(String metric, Map<String, String> tags) {
+      long tagsHash = tags.size();
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        tagsHash += mix(hash(tag.getKey()) * FNV_PRIME ^ hash(tag.getValue()));
+      }
+      return mix(mix(hash(metric)) ^ mix(tagsHash));
+    }
+
+    private static long hash(String s) {
+      long h = FNV_OFFSET_BASIS;
+      for (int i = 0; i < s.length(); i++) {
+        h = (h ^ s.charAt(i)) * FNV_PRIME;
+      }
+      return h;
+    }
+
+    private static long mix(long h) {
+      h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+      h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+      return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return an ID derived from a 64-bit hash of the metric and tags. Equal series have the same ID,
+     *     except that a {@link SeriesRegistry} gives each series it interns an ID that no other live
+     *     series of the registry has, even if their hashes collide.
+     */
+    public long getId() {
+      return id;
+    }
+
+    public String getMetric() {
+      return metric;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    long getHash() {
+      return hash;
+    }
+
+    boolean matches(String metric, Map<String, String> tags) {
+      return this.metric.equals(metric) && this.tags.equals(tags);
+    }
+
+    /**
+     * @return the series encoded with the global tags and sanitizer, reusing the last encoding if it
+     *     was made with the same ones
+     */
+    EncodedSeries encode(EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+      EncodedSeries e = encoded;
+      if (e == null || !e.encodedWith(globalTags, sanitizer)) {
+        e = new EncodedSeries(this, globalTags, sanitizer);
+        encoded = e;
+      }
+      return e;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Series other = (Series) o;
+      return hash == other.hash && matches(other.metric, other.tags);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+      return metric + tags;
+    }
+  }
+}
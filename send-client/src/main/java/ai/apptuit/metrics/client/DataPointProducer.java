@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Source of {@link DataPoint}s that pushes them to a sink. Points are encoded as they are pushed,
+ * so a report can be sent without first collecting all of its points in memory.
+ *
+ * <p>A producer is invoked once per send, on the sending thread.
+ */
+@FunctionalInterface
+public interface DataPointProducer {
+
+  void produce(Consumer<DataPoint> sink);
+
+  static DataPointProducer of(Iterator<DataPoint> dataPoints) {
+    return dataPoints::forEachRemaining;
+  }
+
+  static DataPointProducer of(Stream<DataPoint> dataPoints) {
+    return dataPoints::forEachOrdered;
+  }
+}
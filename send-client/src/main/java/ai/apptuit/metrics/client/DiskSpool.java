@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool of encoded batches, kept in memory-mapped segment files so that batches that
+ * could not be sent survive an outage and a restart of the process.
+ *
+ * <p>Each record is laid out as:
+ * <pre>
+ *   int  length of the payload
+ *   int  CRC32 of the timestamp and payload
+ *   long timestamp
+ *   byte state (pending or consumed)
+ *   byte[length] payload
+ * </pre>
+ * A zero length marks the end of the records in a segment. On startup the existing segments are
+ * scanned, and records after the first one that fails its CRC check are discarded.
+ *
+ * <p>When appending would exceed the disk budget, the oldest segments are deleted. Segments are
+ * unmapped when they are deleted and when the spool is closed, rather than when their buffers are
+ * garbage collected, and the spool must not be used once it is closed.
+ */
+public class DiskSpool implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(DiskSpool.class.getName());
+
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "spool-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 1;
+  private static final int STATE_OFFSET = HEADER_SIZE - 1;
+  private static final byte STATE_PENDING = 0;
+  private static final byte STATE_CONSUMED = 1;
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final int segmentSize;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final AtomicLong droppedRecords = new AtomicLong();
+  private long nextSequence = 0;
+  private long diskBytes = 0;
+
+  public DiskSpool(File directory, long maxDiskBytes) throws IOException {
+    this(directory, maxDiskBytes, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public DiskSpool(File directory, long maxDiskBytes, int segmentSize) throws IOException {
+    if (segmentSize <= HEADER_SIZE) {
+      throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+    }
+    if (maxDiskBytes < segmentSize) {
+      throw new IllegalArgumentException("maxDiskBytes must be at least one segment");
+    }
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory.toPath());
+    recover();
+  }
+
+  private synchronized void recover() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+        && name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      long sequence;
+      try {
+        String name = file.getName();
+        sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      Segment segment = new Segment(sequence, file, (int) file.length());
+      segment.scan();
+      nextSequence = sequence + 1;
+      if (segment.pendingRecords == 0) {
+        segment.delete();
+      } else {
+        segments.addLast(segment);
+        diskBytes += segment.capacity;
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the spool. Records are replayed in the order they were appended.
+   *
+   * @param timestamp epoch of the data in the payload, handed back to the {@link RecordHandler} on
+   *                  replay
+   */
+  public synchronized void append(long timestamp, byte[] data, int offset, int length) throws IOException {
+    int recordSize = HEADER_SIZE + length;
+    Segment segment = segments.peekLast();
+    if (segment == null || !segment.hasRoom(recordSize)) {
+      segment = newSegment(Math.max(segmentSize, recordSize + 4));
+    }
+    segment.append(timestamp, data, offset, length);
+  }
+
+  private Segment newSegment(int capacity) throws IOException {
+    while (!segments.isEmpty() && diskBytes + capacity > maxDiskBytes) {
+      Segment oldest = segments.removeFirst();
+      droppedRecords.addAndGet(oldest.pendingRecords);
+      LOGGER.warning("Spool full, dropping " + oldest.pendingRecords + " records from " + oldest.file);
+      diskBytes -= oldest.capacity;
+      oldest.delete();
+    }
+    String name = String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX);
+    Segment segment = new Segment(nextSequence++, new File(directory, name), capacity);
+    segments.addLast(segment);
+    diskBytes += capacity;
+    return segment;
+  }
+
+  /**
+   * Hands pending records, oldest first, to the handler and marks them consumed. Stops at the first
+   * record the handler fails on, which stays pending.
+   *
+   * @return number of records handled successfully
+   */
+  public int replay(RecordHandler handler, int maxRecords) {
+    int replayed = 0;
+    while (replayed < maxRecords) {
+      Segment segment;
+      int position;
+      long timestamp;
+      byte[] data;
+      synchronized (this) {
+        segment = firstPendingSegment();
+        if (segment == null) {
+          break;
+        }
+        position = segment.readPosition;
+        timestamp = segment.buffer.getLong(position + 8);
+        data = new byte[segment.buffer.getInt(position)];
+        segment.slice(position + HEADER_SIZE, data.length).get(data);
+      }
+      try {
+        handler.handle(timestamp, data);
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Error replaying spooled record", e);
+        break;
+      }
+      synchronized (this) {
+        if (segment.buffer == null) {
+          //The spool was closed while the record was being handled
+          break;
+        }
+        segment.markConsumed(position);
+        if (segment.pendingRecords == 0 && segment != segments.peekLast() && segments.remove(segment)) {
+          diskBytes -= segment.capacity;
+          segment.delete();
+        }
+      }
+      replayed++;
+    }
+    return replayed;
+  }
+
+  private Segment firstPendingSegment() {
+    for (Segment segment : segments) {
+      if (segment.pendingRecords > 0) {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  public synchronized boolean isEmpty() {
+    return firstPendingSegment() == null;
+  }
+
+  public synchronized int getPendingRecords() {
+    int pending = 0;
+    for (Segment segment : segments) {
+      pending += segment.pendingRecords;
+    }
+    return pending;
+  }
+
+  /**
+   * @return number of records deleted unsent to stay within the disk budget
+   */
+  public long getDroppedRecords() {
+    return droppedRecords.get();
+  }
+
+  /**
+   * @return bytes of disk used by the segment files
+   */
+  public synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+      segment.unmap();
+    }
+    segments.clear();
+  }
+
+  public interface RecordHandler {
+
+    void handle(long timestamp, byte[] data) throws IOException;
+  }
+
+  private static class Segment {
+
+    private final long sequence;
+    private final File file;
+    private final int capacity;
+    private MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private int readPosition = 0;
+    private int pendingRecords = 0;
+
+    private Segment(long sequence, File file, int capacity) throws IOException {
+      this.sequence = sequence;
+      this.file = file;
+      this.capacity = capacity;
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } finally {
+        channel.close();
+      }
+    }
+
+    private void scan() {
+      int position = 0;
+      boolean foundPending = false;
+      while (position + HEADER_SIZE <= capacity) {
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_SIZE + length > capacity) {
+          break;
+        }
+        if (buffer.getInt(position + 4) != crc(position, length)) {
+          LOGGER.warning("Discarding corrupt records in " + file + " from offset " + position);
+          break;
+        }
+        if (buffer.get(position + STATE_OFFSET) == STATE_PENDING) {
+          pendingRecords++;
+          if (!foundPending) {
+            readPosition = position;
+            foundPending = true;
+          }
+        }
+        position += HEADER_SIZE + length;
+      }
+      writePosition = position;
+      if (!foundPending) {
+        readPosition = position;
+      }
+      if (position + 4 <= capacity) {
+        buffer.putInt(position, 0);
+      }
+    }
+
+    private boolean hasRoom(int recordSize) {
+      return writePosition + recordSize <= capacity;
+    }
+
+    private void append(long timestamp, byte[] data, int offset, int length) {
+      int position = writePosition;
+      slice(position + HEADER_SIZE, length).put(data, offset, length);
+      buffer.putLong(position + 8, timestamp);
+      buffer.putInt(position + 4, crc(position, length));
+      buffer.put(position + STATE_OFFSET, STATE_PENDING);
+      int end = position + HEADER_SIZE + length;
+      if (end + 4 <= capacity) {
+        buffer.putInt(end, 0);
+      }
+      //length is written last, so a partially written record is never seen as complete
+      buffer.putInt(position, length);
+      writePosition = end;
+      if (pendingRecords == 0) {
+        readPosition = position;
+      }
+      pendingRecords++;
+    }
+
+    private void markConsumed(int position) {
+      buffer.put(position + STATE_OFFSET, STATE_CONSUMED);
+      pendingRecords--;
+      int next = position + HEADER_SIZE + buffer.getInt(position);
+      while (next < writePosition && buffer.get(next + STATE_OFFSET) != STATE_PENDING) {
+        next += HEADER_SIZE + buffer.getInt(next);
+      }
+      readPosition = next;
+    }
+
+    private int crc(int position, int length) {
+      CRC32 crc = new CRC32();
+      crc.update(slice(position + 8, 8));
+      crc.update(slice(position + HEADER_SIZE, length));
+      return (int) crc.getValue();
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+      ByteBuffer slice = buffer.duplicate();
+      slice.limit(offset + length).position(offset);
+      return slice;
+    }
+
+    private void unmap() {
+      MappedByteBuffer mapped = buffer;
+      buffer = null;
+      MappedBuffers.unmap(mapped);
+    }
+
+    private void delete() {
+      unmap();
+      if (!file.delete() && file.exists()) {
+        LOGGER.warning("Could not delete spool segment " + file);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Segment{" + sequence + ", pending=" + pendingRecords + "}";
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Global tags of a client, sanitized and encoded once for the JSON and the text line formats.
+ *
+ * <p>Global tags override point tags with the same key. Instead of merging the tags into a map for
+ * every point, point tags with a global key are skipped, and the encoded global tags are written
+ * after the point tags.
+ */
+final class EncodedGlobalTags {
+
+  static final EncodedGlobalTags NONE = new EncodedGlobalTags(Collections.emptyMap(), null);
+
+  private static final int BUFFER_SIZE = 256;
+
+  private final Map<String, String> tags;
+  private final Sanitizer sanitizer;
+  private final byte[] json;
+  private final byte[] text;
+
+  private EncodedGlobalTags(Map<String, String> tags, Sanitizer sanitizer) {
+    this.tags = tags;
+    this.sanitizer = sanitizer;
+    ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream textBytes = new ByteArrayOutputStream();
+    Utf8Writer jsonWriter = new Utf8Writer(BUFFER_SIZE).reset(jsonBytes);
+    Utf8Writer textWriter = new Utf8Writer(BUFFER_SIZE).reset(textBytes);
+    try {
+      boolean first = true;
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        String key = sanitizer.sanitizer(tag.getKey());
+        if (!first) {
+          jsonWriter.writeByte(',');
+        }
+        first = false;
+        jsonWriter.writeByte('"').writeJsonString(key).writeByte('"').writeByte(':')
+            .writeByte('"').writeJsonString(tag.getValue()).writeByte('"');
+        textWriter.writeByte(' ').writeString(key).writeByte('=').writeString(tag.getValue());
+      }
+      jsonWriter.flush();
+      textWriter.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.json = jsonBytes.toByteArray();
+    this.text = textBytes.toByteArray();
+  }
+
+  /**
+   * @return the tags encoded with the sanitizer, reusing {@code cached} if it was encoded from the
+   *     same tags with the same sanitizer
+   */
+  static EncodedGlobalTags encode(Map<String, String> tags, Sanitizer sanitizer, EncodedGlobalTags cached) {
+    if (tags == null || tags.isEmpty()) {
+      return NONE;
+    }
+    if (cached != null && cached.tags == tags && cached.sanitizer == sanitizer) {
+      return cached;
+    }
+    return new EncodedGlobalTags(tags, sanitizer);
+  }
+
+  /**
+   * @return true if the point tag is overridden by a global tag, and must not be written
+   */
+  boolean overrides(String key) {
+    return !tags.isEmpty() && tags.containsKey(key);
+  }
+
+  /**
+   * Writes the point tags and the global tags as the members of a JSON object, without the braces.
+   */
+  void writeJson(Utf8Writer writer, Map<String, String> pointTags, Sanitizer sanitizer) throws IOException {
+    boolean first = true;
+    for (Map.Entry<String, String> tag : pointTags.entrySet()) {
+      String key = tag.getKey();
+      if (overrides(key)) {
+        continue;
+      }
+      if (!first) {
+        writer.writeByte(',');
+      }
+      first = false;
+      writer.writeByte('"').writeJsonString(sanitizer.sanitizer(key)).writeByte('"').writeByte(':')
+          .writeByte('"').writeJsonString(tag.getValue()).writeByte('"');
+    }
+    if (json.length > 0) {
+      if (!first) {
+        writer.writeByte(',');
+      }
+      writer.writeBytes(json);
+    }
+  }
+
+  /**
+   * Writes the point tags and the global tags as space separated key=value pairs, each preceded by a
+   * space.
+   */
+  void writeText(Utf8Writer writer, Map<String, String> pointTags, Sanitizer sanitizer) throws IOException {
+    for (Map.Entry<String, String> tag : pointTags.entrySet()) {
+      String key = tag.getKey();
+      if (overrides(key)) {
+        continue;
+      }
+      writer.writeByte(' ').writeString(sanitizer.sanitizer(key)).writeByte('=').writeString(tag.getValue());
+    }
+    writer.writeBytes(text);
+  }
+}
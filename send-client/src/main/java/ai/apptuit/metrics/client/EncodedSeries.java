@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The metric and tags of a {@link DataPointBatch.Series}, sanitized and encoded for the JSON and the
+ * text line formats together with the global tags of a client. A series holds on to the last form it
+ * was encoded in, so a series that is sent every reporting cycle is encoded once.
+ */
+final class EncodedSeries {
+
+  private static final int BUFFER_SIZE = 256;
+
+  private final EncodedGlobalTags globalTags;
+  private final Sanitizer sanitizer;
+  final byte[] jsonMetric;
+  final byte[] jsonTags;
+  final byte[] textMetric;
+  final byte[] textTags;
+
+  EncodedSeries(DataPointBatch.Series series, EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+    this.globalTags = globalTags;
+    this.sanitizer = sanitizer;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Utf8Writer writer = new Utf8Writer(BUFFER_SIZE).reset(bytes);
+    try {
+      String metric = sanitizer.sanitizer(series.getMetric());
+      jsonMetric = toBytes(writer.writeJsonString(metric), bytes);
+      globalTags.writeJson(writer, series.getTags(), sanitizer);
+      jsonTags = toBytes(writer, bytes);
+      textMetric = toBytes(writer.writeString(metric), bytes);
+      globalTags.writeText(writer, series.getTags(), sanitizer);
+      textTags = toBytes(writer, bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] toBytes(Utf8Writer writer, ByteArrayOutputStream bytes) throws IOException {
+    writer.flush();
+    byte[] encoded = bytes.toByteArray();
+    bytes.reset();
+    return encoded;
+  }
+
+  /**
+   * @return true if this was encoded with the same global tags and sanitizer
+   */
+  boolean encodedWith(EncodedGlobalTags globalTags, Sanitizer sanitizer) {
+    return this.globalTags == globalTags && this.sanitizer == sanitizer;
+  }
+}
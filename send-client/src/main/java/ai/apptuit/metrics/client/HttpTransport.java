@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Executes HTTP requests on behalf of the clients. A single transport instance can be shared by
+ * several clients so that they share its connections.
+ */
+public interface HttpTransport {
+
+  /**
+   * POSTs the entity to the url.
+   *
+   * <p>The caller must close the returned {@link Response} to release the underlying connection.
+   */
+  Response post(URL url, Map<String, String> headers, EntityWriter entity) throws IOException;
+
+  interface EntityWriter {
+
+    void writeTo(OutputStream outputStream) throws IOException;
+  }
+
+  abstract class Response implements Closeable {
+
+    private final int status;
+
+    protected Response(int status) {
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the response body, or null if the server did not send one
+     */
+    public abstract InputStream getBody() throws IOException;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the transport shared by the clients that are not given one explicitly.
+ *
+ * <p>On Java 11+ this is the {@code HttpClient} based transport from the versioned section of the
+ * jar. On Java 8, or when the jar was built on JDK 8 and so lacks that class, it falls back to
+ * {@link UrlConnectionTransport}, which only speaks HTTP/1.1.
+ */
+final class HttpTransports {
+
+  private static final Logger LOGGER = Logger.getLogger(HttpTransports.class.getName());
+
+  private static final String HTTP_CLIENT_TRANSPORT = "ai.apptuit.metrics.client.HttpClientTransport";
+  private static final int CONNECT_TIMEOUT_MS = 5000;
+  private static final int SOCKET_TIMEOUT_MS = 15000;
+
+  private HttpTransports() {
+  }
+
+  /**
+   * @return the transport shared by all clients in this JVM
+   */
+  static HttpTransport shared() {
+    return SharedTransportHolder.INSTANCE;
+  }
+
+  static HttpTransport create(int connectTimeoutMillis, int readTimeoutMillis) {
+    try {
+      Class<?> transportClass = Class.forName(HTTP_CLIENT_TRANSPORT);
+      return (HttpTransport) transportClass.getDeclaredConstructor(int.class, int.class)
+          .newInstance(connectTimeoutMillis, readTimeoutMillis);
+    } catch (ClassNotFoundException | LinkageError e) {
+      return new UrlConnectionTransport(connectTimeoutMillis, readTimeoutMillis);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Could not create HttpClient transport, falling back to HttpURLConnection", e);
+      return new UrlConnectionTransport(connectTimeoutMillis, readTimeoutMillis);
+    }
+  }
+
+  private static class SharedTransportHolder {
+
+    private static final HttpTransport INSTANCE = create(CONNECT_TIMEOUT_MS, SOCKET_TIMEOUT_MS);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Unmaps memory-mapped files without waiting for the buffers to be garbage collected, so that the
+ * mappings of deleted files do not hold on to disk space and address space. There is no public API
+ * for this before Java 9 and none after: on Java 9 and later the buffer's cleaner is run through
+ * {@code sun.misc.Unsafe.invokeCleaner}, on Java 8 it is run through {@code sun.nio.ch.DirectBuffer}.
+ * If neither can be found, the buffers are left to be unmapped by the garbage collector.
+ *
+ * <p>A buffer must not be accessed after it is unmapped, the JVM crashes if it is.
+ */
+final class MappedBuffers {
+
+  private static final Logger LOGGER = Logger.getLogger(MappedBuffers.class.getName());
+
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final Method CLEANER;
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    Method clean = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      invokeCleaner = null;
+      try {
+        cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+        clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        LOGGER.log(Level.FINE, "Mapped buffers will be unmapped when they are garbage collected", e2);
+        cleaner = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    CLEANER = cleaner;
+    CLEAN = clean;
+  }
+
+  private MappedBuffers() {
+  }
+
+  static boolean isSupported() {
+    return INVOKE_CLEANER != null || CLEANER != null;
+  }
+
+  /**
+   * Unmaps the buffer, or leaves it to the garbage collector if it cannot be unmapped.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else if (CLEANER != null) {
+        Object cleaner = CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+        }
+      }
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      LOGGER.log(Level.FINE, "Could not unmap buffer", e);
+    }
+  }
+}
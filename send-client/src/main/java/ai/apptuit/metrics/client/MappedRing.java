@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single producer, single consumer ring of variable length records in a memory mapped file, for
+ * handing records from one process to another without locks or system calls.
+ *
+ * <p>The file starts with a header holding the capacity and two sequences, each on its own cache
+ * line: the write sequence, which only the producer updates, and the read sequence, which only the
+ * consumer updates. Sequences count bytes from the start of the ring and never wrap; the position
+ * of a sequence in the ring is the sequence modulo the capacity. The producer writes a record and
+ * then publishes it by advancing the write sequence. The consumer reads the records up to the write
+ * sequence and then frees them by advancing the read sequence.
+ *
+ * <p>A record is an int length followed by that many bytes, padded to a multiple of 8 bytes. A
+ * record never wraps around the end of the ring: if it does not fit before the end, a padding
+ * marker is written in its place and the record starts at the beginning of the ring.
+ *
+ * <p>Java 8 has no ordered stores to mapped memory, so the sequences are published and read
+ * between full fences made of a volatile store and load, which keep the record bytes from being
+ * reordered with the sequence on either side.
+ *
+ * <p>Closing the ring unmaps the file. Offering, polling and closing are synchronized on the ring,
+ * so that the mapping is never accessed once it is unmapped.
+ */
+final class MappedRing implements Closeable {
+
+  static final int HEADER_SIZE = 192;
+
+  private static final int MAGIC = 0x41505452;
+  private static final int VERSION = 1;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int WRITE_SEQUENCE_OFFSET = 64;
+  private static final int READ_SEQUENCE_OFFSET = 128;
+  private static final int LENGTH_SIZE = 4;
+  private static final int PADDING = -1;
+
+  private static volatile int fence;
+
+  private final FileChannel file;
+  private MappedByteBuffer buffer;
+  private final int capacity;
+  private final int mask;
+
+  private MappedRing(FileChannel file, MappedByteBuffer buffer, int capacity) {
+    this.file = file;
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Opens the ring as its producer, creating the file if it does not exist. A ring that already
+   * exists with the same capacity is reused, and its unread records are kept.
+   *
+   * @param capacity size of the ring in bytes, a power of two
+   */
+  static MappedRing create(Path path, int capacity) throws IOException {
+    if (capacity < 1024 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two, at least 1024: " + capacity);
+    }
+    FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      boolean reuse = file.size() == HEADER_SIZE + capacity;
+      MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+      if (!reuse || !isValid(buffer) || buffer.getLong(CAPACITY_OFFSET) != capacity) {
+        buffer.putLong(WRITE_SEQUENCE_OFFSET, 0);
+        buffer.putLong(READ_SEQUENCE_OFFSET, 0);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        fullFence();
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+      }
+      return new MappedRing(file, buffer, capacity);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens an existing ring as its consumer.
+   *
+   * @throws IOException if the file is not a ring
+   */
+  static MappedRing open(Path path) throws IOException {
+    FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (file.size() < HEADER_SIZE) {
+        throw new IOException("Not a ring buffer file: " + path);
+      }
+      MappedByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      long capacity = header.getLong(CAPACITY_OFFSET);
+      boolean valid = isValid(header);
+      MappedBuffers.unmap(header);
+      if (!valid || capacity <= 0 || Long.bitCount(capacity) != 1 || file.size() != HEADER_SIZE + capacity) {
+        throw new IOException("Not a ring buffer file: " + path);
+      }
+      MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+      return new MappedRing(file, buffer, (int) capacity);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private static boolean isValid(ByteBuffer header) {
+    return header.getInt(MAGIC_OFFSET) == MAGIC && header.getInt(VERSION_OFFSET) == VERSION;
+  }
+
+  private static void fullFence() {
+    fence = 0;
+    if (fence != 0) {
+      throw new AssertionError();
+    }
+  }
+
+  private static int align(int size) {
+    return (size + 7) & ~7;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Appends a record. Called by the producer only.
+   *
+   * @return false if the ring does not have room for the record
+   */
+  synchronized boolean offer(byte[] record, int length) {
+    checkOpen();
+    int size = align(LENGTH_SIZE + length);
+    if (size > capacity) {
+      return false;
+    }
+    long write = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+    long read = buffer.getLong(READ_SEQUENCE_OFFSET);
+    fullFence();
+    int index = (int) (write & mask);
+    int padding = size > capacity - index ? capacity - index : 0;
+    if (write + padding + size - read > capacity) {
+      return false;
+    }
+    if (padding > 0) {
+      buffer.putInt(HEADER_SIZE + index, PADDING);
+      index = 0;
+    }
+    buffer.putInt(HEADER_SIZE + index, length);
+    buffer.position(HEADER_SIZE + index + LENGTH_SIZE);
+    buffer.put(record, 0, length);
+    fullFence();
+    buffer.putLong(WRITE_SEQUENCE_OFFSET, write + padding + size);
+    return true;
+  }
+
+  /**
+   * Passes up to maxRecords records to the handler and frees them. Called by the consumer only.
+   *
+   * @return the number of records passed to the handler
+   */
+  synchronized int poll(RecordHandler handler, int maxRecords) {
+    checkOpen();
+    long read = buffer.getLong(READ_SEQUENCE_OFFSET);
+    long write = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+    fullFence();
+    int count = 0;
+    while (read < write && count < maxRecords) {
+      int index = (int) (read & mask);
+      int length = buffer.getInt(HEADER_SIZE + index);
+      if (length == PADDING) {
+        read += capacity - index;
+        continue;
+      }
+      handler.onRecord(buffer, HEADER_SIZE + index + LENGTH_SIZE, length);
+      read += align(LENGTH_SIZE + length);
+      count++;
+    }
+    fullFence();
+    buffer.putLong(READ_SEQUENCE_OFFSET, read);
+    return count;
+  }
+
+  /**
+   * @return the number of bytes written and not yet freed by the consumer
+   */
+  synchronized long pendingBytes() {
+    checkOpen();
+    long write = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+    long read = buffer.getLong(READ_SEQUENCE_OFFSET);
+    return write - read;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (buffer != null) {
+      MappedBuffers.unmap(buffer);
+      buffer = null;
+    }
+    file.close();
+  }
+
+  private void checkOpen() {
+    if (buffer == null) {
+      throw new IllegalStateException("Ring buffer is closed");
+    }
+  }
+
+  interface RecordHandler {
+
+    /**
+     * @param buffer the ring, which the handler must not modify
+     * @param offset offset of the record in the buffer
+     * @param length length of the record
+     */
+    void onRecord(ByteBuffer buffer, int offset, int length);
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Details returned by the put API when called with the {@code details} parameter: the number of
+ * points that were stored and that failed, and an error entry for each failed point.
+ */
+public class PutResponse {
+
+  /**
+   * Matches errors caused by the state of the server rather than by the point itself, such as write
+   * throttling or storage timeouts. Resending such points later can succeed.
+   */
+  public static final Predicate<PointError> TRANSIENT_ERRORS = error -> {
+    String message = error.getError();
+    if (message == null) {
+      return false;
+    }
+    message = message.toLowerCase(Locale.ROOT);
+    return message.contains("throttl") || message.contains("timeout") || message.contains("timed out")
+        || message.contains("unavailable") || message.contains("storage exception");
+  };
+
+  static final int MAX_ERRORS = 10_000;
+
+  private final long success;
+  private final long failed;
+  private final List<PointError> errors;
+
+  PutResponse(long success, long failed, List<PointError> errors) {
+    this.success = success;
+    this.failed = failed;
+    this.errors = Collections.unmodifiableList(errors);
+  }
+
+  public long getSuccess() {
+    return success;
+  }
+
+  public long getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return error entries of the failed points. At most {@value #MAX_ERRORS} entries are kept, so
+   *     there can be fewer entries than {@link #getFailed()}.
+   */
+  public List<PointError> getErrors() {
+    return errors;
+  }
+
+  @Override
+  public String toString() {
+    return "PutResponse{success=" + success + ", failed=" + failed + ", errors=" + errors.size() + "}";
+  }
+
+  /**
+   * Parses a details response, reading it as a stream.
+   *
+   * @return the parsed response, or null if the body is empty or not a details response
+   */
+  static PutResponse parse(Reader reader) throws IOException {
+    JsonReader json = new JsonReader(reader);
+    if (json.peek() != '{') {
+      return null;
+    }
+    long success = 0;
+    long failed = 0;
+    List<PointError> errors = new ArrayList<>();
+    json.beginObject();
+    while (json.hasNext()) {
+      String name = json.nextName();
+      switch (name) {
+        case "success":
+          success = json.nextLong();
+          break;
+        case "failed":
+          failed = json.nextLong();
+          break;
+        case "errors":
+          json.beginArray();
+          while (json.hasNext()) {
+            PointError error = parseError(json);
+            if (errors.size() < MAX_ERRORS) {
+              errors.add(error);
+            }
+          }
+          json.endArray();
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    return new PutResponse(success, failed, errors);
+  }
+
+  private static PointError parseError(JsonReader json) throws IOException {
+    DataPoint dataPoint = null;
+    String error = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      String name = json.nextName();
+      if ("datapoint".equals(name) && json.peek() == '{') {
+        dataPoint = parseDataPoint(json);
+      } else if ("error".equals(name) && json.peek() == '"') {
+        error = json.nextString();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    return new PointError(dataPoint, error);
+  }
+
+  private static DataPoint parseDataPoint(JsonReader json) throws IOException {
+    String metric = null;
+    Long timestamp = null;
+    Number value = null;
+    Map<String, String> tags = new LinkedHashMap<>();
+    json.beginObject();
+    while (json.hasNext()) {
+      String name = json.nextName();
+      if ("metric".equals(name) && json.peek() == '"') {
+        metric = json.nextString();
+      } else if ("timestamp".equals(name) && json.peek() != '"' && json.peek() != '{') {
+        timestamp = json.nextLong();
+      } else if ("value".equals(name) && json.peek() != '{' && json.peek() != '[') {
+        value = parseNumber(json.nextScalar());
+      } else if ("tags".equals(name) && json.peek() == '{') {
+        json.beginObject();
+        while (json.hasNext()) {
+          String key = json.nextName();
+          tags.put(key, json.nextScalar());
+        }
+        json.endObject();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    if (metric == null || timestamp == null || value == null) {
+      return null;
+    }
+    return new DataPoint(metric, timestamp, value, tags);
+  }
+
+  private static Number parseNumber(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e1) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * A point rejected by the put API, and the reason it was rejected.
+   */
+  public static class PointError {
+
+    private final DataPoint dataPoint;
+    private final String error;
+
+    PointError(DataPoint dataPoint, String error) {
+      this.dataPoint = dataPoint;
+      this.error = error;
+    }
+
+    /**
+     * @return the rejected point as echoed by the server, with global tags merged and names
+     *     sanitized, or null if the point could not be parsed back
+     */
+    public DataPoint getDataPoint() {
+      return dataPoint;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return "PointError{dataPoint=" + dataPoint + ", error=" + error + "}";
+    }
+  }
+
+  /**
+   * Minimal pull parser, sufficient for the details response. Only the current value is held in
+   * memory, so large responses are parsed without buffering them.
+   */
+  private static class JsonReader {
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+    private int peeked = -2;
+    private final StringBuilder sb = new StringBuilder();
+
+    private JsonReader(Reader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * @return the next non-whitespace character, without consuming it. Separators between
+     *     elements are skipped.
+     */
+    private int peek() throws IOException {
+      while (true) {
+        if (peeked == -2) {
+          peeked = reader.read();
+        }
+        if (peeked == ' ' || peeked == '\t' || peeked == '\n' || peeked == '\r' || peeked == ','
+            || peeked == ':') {
+          peeked = -2;
+          continue;
+        }
+        return peeked;
+      }
+    }
+
+    private int next() throws IOException {
+      int c = peek();
+      peeked = -2;
+      return c;
+    }
+
+    private void expect(char expected) throws IOException {
+      int c = next();
+      if (c != expected) {
+        throw new IOException("Malformed put response: expected '" + expected + "' but found "
+            + (c == EOF ? "end of input" : "'" + (char) c + "'"));
+      }
+    }
+
+    private void beginObject() throws IOException {
+      expect('{');
+    }
+
+    private void endObject() throws IOException {
+      expect('}');
+    }
+
+    private void beginArray() throws IOException {
+      expect('[');
+    }
+
+    private void endArray() throws IOException {
+      expect(']');
+    }
+
+    private boolean hasNext() throws IOException {
+      int c = peek();
+      if (c == EOF) {
+        throw new IOException("Malformed put response: unexpected end of input");
+      }
+      return c != '}' && c != ']';
+    }
+
+    private String nextName() throws IOException {
+      return nextString();
+    }
+
+    private long nextLong() throws IOException {
+      String value = nextScalar();
+      try {
+        return value != null ? Long.parseLong(value) : 0;
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed put response: invalid number " + value, e);
+      }
+    }
+
+    private String nextString() throws IOException {
+      expect('"');
+      sb.setLength(0);
+      while (true) {
+        int c = reader.read();
+        if (c == EOF) {
+          throw new IOException("Malformed put response: unterminated string");
+        }
+        if (c == '"') {
+          return sb.toString();
+        }
+        if (c == '\\') {
+          c = reader.read();
+          switch (c) {
+            case 'n':
+              sb.append('\n');
+              break;
+            case 't':
+              sb.append('\t');
+              break;
+            case 'r':
+              sb.append('\r');
+              break;
+            case 'b':
+              sb.append('\b');
+              break;
+            case 'f':
+              sb.append('\f');
+              break;
+            case 'u':
+              char[] hex = new char[4];
+              for (int i = 0; i < 4; i++) {
+                hex[i] = (char) reader.read();
+              }
+              try {
+                sb.append((char) Integer.parseInt(new String(hex), 16));
+              } catch (NumberFormatException e) {
+                throw new IOException("Malformed put response: invalid escape \\u" + new String(hex), e);
+              }
+              break;
+            case EOF:
+              throw new IOException("Malformed put response: unterminated string");
+            default:
+              sb.append((char) c);
+          }
+        } else {
+          sb.append((char) c);
+        }
+      }
+    }
+
+    /**
+     * @return a string, number or boolean value as text, or null for a JSON null
+     */
+    private String nextScalar() throws IOException {
+      if (peek() == '"') {
+        return nextString();
+      }
+      sb.setLength(0);
+      int c = next();
+      while (c != EOF && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+        sb.append((char) c);
+        c = reader.read();
+      }
+      peeked = c;
+      if (sb.length() == 0) {
+        throw new IOException("Malformed put response: expected a value");
+      }
+      String value = sb.toString();
+      return "null".equals(value) ? null : value;
+    }
+
+    private void skipValue() throws IOException {
+      int c = peek();
+      if (c == '{') {
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+      } else if (c == '[') {
+        beginArray();
+        while (hasNext()) {
+          skipValue();
+        }
+        endArray();
+      } else {
+        nextScalar();
+      }
+    }
+  }
+}
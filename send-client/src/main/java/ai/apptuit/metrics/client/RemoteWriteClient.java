@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends points to a Prometheus remote-write endpoint, as a snappy compressed {@code WriteRequest}
+ * protobuf message.
+ *
+ * <p>Points are grouped by series, so the labels of a series are written once per request, followed
+ * by all of its samples. The metric name is sent as the {@code __name__} label, and timestamps are
+ * converted from seconds to milliseconds.
+ */
+public class RemoteWriteClient {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final String METRIC_NAME_LABEL = "__name__";
+  private static final String USER_AGENT_VALUE = "metrics-apptuit/" + Package.VERSION
+      + " Java/" + System.getProperty("java.version");
+
+  //Field tags of the remote-write protobuf messages: (field_number << 3) | wire_type
+  private static final int WRITE_REQUEST_TIMESERIES = 1 << 3 | 2;
+  private static final int TIMESERIES_LABELS = 1 << 3 | 2;
+  private static final int TIMESERIES_SAMPLES = 2 << 3 | 2;
+  private static final int LABEL_NAME = 1 << 3 | 2;
+  private static final int LABEL_VALUE = 2 << 3 | 2;
+  private static final int SAMPLE_VALUE = 1 << 3 | 1;
+  private static final int SAMPLE_TIMESTAMP = 2 << 3;
+
+  private static final URL DEFAULT_REMOTE_WRITE_API_URI;
+
+  static {
+    try {
+      DEFAULT_REMOTE_WRITE_API_URI = new URL("https://api.apptuit.ai/prometheus/api/v1/write");
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private final URL apiEndPoint;
+  private final Map<String, String> globalTags;
+  private final String token;
+  private final String userId;
+  private final Sanitizer defaultSanitizer = new Sanitizer.CachingSanitizer(Sanitizer.PROMETHEUS_SANITIZER);
+  private HttpTransport transport = HttpTransports.shared();
+
+  public RemoteWriteClient(String token, Map<String, String> globalTags, URL apiEndPoint) {
+    this(null, token, globalTags, apiEndPoint);
+  }
+
+  public RemoteWriteClient(String userId, String token, Map<String, String> globalTags, URL apiEndPoint) {
+    this.userId = userId;
+    this.token = token;
+    this.globalTags = globalTags != null ? globalTags : Collections.emptyMap();
+    this.apiEndPoint = (apiEndPoint != null) ? apiEndPoint : DEFAULT_REMOTE_WRITE_API_URI;
+  }
+
+  public void send(Collection<DataPoint> dataPoints) throws ConnectException, ResponseStatusException, IOException {
+    send(dataPoints, defaultSanitizer);
+  }
+
+  public void send(Collection<DataPoint> dataPoints, Sanitizer sanitizer) throws ConnectException, ResponseStatusException, IOException {
+    if (dataPoints.isEmpty()) {
+      return;
+    }
+
+    ProtoBuffer message = encodeWriteRequest(dataPoints, sanitizer);
+    byte[] compressed = new byte[Snappy.maxCompressedLength(message.size)];
+    int compressedLength = Snappy.compress(message.buf, 0, message.size, compressed);
+
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("Content-Type", "application/x-protobuf");
+    headers.put("Content-Encoding", "snappy");
+    headers.put("X-Prometheus-Remote-Write-Version", "0.1.0");
+    headers.put("User-Agent", USER_AGENT_VALUE);
+    headers.put("Authorization", generateAuthHeader());
+
+    HttpTransport.Response response = transport.post(apiEndPoint, headers,
+        outputStream -> outputStream.write(compressed, 0, compressedLength));
+    try {
+      int status = response.getStatus();
+      if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
+        return;
+      }
+      String responseBody;
+      try {
+        InputStream inputStr = response.getBody();
+        responseBody = inputStr != null
+            ? ApptuitPutClient.consumeResponse(inputStr, StandardCharsets.UTF_8) : null;
+      } catch (IOException e) {
+        throw new IOException("Error draining response", e);
+      }
+      throw new ResponseStatusException(status, responseBody);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Sets the transport used to execute requests. The same transport can be shared with other clients
+   * so they share connections.
+   */
+  public void setTransport(HttpTransport transport) {
+    if (transport == null) {
+      throw new IllegalArgumentException("transport cannot be null");
+    }
+    this.transport = transport;
+  }
+
+  ProtoBuffer encodeWriteRequest(Collection<DataPoint> dataPoints, Sanitizer sanitizer) {
+    Map<ByteBuffer, Series> seriesByLabels = new LinkedHashMap<>();
+    ProtoBuffer labelBuffer = new ProtoBuffer(256);
+    ProtoBuffer labelMessage = new ProtoBuffer(64);
+    TreeMap<String, String> labels = new TreeMap<>();
+    for (DataPoint dataPoint : dataPoints) {
+      labels.clear();
+      dataPoint.getTags().forEach((key, value) -> labels.put(sanitizer.sanitizer(key), value));
+      globalTags.forEach((key, value) -> labels.put(sanitizer.sanitizer(key), value));
+      labels.put(METRIC_NAME_LABEL, sanitizer.sanitizer(dataPoint.getMetric()));
+
+      labelBuffer.reset();
+      for (Map.Entry<String, String> label : labels.entrySet()) {
+        labelMessage.reset();
+        labelMessage.writeString(LABEL_NAME, label.getKey());
+        labelMessage.writeString(LABEL_VALUE, label.getValue());
+        labelBuffer.writeMessage(TIMESERIES_LABELS, labelMessage);
+      }
+
+      ByteBuffer key = ByteBuffer.wrap(labelBuffer.toByteArray());
+      Series series = seriesByLabels.computeIfAbsent(key, Series::new);
+      series.add(dataPoint.getTimestamp() * 1000, dataPoint.getValue().doubleValue());
+    }
+
+    ProtoBuffer message = new ProtoBuffer(BUFFER_SIZE);
+    ProtoBuffer timeSeries = new ProtoBuffer(BUFFER_SIZE);
+    ProtoBuffer sample = new ProtoBuffer(32);
+    for (Series series : seriesByLabels.values()) {
+      series.sortSamples();
+      timeSeries.reset();
+      timeSeries.writeBytes(series.labels.array());
+      for (int i = 0; i < series.count; i++) {
+        sample.reset();
+        sample.writeDouble(SAMPLE_VALUE, series.values[i]);
+        sample.writeVarInt(SAMPLE_TIMESTAMP, series.timestamps[i]);
+        timeSeries.writeMessage(TIMESERIES_SAMPLES, sample);
+      }
+      message.writeMessage(WRITE_REQUEST_TIMESERIES, timeSeries);
+    }
+    return message;
+  }
+
+  private String generateAuthHeader() {
+    if (userId != null && !userId.isEmpty()) {
+      return "Basic " + Base64.getEncoder().encodeToString((userId + ":" + token).getBytes(StandardCharsets.UTF_8));
+    }
+    return "Bearer " + token;
+  }
+
+  private static class Series {
+
+    private final ByteBuffer labels;
+    private long[] timestamps = new long[1];
+    private double[] values = new double[1];
+    private int count = 0;
+
+    private Series(ByteBuffer labels) {
+      this.labels = labels;
+    }
+
+    private void add(long timestamp, double value) {
+      if (count == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, count * 2);
+        values = Arrays.copyOf(values, count * 2);
+      }
+      timestamps[count] = timestamp;
+      values[count] = value;
+      count++;
+    }
+
+    /**
+     * Remote-write receivers reject out of order samples within a series. Points are usually
+     * reported in time order, so this is an insertion sort that is a single pass in that case.
+     */
+    private void sortSamples() {
+      for (int i = 1; i < count; i++) {
+        long timestamp = timestamps[i];
+        double value = values[i];
+        int j = i - 1;
+        while (j >= 0 && timestamps[j] > timestamp) {
+          timestamps[j + 1] = timestamps[j];
+          values[j + 1] = values[j];
+          j--;
+        }
+        timestamps[j + 1] = timestamp;
+        values[j + 1] = value;
+      }
+    }
+  }
+
+  /**
+   * Growable buffer holding a protobuf encoded message.
+   */
+  static class ProtoBuffer {
+
+    private byte[] buf;
+    private int size = 0;
+
+    ProtoBuffer(int capacity) {
+      buf = new byte[capacity];
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, size);
+    }
+
+    void writeString(int tag, String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeRawVarInt(tag);
+      writeRawVarInt(bytes.length);
+      writeBytes(bytes);
+    }
+
+    void writeDouble(int tag, double value) {
+      writeRawVarInt(tag);
+      ensureCapacity(8);
+      long bits = Double.doubleToRawLongBits(value);
+      for (int i = 0; i < 8; i++) {
+        buf[size++] = (byte) (bits >>> (8 * i));
+      }
+    }
+
+    void writeVarInt(int tag, long value) {
+      writeRawVarInt(tag);
+      writeRawVarInt(value);
+    }
+
+    void writeMessage(int tag, ProtoBuffer message) {
+      writeRawVarInt(tag);
+      writeRawVarInt(message.size);
+      ensureCapacity(message.size);
+      System.arraycopy(message.buf, 0, buf, size, message.size);
+      size += message.size;
+    }
+
+    void writeBytes(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buf, size, bytes.length);
+      size += bytes.length;
+    }
+
+    private void writeRawVarInt(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buf[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[size++] = (byte) value;
+    }
+
+    private void ensureCapacity(int length) {
+      if (size + length > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + length));
+      }
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measurements of a single put request, reported to a {@link SendListener}.
+ *
+ * <p>The body is encoded, compressed and uploaded in one pass, so the time spent in each stage is
+ * derived from the time spent blocked writing to the next stage. All times are in nanoseconds.
+ */
+public class RequestStats {
+
+  private final int retryCount;
+  private int status = -1;
+  private long rawBytes;
+  private long compressedBytes;
+  private long encodeNanos;
+  private long compressNanos;
+  private long connectNanos;
+  private long uploadNanos;
+  private long serverWaitNanos;
+  private long totalNanos;
+
+  private long requestStart;
+  private long bodyEnd;
+
+  RequestStats(int retryCount) {
+    this.retryCount = retryCount;
+  }
+
+  /**
+   * @return 0 for the first attempt to send the points, 1 for resends of rejected points and replays
+   *     of spooled requests
+   */
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  /**
+   * @return HTTP status of the response, or -1 if no response was received
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return size of the body before compression
+   */
+  public long getRawBytes() {
+    return rawBytes;
+  }
+
+  /**
+   * @return size of the body as sent
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  public long getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  public long getCompressNanos() {
+    return compressNanos;
+  }
+
+  /**
+   * @return time from the start of the request until the body could be written, which includes
+   *     connecting to the server unless a pooled connection was reused
+   */
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+  public long getUploadNanos() {
+    return uploadNanos;
+  }
+
+  /**
+   * @return time from the end of the body until the response status was received
+   */
+  public long getServerWaitNanos() {
+    return serverWaitNanos;
+  }
+
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  void start() {
+    requestStart = System.nanoTime();
+  }
+
+  void responseReceived(int status) {
+    this.status = status;
+    serverWaitNanos = System.nanoTime() - (bodyEnd > 0 ? bodyEnd : requestStart);
+  }
+
+  void finish() {
+    totalNanos = System.nanoTime() - requestStart;
+  }
+
+  /**
+   * Wraps the body writer so that writes to each stage are counted and timed.
+   */
+  HttpTransport.EntityWriter instrument(ContentCodec codec, HttpTransport.EntityWriter entity) {
+    return outputStream -> {
+      long bodyStart = System.nanoTime();
+      connectNanos = bodyStart - requestStart;
+      TimedOutputStream compressed = new TimedOutputStream(outputStream);
+      long[] entityStats = new long[3];
+      try {
+        codec.encode(compressed, rawStream -> {
+          TimedOutputStream raw = new TimedOutputStream(rawStream);
+          long entityStart = System.nanoTime();
+          try {
+            entity.writeTo(raw);
+          } finally {
+            entityStats[0] = System.nanoTime() - entityStart;
+            entityStats[1] = raw.nanos;
+            entityStats[2] = raw.count;
+          }
+        });
+        //push out buffered bytes, so they are timed as upload rather than as server wait
+        compressed.flush();
+      } finally {
+        bodyEnd = System.nanoTime();
+        rawBytes = entityStats[2];
+        compressedBytes = compressed.count;
+        uploadNanos = compressed.nanos;
+        encodeNanos = entityStats[0] - entityStats[1];
+        compressNanos = Math.max(0, bodyEnd - bodyStart - encodeNanos - uploadNanos);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "RequestStats{status=" + status + ", retryCount=" + retryCount + ", rawBytes=" + rawBytes
+        + ", compressedBytes=" + compressedBytes + ", encodeNanos=" + encodeNanos
+        + ", compressNanos=" + compressNanos + ", connectNanos=" + connectNanos
+        + ", uploadNanos=" + uploadNanos + ", serverWaitNanos=" + serverWaitNanos
+        + ", totalNanos=" + totalNanos + "}";
+  }
+
+  /**
+   * Counts the bytes written to the wrapped stream, and the time spent writing them.
+   */
+  private static class TimedOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+    private long nanos = 0;
+
+    private TimedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      out.write(b);
+      nanos += System.nanoTime() - start;
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      nanos += System.nanoTime() - start;
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      out.flush();
+      nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -25,9 +25,10 @@ public class ResponseStatusException extends IOException {
 
     private int httpStatus;
     private String body;
+    private PutResponse putResponse;
 
     public ResponseStatusException(int httpStatus, String body) {
-        this(httpStatus, body, null);
+        this(httpStatus, body, (Throwable) null);
     }
 
     public ResponseStatusException(int httpStatus, String body, Throwable cause) {
@@ -36,6 +37,11 @@ public class ResponseStatusException extends IOException {
         this.body = body;
     }
 
+    public ResponseStatusException(int httpStatus, String body, PutResponse putResponse) {
+        this(httpStatus, body, (Throwable) null);
+        this.putResponse = putResponse;
+    }
+
     public String getMessage() {
         return this.httpStatus + (this.body != null ? " [" + this.body + "]" : "");
     }
@@ -47,4 +53,11 @@ public class ResponseStatusException extends IOException {
     public int getResponseStatus() {
         return httpStatus;
     }
+
+    /**
+     * @return details of the failed points, or null if the response was not a put API details response
+     */
+    public PutResponse getPutResponse() {
+        return putResponse;
+    }
 }
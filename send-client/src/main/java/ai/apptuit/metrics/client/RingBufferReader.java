@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drains the points that a {@link RingBufferSender} in another process writes to a ring buffer
+ * file, for a sidecar that forwards them to Apptuit:
+ *
+ * <pre>{@code
+ * RingBufferReader reader = new RingBufferReader(path);
+ * ApptuitPutClient client = new ApptuitPutClient(token, Collections.emptyMap());
+ * while (running) {
+ *   if (reader.forward(client, 10_000) == 0) {
+ *     Thread.sleep(10);
+ *   }
+ * }
+ * }</pre>
+ *
+ * <p>The points already carry the global tags of the sending process. The series of the points are
+ * interned, so a batch of points of the same metrics shares their series.
+ *
+ * <p>Instances are not thread safe, a ring must have a single reader.
+ */
+public class RingBufferReader implements Closeable {
+
+  private final MappedRing ring;
+  private final SeriesRegistry seriesRegistry = new SeriesRegistry();
+  private final DataPointBatch batch = new DataPointBatch();
+  private byte[] chars = new byte[256];
+
+  /**
+   * Opens the ring in the file, which the sender must have created.
+   *
+   * @throws IOException if the file does not exist or is not a ring buffer
+   */
+  public RingBufferReader(Path file) throws IOException {
+    this.ring = MappedRing.open(file);
+  }
+
+  /**
+   * @return the number of bytes in the ring that have not been drained yet
+   */
+  public long getPendingBytes() {
+    return ring.pendingBytes();
+  }
+
+  /**
+   * Moves up to maxPoints points from the ring to the batch.
+   *
+   * @return the number of points added to the batch
+   */
+  public int drainTo(DataPointBatch batch, int maxPoints) {
+    return ring.poll((buffer, offset, length) -> decode(buffer, offset, batch), maxPoints);
+  }
+
+  /**
+   * Moves up to maxPoints points from the ring and sends them with the client. The points are
+   * removed from the ring before they are sent, and are lost if the send fails.
+   *
+   * @return the number of points sent
+   */
+  public int forward(ApptuitPutClient client, int maxPoints)
+      throws ConnectException, ResponseStatusException, IOException {
+    try {
+      int count = drainTo(batch, maxPoints);
+      client.send(batch);
+      return count;
+    } finally {
+      batch.clear();
+    }
+  }
+
+  private void decode(ByteBuffer buffer, int offset, DataPointBatch batch) {
+    long timestamp = buffer.getLong(offset);
+    boolean isDouble = buffer.get(offset + 8) == RingBufferSender.DOUBLE_VALUE;
+    long bits = buffer.getLong(offset + 9);
+    int tagCount = buffer.getInt(offset + 17);
+    int position = offset + 21;
+    String metric = readString(buffer, position);
+    position += 4 + buffer.getInt(position);
+    Map<String, String> tags = new HashMap<>(tagCount * 2);
+    for (int i = 0; i < tagCount; i++) {
+      String key = readString(buffer, position);
+      position += 4 + buffer.getInt(position);
+      String value = readString(buffer, position);
+      position += 4 + buffer.getInt(position);
+      tags.put(key, value);
+    }
+    Series series = seriesRegistry.intern(metric, tags);
+    if (isDouble) {
+      batch.add(series, timestamp, Double.longBitsToDouble(bits));
+    } else {
+      batch.add(series, timestamp, bits);
+    }
+  }
+
+  private String readString(ByteBuffer buffer, int offset) {
+    int length = buffer.getInt(offset);
+    if (length > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(length, chars.length * 2));
+    }
+    for (int i = 0; i < length; i++) {
+      chars[i] = buffer.get(offset + 4 + i);
+    }
+    return new String(chars, 0, length, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    ring.close();
+  }
+}
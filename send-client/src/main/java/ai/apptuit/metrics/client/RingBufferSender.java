@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends points to a co-located process through a ring buffer in a memory mapped file, which a
+ * {@link RingBufferReader} in that process drains. Sending a point copies it into the shared
+ * memory, with no system call and no network I/O, so a process can report metrics without doing
+ * any I/O itself. A point that does not fit because the reader has fallen behind is dropped.
+ *
+ * <p>Each point is a record of the timestamp, a value type byte, the value as a long or the raw
+ * bits of a double, the number of tags, and then the metric, tag keys and tag values, each as an
+ * int length followed by UTF-8 bytes. The global tags are added to the tags of each point. Names
+ * are not sanitized, that is left to the client that the reader forwards to.
+ *
+ * <p>Instances are thread safe, points sent concurrently are written one send at a time.
+ */
+public class RingBufferSender implements Closeable {
+
+  public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+  static final byte LONG_VALUE = 0;
+  static final byte DOUBLE_VALUE = 1;
+
+  private final Map<String, String> globalTags;
+  private final MappedRing ring;
+  private final RecordEncoder encoder = new RecordEncoder();
+  private final LongAdder pointsSent = new LongAdder();
+  private final LongAdder droppedPoints = new LongAdder();
+
+  public RingBufferSender(Map<String, String> globalTags, Path file) throws IOException {
+    this(globalTags, file, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a sender that writes to the ring in the file, creating the file if it does not exist.
+   *
+   * @param capacity size of the ring in bytes, a power of two
+   */
+  public RingBufferSender(Map<String, String> globalTags, Path file, int capacity) throws IOException {
+    this.globalTags = globalTags != null ? globalTags : Collections.emptyMap();
+    this.ring = MappedRing.create(file, capacity);
+  }
+
+  public long getPointsSent() {
+    return pointsSent.sum();
+  }
+
+  /**
+   * @return the number of points dropped because the ring was full
+   */
+  public long getDroppedPoints() {
+    return droppedPoints.sum();
+  }
+
+  /**
+   * @return the number of bytes in the ring that the reader has not drained yet
+   */
+  public long getPendingBytes() {
+    return ring.pendingBytes();
+  }
+
+  public void send(Collection<DataPoint> dataPoints) {
+    send(dataPoints::forEach);
+  }
+
+  public synchronized void send(DataPointProducer producer) {
+    producer.produce(dp -> {
+      Number value = dp.getValue();
+      boolean isDouble = !(value instanceof Long || value instanceof Integer || value instanceof Short
+          || value instanceof Byte);
+      long bits = isDouble ? Double.doubleToRawLongBits(value.doubleValue()) : value.longValue();
+      offer(dp.getMetric(), dp.getTags(), dp.getTimestamp(), bits, isDouble);
+    });
+  }
+
+  public synchronized void send(DataPointBatch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      Series series = batch.getSeries(i);
+      boolean isDouble = batch.isDouble(i);
+      long bits = isDouble ? Double.doubleToRawLongBits(batch.getDoubleValue(i)) : batch.getLongValue(i);
+      offer(series.getMetric(), series.getTags(), batch.getTimestamp(i), bits, isDouble);
+    }
+  }
+
+  private void offer(String metric, Map<String, String> tags, long timestamp, long bits, boolean isDouble) {
+    encoder.encode(metric, tags, globalTags, timestamp, bits, isDouble);
+    if (ring.offer(encoder.bytes, encoder.length)) {
+      pointsSent.increment();
+    } else {
+      droppedPoints.increment();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    ring.close();
+  }
+
+  /**
+   * Encodes a point into a byte array that is reused for every record.
+   */
+  static final class RecordEncoder {
+
+    private byte[] bytes = new byte[1024];
+    private int length;
+
+    void encode(String metric, Map<String, String> tags, Map<String, String> globalTags,
+        long timestamp, long bits, boolean isDouble) {
+      length = 0;
+      putLong(timestamp);
+      ensure(1);
+      bytes[length++] = isDouble ? DOUBLE_VALUE : LONG_VALUE;
+      putLong(bits);
+      int countOffset = length;
+      putInt(0);
+      putString(metric);
+      int count = 0;
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        if (!globalTags.containsKey(tag.getKey())) {
+          putString(tag.getKey());
+          putString(tag.getValue());
+          count++;
+        }
+      }
+      for (Map.Entry<String, String> tag : globalTags.entrySet()) {
+        putString(tag.getKey());
+        putString(tag.getValue());
+        count++;
+      }
+      writeInt(countOffset, count);
+    }
+
+    private void putLong(long v) {
+      putInt((int) (v >>> 32));
+      putInt((int) v);
+    }
+
+    private void putInt(int v) {
+      ensure(4);
+      writeInt(length, v);
+      length += 4;
+    }
+
+    private void writeInt(int offset, int v) {
+      bytes[offset] = (byte) (v >>> 24);
+      bytes[offset + 1] = (byte) (v >>> 16);
+      bytes[offset + 2] = (byte) (v >>> 8);
+      bytes[offset + 3] = (byte) v;
+    }
+
+    /**
+     * Writes the string as UTF-8, replacing an unpaired surrogate with '?' as
+     * {@link String#getBytes} does.
+     */
+    private void putString(String s) {
+      int len = s.length();
+      ensure(4 + len * 3);
+      int start = length + 4;
+      int pos = start;
+      for (int i = 0; i < len; i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          bytes[pos++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[pos++] = (byte) (0xc0 | (c >> 6));
+          bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+          bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          bytes[pos++] = '?';
+        } else {
+          bytes[pos++] = (byte) (0xe0 | (c >> 12));
+          bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+      writeInt(length, pos - start);
+      length = pos;
+    }
+
+    private void ensure(int size) {
+      if (length + size > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import ai.apptuit.metrics.client.RollupRule.Aggregation;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the points of a report across tags before they are sent, as configured by
+ * {@link RollupRule rules}. The points of a metric that a rule matches are replaced by one point per
+ * series left after dropping the tags of the rule, whose value aggregates the values of the points
+ * rolled up into it. Points of other metrics are passed through as they are.
+ *
+ * <p>Rules are indexed by metric name and prefix, and the series each series of the report rolls
+ * up into is remembered, so that rolling up a point is a lookup of its series and an update of the
+ * aggregate.
+ *
+ * <p>Instances are not thread safe, and are meant to be applied to one report at a time.
+ */
+public class Rollup {
+
+  public static final int DEFAULT_CACHE_CAPACITY = 100_000;
+
+  private static final Target PASS_THROUGH = new Target(null);
+
+  private final Map<String, RollupRule> metricRules = new HashMap<>();
+  private final Map<String, RollupRule> prefixRules = new HashMap<>();
+  private final SeriesRegistry seriesRegistry = new SeriesRegistry();
+  private final ClockCache<Series, Target> targets;
+  private final Map<Series, Aggregate> aggregates = new LinkedHashMap<>();
+
+  public Rollup(Collection<RollupRule> rules) {
+    this(rules, DEFAULT_CACHE_CAPACITY);
+  }
+
+  /**
+   * @param cacheCapacity the number of series whose rolled up series is remembered
+   */
+  public Rollup(Collection<RollupRule> rules, int cacheCapacity) {
+    for (RollupRule rule : rules) {
+      Map<String, RollupRule> index = rule.isPrefix() ? prefixRules : metricRules;
+      if (index.putIfAbsent(rule.getMetric(), rule) != null) {
+        throw new IllegalArgumentException("Duplicate rule for " + rule.getMetric() + ": " + rule);
+      }
+    }
+    this.targets = new ClockCache<>(cacheCapacity);
+  }
+
+  /**
+   * @return the rule for the metric: the rule for its name, else the rule for its longest prefix, or
+   *     null if there is none
+   */
+  RollupRule match(String metric) {
+    RollupRule rule = metricRules.get(metric);
+    if (rule != null || prefixRules.isEmpty()) {
+      return rule;
+    }
+    String prefix = metric;
+    while (true) {
+      rule = prefixRules.get(prefix);
+      if (rule != null) {
+        return rule;
+      }
+      int dot = prefix.lastIndexOf('.');
+      if (dot <= 0) {
+        return null;
+      }
+      prefix = prefix.substring(0, dot);
+    }
+  }
+
+  /**
+   * Adds the points of the batch to out, rolled up. Points passed through are added first, in their
+   * order in the batch, followed by the rolled up points.
+   *
+   * @return out
+   */
+  public DataPointBatch apply(DataPointBatch batch, DataPointBatch out) {
+    for (int i = 0; i < batch.size(); i++) {
+      Series series = batch.getSeries(i);
+      Target target = targets.get(series, this::resolve);
+      if (target == PASS_THROUGH) {
+        if (batch.isDouble(i)) {
+          out.add(series, batch.getTimestamp(i), batch.getDoubleValue(i));
+        } else {
+          out.add(series, batch.getTimestamp(i), batch.getLongValue(i));
+        }
+        continue;
+      }
+      Aggregate aggregate = target.aggregate;
+      if (aggregate.removed) {
+        //Another series that rolls up into it may have added a new aggregate since
+        Aggregate current = aggregates.putIfAbsent(aggregate.series, aggregate);
+        if (current == null) {
+          aggregate.removed = false;
+        } else {
+          aggregate = current;
+        }
+      }
+      if (batch.isDouble(i)) {
+        aggregate.add(batch.getTimestamp(i), batch.getDoubleValue(i));
+      } else {
+        aggregate.add(batch.getTimestamp(i), batch.getLongValue(i));
+      }
+    }
+
+    Iterator<Aggregate> iterator = aggregates.values().iterator();
+    while (iterator.hasNext()) {
+      Aggregate aggregate = iterator.next();
+      if (aggregate.count == 0) {
+        //Nothing rolled up into it in this report, forget it until something is
+        aggregate.removed = true;
+        iterator.remove();
+        continue;
+      }
+      aggregate.addTo(out);
+      aggregate.clear();
+    }
+    return out;
+  }
+
+  private Target resolve(Series series) {
+    RollupRule rule = match(series.getMetric());
+    if (rule == null) {
+      return PASS_THROUGH;
+    }
+    Map<String, String> tags = new HashMap<>(series.getTags());
+    tags.keySet().removeAll(rule.getDroppedTags());
+    Series rolledUp = seriesRegistry.intern(series.getMetric(), tags);
+    Aggregate aggregate = aggregates.get(rolledUp);
+    if (aggregate == null) {
+      aggregate = new Aggregate(rolledUp, rule.getAggregation());
+      aggregates.put(rolledUp, aggregate);
+    }
+    return new Target(aggregate);
+  }
+
+  private static final class Target {
+
+    private final Aggregate aggregate;
+
+    private Target(Aggregate aggregate) {
+      this.aggregate = aggregate;
+    }
+  }
+
+  /**
+   * The aggregate of the points rolled up into a series in the current report.
+   */
+  private static final class Aggregate {
+
+    private final Series series;
+    private final Aggregation aggregation;
+    private boolean removed = false;
+    private int count;
+    private long timestamp;
+    private boolean allLongs;
+    private long longSum;
+    private long longMin;
+    private long longMax;
+    private double sum;
+    private double min;
+    private double max;
+
+    private Aggregate(Series series, Aggregation aggregation) {
+      this.series = series;
+      this.aggregation = aggregation;
+      clear();
+    }
+
+    private void clear() {
+      count = 0;
+      timestamp = Long.MIN_VALUE;
+      allLongs = true;
+      longSum = 0;
+      longMin = Long.MAX_VALUE;
+      longMax = Long.MIN_VALUE;
+      sum = 0;
+      min = Double.POSITIVE_INFINITY;
+      max = Double.NEGATIVE_INFINITY;
+    }
+
+    private void add(long epoch, long value) {
+      longSum += value;
+      longMin = Math.min(longMin, value);
+      longMax = Math.max(longMax, value);
+      accumulate(epoch, value);
+    }
+
+    private void add(long epoch, double value) {
+      allLongs = false;
+      accumulate(epoch, value);
+    }
+
+    private void accumulate(long epoch, double value) {
+      count++;
+      timestamp = Math.max(timestamp, epoch);
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+
+    private void addTo(DataPointBatch out) {
+      switch (aggregation) {
+        case SUM:
+          addTo(out, longSum, sum);
+          break;
+        case MIN:
+          addTo(out, longMin, min);
+          break;
+        case MAX:
+          addTo(out, longMax, max);
+          break;
+        default:
+          out.add(series, timestamp, sum / count);
+          break;
+      }
+    }
+
+    private void addTo(DataPointBatch out, long longValue, double doubleValue) {
+      if (allLongs) {
+        out.add(series, timestamp, longValue);
+      } else {
+        out.add(series, timestamp, doubleValue);
+      }
+    }
+  }
+}
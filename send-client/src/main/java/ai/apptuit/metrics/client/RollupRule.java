@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A rule of a {@link Rollup}: the points of the metrics it matches are aggregated across the tags it
+ * drops, and only the aggregated series are sent. A rule matches a metric by its exact name, or by a
+ * prefix of whole dot separated segments, so that a prefix of {@code kafka.partition} matches
+ * {@code kafka.partition.lag} but not {@code kafka.partitions}.
+ *
+ * <p>Rules see the points before the clients add their global tags, so only the tags of the points
+ * themselves can be dropped.
+ */
+public final class RollupRule {
+
+  private final String metric;
+  private final boolean prefix;
+  private final Aggregation aggregation;
+  private final Set<String> droppedTags;
+
+  private RollupRule(String metric, boolean prefix, Aggregation aggregation, String... droppedTags) {
+    if (metric == null || metric.isEmpty()) {
+      throw new IllegalArgumentException("metric cannot be empty");
+    }
+    if (aggregation == null) {
+      throw new IllegalArgumentException("aggregation cannot be null");
+    }
+    if (droppedTags.length == 0) {
+      throw new IllegalArgumentException("At least one tag has to be dropped");
+    }
+    this.metric = metric;
+    this.prefix = prefix;
+    this.aggregation = aggregation;
+    this.droppedTags = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(droppedTags)));
+  }
+
+  /**
+   * @return a rule for the metric with exactly the name
+   */
+  public static RollupRule forMetric(String metric, Aggregation aggregation, String... droppedTags) {
+    return new RollupRule(metric, false, aggregation, droppedTags);
+  }
+
+  /**
+   * @return a rule for the metrics whose names start with the dot separated segments of the prefix
+   */
+  public static RollupRule forPrefix(String prefix, Aggregation aggregation, String... droppedTags) {
+    return new RollupRule(prefix, true, aggregation, droppedTags);
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public boolean isPrefix() {
+    return prefix;
+  }
+
+  public Aggregation getAggregation() {
+    return aggregation;
+  }
+
+  public Set<String> getDroppedTags() {
+    return droppedTags;
+  }
+
+  @Override
+  public String toString() {
+    return (prefix ? metric + ".*" : metric) + " " + aggregation + " without " + droppedTags;
+  }
+
+  /**
+   * How the values of the points rolled up into a series are combined. SUM, MIN and MAX of long
+   * values are longs, AVG is always a double.
+   */
+  public enum Aggregation {
+    SUM, MIN, MAX, AVG
+  }
+}
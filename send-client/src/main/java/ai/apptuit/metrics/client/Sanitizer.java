@@ -18,6 +18,7 @@ package ai.apptuit.metrics.client;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 public interface Sanitizer {
 
@@ -29,24 +30,33 @@ public interface Sanitizer {
   String sanitizer(String unSanitizedString);
 
   class PrometheusSanitizer implements Sanitizer {
+    private static final CharClassSanitizer ALLOWED_CHARS =
+        new CharClassSanitizer(CharClassSanitizer.asciiAlphaNumerics(), codePoint -> false);
+
     private PrometheusSanitizer() {
     }
 
+    /**
+     * Replaces runs of chars other than [a-zA-Z0-9_] with a single underscore, and prefixes names
+     * that start with a digit with an underscore.
+     */
     public String sanitizer(String unSanitizedString) {
-
-      return ((Character.isDigit(unSanitizedString.charAt(0)) ? "_" : "")
-              + unSanitizedString).replaceAll("[^a-zA-Z0-9_]", "_")
-              .replaceAll("[_]+", "_");
+      return ALLOWED_CHARS.sanitize(unSanitizedString, Character.isDigit(unSanitizedString.charAt(0)));
     }
   }
 
   class ApptuitSanitizer implements Sanitizer {
+    private static final CharClassSanitizer ALLOWED_CHARS =
+        new CharClassSanitizer(CharClassSanitizer.asciiAlphaNumerics() + "-./", Character::isLetter);
+
     private ApptuitSanitizer() {
     }
 
+    /**
+     * Replaces runs of chars other than letters, digits and [-./_] with a single underscore.
+     */
     public String sanitizer(String unSanitizedString) {
-      return unSanitizedString.replaceAll("[^\\p{L}\\-./_0-9]+", "_")
-              .replaceAll("[_]+", "_");
+      return ALLOWED_CHARS.sanitize(unSanitizedString, false);
     }
   }
 
@@ -59,25 +69,53 @@ public interface Sanitizer {
     }
   }
 
-  class CachingSanitizer implements  Sanitizer {
+  /**
+   * Caches the results of another sanitizer. The cache is safe for concurrent use, and is meant to
+   * be kept for the life of a client, so that names are sanitized once rather than on every send.
+   * When the cache is full, entries are evicted with the CLOCK algorithm.
+   */
+  class CachingSanitizer implements Sanitizer {
+    public static final int DEFAULT_CAPACITY = 10000;
+
     Sanitizer sanitizer;
-    private Map<String, String> sanitizedTagsCache = new LRUCachingLinkedHashMap<>(10000);
+    private final ClockCache<String, String> cache;
+    private final Function<String, String> loader = s -> this.sanitizer.sanitizer(s);
+
     public CachingSanitizer(Sanitizer sanitizer1) {
-      sanitizer = sanitizer1;
+      this(sanitizer1, DEFAULT_CAPACITY);
+    }
+
+    public CachingSanitizer(Sanitizer sanitizer, int capacity) {
+      this.cache = new ClockCache<>(capacity);
+      this.sanitizer = sanitizer;
     }
 
     @Override
     public String sanitizer(String unSanitizedString) {
-      String sanitizedString = sanitizedTagsCache.get(unSanitizedString);
-      if (sanitizedString != null) {
-        return sanitizedString;
-      }
-      sanitizedString = this.sanitizer.sanitizer(unSanitizedString);
-      sanitizedTagsCache.put(unSanitizedString, sanitizedString);
-      return sanitizedString;
+      return cache.get(unSanitizedString, loader);
+    }
+
+    public long getHitCount() {
+      return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+      return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+      return cache.getEvictionCount();
+    }
+
+    public int size() {
+      return cache.size();
     }
   }
 
+  /**
+   * @deprecated not safe for concurrent use, {@link CachingSanitizer} no longer uses it
+   */
+  @Deprecated
   class LRUCachingLinkedHashMap<K, V> extends LinkedHashMap<K, V> {
     private int capacity;
     @Override
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+/**
+ * Receives measurements of every request made by {@link ApptuitPutClient} and every packet sent by
+ * {@link XCollectorForwarder}.
+ *
+ * <p>Callbacks are made on the sending thread, after the request completes, so they must be cheap.
+ * Exceptions thrown by a listener are logged and otherwise ignored.
+ */
+@FunctionalInterface
+public interface SendListener {
+
+  /**
+   * Called after each put request, whether it succeeded or failed.
+   */
+  void onRequest(RequestStats stats);
+
+  /**
+   * Called after each UDP packet is sent.
+   *
+   * @param bytes     size of the packet
+   * @param sendNanos time spent in the send call
+   * @param success   false if the packet could not be sent
+   */
+  default void onPacket(int bytes, long sendNanos, boolean success) {
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of sending a collection of points that was split into several requests.
+ */
+public class SendResult {
+
+  private final List<ChunkResult> chunks;
+
+  SendResult(List<ChunkResult> chunks) {
+    this.chunks = Collections.unmodifiableList(chunks);
+  }
+
+  public List<ChunkResult> getChunks() {
+    return chunks;
+  }
+
+  public List<ChunkResult> getFailedChunks() {
+    List<ChunkResult> failed = new ArrayList<>();
+    for (ChunkResult chunk : chunks) {
+      if (!chunk.isSuccess()) {
+        failed.add(chunk);
+      }
+    }
+    return failed;
+  }
+
+  public boolean isSuccess() {
+    for (ChunkResult chunk : chunks) {
+      if (!chunk.isSuccess()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getSentPoints() {
+    int count = 0;
+    for (ChunkResult chunk : chunks) {
+      if (chunk.isSuccess()) {
+        count += chunk.getPointCount();
+      }
+    }
+    return count;
+  }
+
+  public int getFailedPoints() {
+    int count = 0;
+    for (ChunkResult chunk : chunks) {
+      if (!chunk.isSuccess()) {
+        count += chunk.getPointCount();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Throws the error of the first failed chunk, with the errors of the other failed chunks added as
+   * suppressed exceptions. Chunks that were {@link ChunkResult#isSpooled() spooled} will be sent
+   * later, and are not thrown.
+   */
+  public void throwIfFailed() throws IOException {
+    IOException first = null;
+    for (ChunkResult chunk : chunks) {
+      if (chunk.isSuccess() || chunk.isSpooled()) {
+        continue;
+      }
+      if (first == null) {
+        first = chunk.getError();
+      } else if (first != chunk.getError()) {
+        first.addSuppressed(chunk.getError());
+      }
+    }
+    if (first != null) {
+      throw first;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SendResult{chunks=" + chunks.size() + ", sentPoints=" + getSentPoints()
+        + ", failedPoints=" + getFailedPoints() + "}";
+  }
+
+  public static class ChunkResult {
+
+    private final int index;
+    private final int pointCount;
+    private final long byteCount;
+    private final IOException error;
+    private final boolean spooled;
+    private final PutResponse putResponse;
+
+    ChunkResult(int index, int pointCount, long byteCount, IOException error) {
+      this(index, pointCount, byteCount, error, false, null);
+    }
+
+    ChunkResult(int index, int pointCount, long byteCount, IOException error, boolean spooled,
+                PutResponse putResponse) {
+      this.index = index;
+      this.pointCount = pointCount;
+      this.byteCount = byteCount;
+      this.error = error;
+      this.spooled = spooled;
+      this.putResponse = putResponse;
+    }
+
+    /**
+     * @return position of this chunk in the original collection of points
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public int getPointCount() {
+      return pointCount;
+    }
+
+    /**
+     * @return size of the uncompressed request body
+     */
+    public long getByteCount() {
+      return byteCount;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    /**
+     * @return the error that failed this chunk, or null if it was sent successfully
+     */
+    public IOException getError() {
+      return error;
+    }
+
+    /**
+     * @return true if the chunk failed and was saved to the {@link DiskSpool} to be sent later
+     */
+    public boolean isSpooled() {
+      return spooled;
+    }
+
+    /**
+     * @return details returned by the put API for this chunk, or null if the server did not send any
+     */
+    public PutResponse getPutResponse() {
+      return putResponse;
+    }
+
+    @Override
+    public String toString() {
+      return "ChunkResult{index=" + index + ", points=" + pointCount + ", bytes=" + byteCount
+          + (error != null ? ", error=" + error : "") + (spooled ? ", spooled" : "") + "}";
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns {@link Series}, so that each unique metric and tags is held once, with its tags sorted, and
+ * is identified by a stable 64-bit ID. The ID is a hash of the metric and tags; if the hashes of two
+ * live series collide, the later one takes the next free ID.
+ *
+ * <p>Series are weakly held. A series that is no longer referenced outside the registry is dropped,
+ * and is interned again with the same ID, unless its hash collides, the next time it is needed.
+ *
+ * <p>Instances are thread safe.
+ */
+public class SeriesRegistry {
+
+  private final Map<Long, SeriesReference> series = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Series> collected = new ReferenceQueue<>();
+
+  /**
+   * @return the interned series of the metric and tags
+   */
+  public Series intern(String metric, Map<String, String> tags) {
+    if (metric == null) {
+      throw new IllegalArgumentException("metric cannot be null");
+    }
+    if (tags == null) {
+      throw new IllegalArgumentException("Tags cannot be null");
+    }
+    long hash = Series.hash(metric, tags);
+    long id = hash;
+    while (true) {
+      SeriesReference ref = series.get(id);
+      Series existing = ref == null ? null : ref.get();
+      if (existing != null) {
+        if (existing.matches(metric, tags)) {
+          return existing;
+        }
+        id++;
+        continue;
+      }
+      expungeCollected();
+      Series interned = new Series(id, hash, metric, sortedCopy(tags));
+      SeriesReference newRef = new SeriesReference(interned, collected);
+      if (ref == null ? series.putIfAbsent(id, newRef) == null : series.replace(id, ref, newRef)) {
+        return interned;
+      }
+      //Lost a race to intern at this ID, look at it again
+    }
+  }
+
+  /**
+   * @return the live series with the ID, or null if there is none
+   */
+  public Series get(long id) {
+    SeriesReference ref = series.get(id);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * @return the number of series held, including those collected but not yet dropped
+   */
+  public int size() {
+    expungeCollected();
+    return series.size();
+  }
+
+  private void expungeCollected() {
+    SeriesReference ref;
+    while ((ref = (SeriesReference) collected.poll()) != null) {
+      series.remove(ref.id, ref);
+    }
+  }
+
+  private static Map<String, String> sortedCopy(Map<String, String> tags) {
+    if (tags instanceof TagArrayMap) {
+      //Already sorted and immutable
+      return tags;
+    }
+    if (tags.isEmpty()) {
+      return Collections.emptySortedMap();
+    }
+    return Collections.unmodifiableSortedMap(new TreeMap<>(tags));
+  }
+
+  private static final class SeriesReference extends WeakReference<Series> {
+
+    private final long id;
+
+    private SeriesReference(Series series, ReferenceQueue<Series> queue) {
+      super(series, queue);
+      this.id = series.getId();
+    }
+  }
+}
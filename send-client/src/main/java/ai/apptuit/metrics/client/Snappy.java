@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.Arrays;
+
+/**
+ * Compressor for the snappy block format, as expected by Prometheus remote-write endpoints.
+ *
+ * <p>Input is compressed in independent 64KB fragments, like the reference implementation, using a
+ * greedy hash-table match finder. The output is not byte-for-byte identical to the reference
+ * compressor, but is valid input to any snappy decompressor.
+ */
+final class Snappy {
+
+  private static final int BLOCK_SIZE = 1 << 16;
+  private static final int HASH_TABLE_BITS = 14;
+  private static final int MIN_MATCH = 4;
+  private static final int INPUT_MARGIN = 15;
+
+  private static final int TAG_LITERAL = 0x00;
+  private static final int TAG_COPY_1 = 0x01;
+  private static final int TAG_COPY_2 = 0x02;
+
+  private static final ThreadLocal<int[]> HASH_TABLES =
+      ThreadLocal.withInitial(() -> new int[1 << HASH_TABLE_BITS]);
+
+  private Snappy() {
+  }
+
+  static int maxCompressedLength(int length) {
+    return 32 + length + length / 6;
+  }
+
+  /**
+   * Compresses {@code length} bytes of {@code input} into {@code output}, which must have room for
+   * {@link #maxCompressedLength(int)} bytes.
+   *
+   * @return number of bytes written to output
+   */
+  static int compress(byte[] input, int offset, int length, byte[] output) {
+    int op = writeVarInt(output, 0, length);
+    int[] table = HASH_TABLES.get();
+    for (int pos = offset, end = offset + length; pos < end; pos += BLOCK_SIZE) {
+      op = compressFragment(input, pos, Math.min(BLOCK_SIZE, end - pos), output, op, table);
+    }
+    return op;
+  }
+
+  private static int compressFragment(byte[] in, int start, int length, byte[] out, int op, int[] table) {
+    int end = start + length;
+    int nextEmit = start;
+    if (length >= INPUT_MARGIN) {
+      Arrays.fill(table, -1);
+      int limit = end - INPUT_MARGIN;
+      int ip = start;
+      int skip = 32;
+      while (ip <= limit) {
+        int hash = hash(readInt(in, ip));
+        int candidate = table[hash];
+        table[hash] = ip - start;
+        if (candidate < 0 || readInt(in, start + candidate) != readInt(in, ip)) {
+          ip += skip++ >> 5;
+          continue;
+        }
+        candidate += start;
+        op = emitLiteral(in, nextEmit, ip - nextEmit, out, op);
+
+        //extend and emit matches while the data keeps repeating
+        do {
+          int matched = MIN_MATCH;
+          while (ip + matched < end && in[candidate + matched] == in[ip + matched]) {
+            matched++;
+          }
+          op = emitCopy(out, op, ip - candidate, matched);
+          ip += matched;
+          nextEmit = ip;
+          if (ip > limit) {
+            break;
+          }
+          table[hash(readInt(in, ip - 1))] = ip - 1 - start;
+          hash = hash(readInt(in, ip));
+          candidate = table[hash];
+          table[hash] = ip - start;
+          if (candidate < 0) {
+            break;
+          }
+          candidate += start;
+        } while (readInt(in, candidate) == readInt(in, ip));
+        skip = 32;
+        ip++;
+      }
+    }
+    if (nextEmit < end) {
+      op = emitLiteral(in, nextEmit, end - nextEmit, out, op);
+    }
+    return op;
+  }
+
+  private static int emitLiteral(byte[] in, int pos, int length, byte[] out, int op) {
+    if (length == 0) {
+      return op;
+    }
+    int n = length - 1;
+    if (n < 60) {
+      out[op++] = (byte) (TAG_LITERAL | (n << 2));
+    } else {
+      int bytes = n < (1 << 8) ? 1 : n < (1 << 16) ? 2 : n < (1 << 24) ? 3 : 4;
+      out[op++] = (byte) (TAG_LITERAL | ((59 + bytes) << 2));
+      for (int i = 0; i < bytes; i++) {
+        out[op++] = (byte) ((n >> (8 * i)) & 0xff);
+      }
+    }
+    System.arraycopy(in, pos, out, op, length);
+    return op + length;
+  }
+
+  private static int emitCopy(byte[] out, int op, int offset, int length) {
+    while (length >= 68) {
+      op = emitCopyUpTo64(out, op, offset, 64);
+      length -= 64;
+    }
+    if (length > 64) {
+      op = emitCopyUpTo64(out, op, offset, 60);
+      length -= 60;
+    }
+    return emitCopyUpTo64(out, op, offset, length);
+  }
+
+  private static int emitCopyUpTo64(byte[] out, int op, int offset, int length) {
+    if (length < 12 && offset < 2048) {
+      out[op++] = (byte) (TAG_COPY_1 | ((length - 4) << 2) | ((offset >>> 8) << 5));
+      out[op++] = (byte) offset;
+    } else {
+      out[op++] = (byte) (TAG_COPY_2 | ((length - 1) << 2));
+      out[op++] = (byte) offset;
+      out[op++] = (byte) (offset >>> 8);
+    }
+    return op;
+  }
+
+  private static int writeVarInt(byte[] out, int op, int value) {
+    while ((value & ~0x7f) != 0) {
+      out[op++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out[op++] = (byte) value;
+    return op;
+  }
+
+  private static int readInt(byte[] in, int pos) {
+    return (in[pos] & 0xff) | (in[pos + 1] & 0xff) << 8 | (in[pos + 2] & 0xff) << 16 | (in[pos + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int bytes) {
+    return (bytes * 0x1e35a7bd) >>> (32 - HASH_TABLE_BITS);
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable view of tags stored in a sorted array of alternating keys and values. Lookups are
+ * binary searches, and iteration is in key order.
+ */
+final class TagArrayMap extends AbstractMap<String, String> {
+
+  static final String[] NO_TAGS = new String[0];
+
+  private final String[] keyValues;
+  private Set<Entry<String, String>> entrySet;
+
+  /**
+   * @param keyValues keys and values, sorted by key, which must not be modified afterwards
+   */
+  TagArrayMap(String[] keyValues) {
+    this.keyValues = keyValues;
+  }
+
+  @Override
+  public int size() {
+    return keyValues.length / 2;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(keyValues, key) >= 0;
+  }
+
+  @Override
+  public String get(Object key) {
+    int i = indexOf(keyValues, key);
+    return i < 0 ? null : keyValues[i + 1];
+  }
+
+  /**
+   * @return the index of the key in the array, or a negative value if it is not present
+   */
+  static int indexOf(String[] keyValues, Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    int low = 0;
+    int high = keyValues.length / 2 - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = keyValues[mid * 2].compareTo((String) key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid * 2;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new AbstractSet<Entry<String, String>>() {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+          return new Iterator<Entry<String, String>>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+              return i < keyValues.length;
+            }
+
+            @Override
+            public Entry<String, String> next() {
+              if (i >= keyValues.length) {
+                throw new NoSuchElementException();
+              }
+              Entry<String, String> entry = new SimpleImmutableEntry<>(keyValues[i], keyValues[i + 1]);
+              i += 2;
+              return entry;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return TagArrayMap.this.size();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  /**
+   * Merges tags into sorted keys and values with a single copy. Tags given later replace earlier
+   * tags and the sorted tags with the same key, and a tag given with a null value is removed.
+   *
+   * @param sorted keys and values sorted by key
+   * @param tags   keys and values in any order, of which the first {@code length} are merged
+   * @return the merged keys and values, sorted by key
+   */
+  static String[] merge(String[] sorted, String[] tags, int length) {
+    if (length == 0) {
+      return sorted;
+    }
+    String[] added = tags;
+    int count = length;
+    if (length > 2) {
+      added = new String[length];
+      count = sort(tags, length, added);
+    }
+
+    String[] merged = new String[sorted.length + count];
+    int m = 0;
+    int s = 0;
+    int a = 0;
+    while (s < sorted.length && a < count) {
+      int cmp = sorted[s].compareTo(added[a]);
+      if (cmp < 0) {
+        merged[m++] = sorted[s++];
+        merged[m++] = sorted[s++];
+      } else {
+        if (cmp == 0) {
+          s += 2;
+        }
+        m = append(merged, m, added, a);
+        a += 2;
+      }
+    }
+    while (s < sorted.length) {
+      merged[m++] = sorted[s++];
+    }
+    while (a < count) {
+      m = append(merged, m, added, a);
+      a += 2;
+    }
+    return m == merged.length ? merged : Arrays.copyOf(merged, m);
+  }
+
+  /**
+   * Appends the tag at {@code i} unless its value is null, a null value removes the tag.
+   */
+  private static int append(String[] merged, int m, String[] tags, int i) {
+    if (tags[i + 1] != null) {
+      merged[m++] = tags[i];
+      merged[m++] = tags[i + 1];
+    }
+    return m;
+  }
+
+  /**
+   * Insertion sorts the tags into {@code sorted}, tag sets are small. A later tag replaces an earlier
+   * one with the same key.
+   *
+   * @return the length of the sorted keys and values
+   */
+  private static int sort(String[] tags, int length, String[] sorted) {
+    int count = 0;
+    for (int i = 0; i < length; i += 2) {
+      String key = tags[i];
+      int j = count;
+      while (j > 0 && sorted[j - 2].compareTo(key) > 0) {
+        j -= 2;
+      }
+      if (j > 0 && sorted[j - 2].equals(key)) {
+        sorted[j - 1] = tags[i + 1];
+        continue;
+      }
+      System.arraycopy(sorted, j, sorted, j + 2, count - j);
+      sorted[j] = key;
+      sorted[j + 1] = tags[i + 1];
+      count += 2;
+    }
+    return count;
+  }
+
+  static String[] toArray(Map<String, String> tags) {
+    String[] keyValues = new String[tags.size() * 2];
+    int i = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      keyValues[i++] = tag.getKey();
+      keyValues[i++] = tag.getValue();
+    }
+    return keyValues;
+  }
+}
@@ -16,107 +16,144 @@
 
 package ai.apptuit.metrics.client;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
+ * A metric name with tags. The tags are held in a sorted array of alternating keys and values, which
+ * derived names share when their tags do not change. The hash is computed once, and names are
+ * compared structurally: by metric name, then tag by tag.
+ *
  * @author Rajiv Shivane
  */
 public class TagEncodedMetricName implements Comparable<TagEncodedMetricName> {
 
-  private static final Pattern TAG_ENCODED_METRICNAME_PATTERN = Pattern.compile("([^\\[]+)\\[(.*)\\]");
   private static final char TAG_VALUE_SEPARATOR = ':';
 
-  private final Map<String, String> tags;
+  private final String[] tags;
   private final String metricName;
+  private final int hash;
+  private TagArrayMap tagMap;
   private String toString;
 
-  private TagEncodedMetricName(String metricName, Map<String, String> tags) {
+  private TagEncodedMetricName(String metricName, String[] tags) {
     if (metricName == null) {
       throw new IllegalArgumentException("metricName cannot be null");
     }
     this.metricName = metricName;
-    if (tags == null) {
-      this.tags = Collections.emptyMap();
-    } else {
-      this.tags = Collections.unmodifiableMap(tags);
-    }
-
+    this.tags = tags;
+    this.hash = 31 * metricName.hashCode() + Arrays.hashCode(tags);
   }
 
+  /**
+   * Decodes a name of the form {@code metric[tag1:value1,tag2:value2]}. A name without tags, or
+   * without a tag section that ends in {@code ]}, is decoded as the metric name alone.
+   */
   public static TagEncodedMetricName decode(String encodedTagName) {
-    String metricName;
-    Map<String, String> tags = null;
-
-    Matcher matcher = TAG_ENCODED_METRICNAME_PATTERN.matcher(encodedTagName);
-    if (matcher.find() && matcher.groupCount() == 2) {
-      metricName = matcher.group(1);
-      tags = parseTags(matcher.group(2));
-    } else {
-      metricName = encodedTagName;
+    String metricName = encodedTagName;
+    String[] tags = TagArrayMap.NO_TAGS;
+
+    //Matches as find() with ([^\[]+)\[(.*)\] would: the metric name is the run of chars before the
+    //first '[' that has a ']' after it on the same line, the tags end at the last such ']'
+    int length = encodedTagName.length();
+    int start = 0;
+    while (start < length) {
+      int open = encodedTagName.indexOf('[', start);
+      if (open < 0) {
+        break;
+      }
+      if (open > start) {
+        int close = lastCloseBracket(encodedTagName, open + 1);
+        if (close >= 0) {
+          metricName = encodedTagName.substring(start, open);
+          tags = parseTags(encodedTagName, open + 1, close);
+          break;
+        }
+      }
+      start = open + 1;
     }
 
     checkEmpty(metricName, "metricName");
     return new TagEncodedMetricName(metricName, tags);
   }
 
-  private static Map<String, String> parseTags(String tv) {
-    char[] tagValues = tv.toCharArray();
-    Map<String, String> tags = new TreeMap<>();
-    StringBuilder tagValueBuffer = new StringBuilder();
+  /**
+   * @return the index of the last ']' between from and the end of the line, or -1 if there is none
+   */
+  private static int lastCloseBracket(String s, int from) {
+    int close = -1;
+    for (int i = from; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == ']') {
+        close = i;
+      } else if (isLineTerminator(c)) {
+        break;
+      }
+    }
+    return close;
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Parses the tags between from and to into sorted keys and values, a later tag replacing an
+   * earlier one with the same key. Indices in error messages are relative to from.
+   */
+  private static String[] parseTags(String s, int from, int to) {
+    int length = to - from;
+    String[] tags = new String[8];
+    int tagsLength = 0;
+    StringBuilder tagValueBuffer = null;
 
     int last = 0;
     parsing:
-    while (last < tagValues.length) {
+    while (last < length) {
       int cur = last;
 
       //Consume leading whitespace in front of tag
-      while (tagValues[cur] == ' ' || tagValues[cur] == '\t') {
+      while (isWhitespace(s.charAt(from + cur))) {
         cur++;
-        if (cur >= tagValues.length) {
+        if (cur >= length) {
           break parsing;
         }
       }
 
       //Extract Tag
-      while (tagValues[cur] != TAG_VALUE_SEPARATOR) {
+      while (s.charAt(from + cur) != TAG_VALUE_SEPARATOR) {
         cur++;
-        if (cur >= tagValues.length) {
-          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+        if (cur >= length) {
+          throw parseError(s, from, to, last, cur);
         }
       }
-      String k = new String(tagValues, last, cur - last).trim();
+      String k = s.substring(from + last, from + cur).trim();
       checkEmpty(k, "tag");
 
       //Consume the TAG_VALUE_SEPARATOR
-      if (tagValues[cur] == TAG_VALUE_SEPARATOR) {
-        cur++;
-      } else {
-        throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
-      }
+      cur++;
 
       //Consume leading whitespace in front of value
-      while (cur < tagValues.length && (tagValues[cur] == ' ' || tagValues[cur] == '\t')) {
+      while (cur < length && isWhitespace(s.charAt(from + cur))) {
         cur++;
       }
-      if (cur >= tagValues.length) {
-        throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+      if (cur >= length) {
+        throw parseError(s, from, to, last, cur);
       }
 
       last = cur;
       String v;
-      if (tagValues[cur] == '"') {
+      if (s.charAt(from + cur) == '"') {
         cur++;
+        if (tagValueBuffer == null) {
+          tagValueBuffer = new StringBuilder();
+        }
         boolean foundEndQuotedString = false;
-        while (cur < tagValues.length) {
-          char c = tagValues[cur];
+        while (cur < length) {
+          char c = s.charAt(from + cur);
           cur++;
           if (c == '"') {
-            if (cur < tagValues.length && tagValues[cur] == '"') {
+            if (cur < length && s.charAt(from + cur) == '"') {
               //consume escaped quote
               cur++;
             } else {
@@ -127,37 +164,47 @@ public class TagEncodedMetricName implements Comparable<TagEncodedMetricName> {
           tagValueBuffer.append(c);
         }
         if (!foundEndQuotedString) {
-          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+          throw parseError(s, from, to, last, cur);
         }
         v = tagValueBuffer.toString();
         tagValueBuffer.setLength(0);
 
         //Consume trailing whitespace
-        while (cur < tagValues.length && (tagValues[cur] == ' ' || tagValues[cur] == '\t')) {
+        while (cur < length && isWhitespace(s.charAt(from + cur))) {
           cur++;
         }
       } else {
-        while (tagValues[cur] != ',') {
+        while (cur < length && s.charAt(from + cur) != ',') {
           cur++;
-          if (cur >= tagValues.length) {
-            break;
-          }
         }
-        v = new String(tagValues, last, cur - last).trim();
+        v = s.substring(from + last, from + cur).trim();
       }
       checkEmpty(v, "tag value");
-      tags.put(k, v);
+      if (tagsLength == tags.length) {
+        tags = Arrays.copyOf(tags, tagsLength * 2);
+      }
+      tags[tagsLength++] = k;
+      tags[tagsLength++] = v;
 
-      if (cur < tagValues.length) {
-        if (tagValues[cur] == ',') {
+      if (cur < length) {
+        if (s.charAt(from + cur) == ',') {
           cur++;
         } else {
-          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+          throw parseError(s, from, to, last, cur);
         }
       }
       last = cur;
     }
-    return tags;
+    return TagArrayMap.merge(TagArrayMap.NO_TAGS, tags, tagsLength);
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  private static IllegalArgumentException parseError(String s, int from, int to, int last, int cur) {
+    return new IllegalArgumentException("Could not parse tags {" + s.substring(from, to) + "}. Last:" + last
+        + ". Index: " + cur);
   }
 
   private static void checkEmpty(String s, String field) {
@@ -170,52 +217,83 @@ public class TagEncodedMetricName implements Comparable<TagEncodedMetricName> {
     return metricName;
   }
 
+  /**
+   * @return an unmodifiable view of the tags, sorted by key
+   */
   public Map<String, String> getTags() {
-    return tags;
+    TagArrayMap map = tagMap;
+    if (map == null) {
+      map = new TagArrayMap(tags);
+      tagMap = map;
+    }
+    return map;
   }
 
   public TagEncodedMetricName submetric(String suffix) {
-    StringBuilder sb = new StringBuilder();
-    append(sb, metricName);
-    append(sb, suffix);
-    return new TagEncodedMetricName(sb.toString(), tags);
+    return new TagEncodedMetricName(submetricName(metricName, suffix), tags);
   }
 
-  private static void append(StringBuilder builder, String part) {
-    if (part != null && !part.isEmpty()) {
-      if (builder.length() > 0) {
-        builder.append('.');
-      }
-      builder.append(part);
+  private static String submetricName(String metricName, String suffix) {
+    if (suffix == null || suffix.isEmpty()) {
+      return metricName;
+    }
+    if (metricName.isEmpty()) {
+      return suffix;
     }
+    return metricName + '.' + suffix;
   }
 
+  /**
+   * Adds the tags, given as alternating keys and values. A tag with a null value is left out of the
+   * returned name, as is any existing tag with that key. Earlier versions kept the tag with a null
+   * value.
+   */
   public TagEncodedMetricName withTags(String... additionalTags) {
-    Map<String, String> t = tags;
-    if (additionalTags != null && additionalTags.length > 0) {
-      if (additionalTags.length % 2 != 0) {
-        throw new IllegalArgumentException("Additional Tags has to even in count");
-      }
-      t = new TreeMap<>(t);
-      for (int i = 0; i < additionalTags.length; i += 2) {
-        t.put(additionalTags[i], additionalTags[i + 1]);
-      }
+    if (additionalTags == null || additionalTags.length == 0) {
+      return new TagEncodedMetricName(metricName, tags);
+    }
+    if (additionalTags.length % 2 != 0) {
+      throw new IllegalArgumentException("Additional Tags has to even in count");
     }
-    return new TagEncodedMetricName(metricName, t);
+    checkTags(additionalTags, additionalTags.length);
+    return new TagEncodedMetricName(metricName, TagArrayMap.merge(tags, additionalTags, additionalTags.length));
   }
 
 
+  /**
+   * Adds the tags. A tag with a null value is left out of the returned name, as is any existing tag
+   * with that key. Earlier versions kept the tag with a null value.
+   */
   public TagEncodedMetricName withTags(Map<String, String> additionalTags) {
-    Map<String, String> t = tags;
-    if (additionalTags != null && additionalTags.size() > 0) {
-      t = new TreeMap<>(t);
-      t.putAll(additionalTags);
+    if (additionalTags == null || additionalTags.isEmpty()) {
+      return new TagEncodedMetricName(metricName, tags);
     }
-    return new TagEncodedMetricName(metricName, t);
+    String[] added = TagArrayMap.toArray(additionalTags);
+    checkTags(added, added.length);
+    return new TagEncodedMetricName(metricName, TagArrayMap.merge(tags, added, added.length));
+  }
+
+  private static void checkTags(String[] keyValues, int length) {
+    for (int i = 0; i < length; i += 2) {
+      if (keyValues[i] == null) {
+        throw new IllegalArgumentException("tag cannot be null");
+      }
+    }
+  }
+
+  /**
+   * @return a builder that starts with the metric name and tags of this name
+   */
+  public Builder toBuilder() {
+    return new Builder(metricName, tags);
+  }
+
+  public static Builder builder(String metricName) {
+    return new Builder(metricName, TagArrayMap.NO_TAGS);
   }
 
   public String toString() {
-    if (tags.isEmpty()) {
+    if (tags.length == 0) {
       return this.metricName;
     } else {
       if (toString != null) {
@@ -226,26 +304,37 @@ public class TagEncodedMetricName implements Comparable<TagEncodedMetricName> {
     }
   }
 
+  /**
+   * Compares the metric names, then the tags in key order, key before value. A name whose tags are
+   * a prefix of the tags of another name sorts first.
+   */
   @Override
-  public int compareTo(TagEncodedMetricName tagEncodedMetricName) {
-    return toString().compareTo(tagEncodedMetricName.toString());
+  public int compareTo(TagEncodedMetricName other) {
+    int cmp = metricName.compareTo(other.metricName);
+    if (cmp != 0) {
+      return cmp;
+    }
+    int length = Math.min(tags.length, other.tags.length);
+    for (int i = 0; i < length; i++) {
+      cmp = tags[i].compareTo(other.tags[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return tags.length - other.tags.length;
   }
 
   private String createStringRep() {
     StringBuilder sb = new StringBuilder(this.metricName);
-    //sb.append("\n{\n");
     sb.append("[");
-    String prefix = "";
-
-    for (Entry<String, String> tagValuePair : tags.entrySet()) {
-      sb.append(prefix);
-      sb.append(tagValuePair.getKey());
+    for (int i = 0; i < tags.length; i += 2) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(tags[i]);
       sb.append(TAG_VALUE_SEPARATOR);
-      sb.append(escapeTagValue(tagValuePair.getValue()));
-      //prefix = ",\n";
-      prefix = ",";
+      sb.append(escapeTagValue(tags[i + 1]));
     }
-    //sb.append("}\n");
     sb.append("]");
     return sb.toString();
   }
@@ -282,13 +371,101 @@ public class TagEncodedMetricName implements Comparable<TagEncodedMetricName> {
 
     TagEncodedMetricName that = (TagEncodedMetricName) o;
 
-    return metricName.equals(that.metricName) && tags.equals(that.tags);
+    return hash == that.hash && metricName.equals(that.metricName) && Arrays.equals(tags, that.tags);
   }
 
   @Override
   public int hashCode() {
-    int result = metricName.hashCode();
-    result = 31 * result + tags.hashCode();
-    return result;
+    return hash;
+  }
+
+  /**
+   * Builds a name from a metric name and tags, sorting and copying the tags once when the name is
+   * built rather than once per tag.
+   */
+  public static final class Builder {
+
+    private String metricName;
+    private final String[] baseTags;
+    private String[] tags = new String[8];
+    private int tagsLength = 0;
+
+    private Builder(String metricName, String[] baseTags) {
+      this.metricName = metricName;
+      this.baseTags = baseTags;
+    }
+
+    /**
+     * Appends the suffix to the metric name, separated by a dot.
+     */
+    public Builder submetric(String suffix) {
+      metricName = submetricName(metricName, suffix);
+      return this;
+    }
+
+    /**
+     * Adds the tag, replacing any tag with the same key. As with {@link TagEncodedMetricName#withTags},
+     * a null value removes the tag from the built name.
+     */
+    public Builder tag(String key, String value) {
+      if (key == null) {
+        throw new IllegalArgumentException("tag cannot be null");
+      }
+      if (tagsLength == tags.length) {
+        tags = Arrays.copyOf(tags, tagsLength * 2);
+      }
+      tags[tagsLength++] = key;
+      tags[tagsLength++] = value;
+      return this;
+    }
+
+    public Builder tags(Map<String, String> tags) {
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        tag(tag.getKey(), tag.getValue());
+      }
+      return this;
+    }
+
+    public TagEncodedMetricName build() {
+      return new TagEncodedMetricName(metricName, TagArrayMap.merge(baseTags, tags, tagsLength));
+    }
+  }
+
+  /**
+   * Caches decoded names, so that a name that is reported every cycle is decoded once. The cache is
+   * safe for concurrent use, and evicts entries with the CLOCK algorithm when it is full. Names
+   * that fail to decode are not cached.
+   */
+  public static class DecodeCache {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final ClockCache<String, TagEncodedMetricName> cache;
+
+    public DecodeCache() {
+      this(DEFAULT_CAPACITY);
+    }
+
+    public DecodeCache(int capacity) {
+      this.cache = new ClockCache<>(capacity);
+    }
+
+    /**
+     * @return the name as decoded by {@link TagEncodedMetricName#decode}
+     */
+    public TagEncodedMetricName decode(String encodedTagName) {
+      return cache.get(encodedTagName, TagEncodedMetricName::decode);
+    }
+
+    public long getHitCount() {
+      return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+      return cache.getMissCount();
+    }
+
+    public int size() {
+      return cache.size();
+    }
   }
 }
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Forwards points to an OpenTSDB compatible collector as {@code put} lines over a persistent TCP
+ * connection.
+ *
+ * <p>Lines are encoded into a bounded outbound buffer, which a background thread writes to the
+ * connection with non-blocking writes. The connection is opened on the first forward, and is
+ * reopened with an increasing delay if it fails. Buffered lines are kept across reconnects, except a
+ * line that was cut off by the failure.
+ *
+ * <p>When the buffer is full, a forward waits up to the block timeout for it to drain, and then
+ * drops the rest of its lines. {@link #isBackpressured()} is true from the time the buffer fills up
+ * to the high watermark until it drains down to the low watermark, so that callers can hold back
+ * before points are dropped.
+ *
+ * <p>Instances are thread safe.
+ */
+public class TelnetForwarder implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(TelnetForwarder.class.getName());
+
+  private static final String DEFAULT_HOST = "127.0.0.1";
+  public static final int DEFAULT_PORT = 4242;
+
+  private static final int KB = 1024;
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * KB;
+  public static final long DEFAULT_BLOCK_TIMEOUT_MS = 10_000;
+  private static final int CONNECT_TIMEOUT_MS = 5_000;
+  private static final long INITIAL_RECONNECT_DELAY_MS = 100;
+  private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+  private static final long SELECT_TIMEOUT_MS = 1_000;
+  private static final byte[] PUT = "put ".getBytes(StandardCharsets.UTF_8);
+
+  private final Map<String, String> globalTags;
+  private final SocketAddress address;
+  private final long blockTimeoutMillis;
+  private final int highWatermark;
+  private final int lowWatermark;
+  private final Sanitizer defaultSanitizer = new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER);
+  private final Object lock = new Object();
+  private final OutboundBuffer outbound;
+  private final Utf8Writer writer;
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder droppedLines = new LongAdder();
+  private final LongAdder reconnects = new LongAdder();
+  private volatile boolean backpressured = false;
+  private volatile boolean closed = false;
+  private volatile EncodedGlobalTags encodedGlobalTags;
+  private Selector selector;
+  private Thread ioThread;
+
+  public TelnetForwarder(Map<String, String> globalTags) {
+    this(globalTags, new InetSocketAddress(DEFAULT_HOST, DEFAULT_PORT));
+  }
+
+  public TelnetForwarder(Map<String, String> globalTags, SocketAddress address) {
+    this(globalTags, address, DEFAULT_BUFFER_SIZE, DEFAULT_BLOCK_TIMEOUT_MS);
+  }
+
+  /**
+   * @param bufferSize         size of the outbound buffer in bytes. The high and low watermarks are
+   *                           at three quarters and a quarter of it.
+   * @param blockTimeoutMillis how long a forward waits for room in a full buffer before it drops
+   *                           its remaining lines
+   */
+  public TelnetForwarder(Map<String, String> globalTags, SocketAddress address, int bufferSize,
+                         long blockTimeoutMillis) {
+    if (bufferSize < 4 * KB) {
+      throw new IllegalArgumentException("bufferSize too small: " + bufferSize);
+    }
+    if (blockTimeoutMillis < 0) {
+      throw new IllegalArgumentException("blockTimeoutMillis cannot be negative: " + blockTimeoutMillis);
+    }
+    this.globalTags = globalTags;
+    this.address = address;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+    this.highWatermark = bufferSize / 4 * 3;
+    this.lowWatermark = bufferSize / 4;
+    this.outbound = new OutboundBuffer(bufferSize);
+    this.writer = new Utf8Writer(KB).reset(outbound);
+  }
+
+  /**
+   * @return true if the outbound buffer has filled up to the high watermark, and has not yet drained
+   *     down to the low watermark
+   */
+  public boolean isBackpressured() {
+    return backpressured;
+  }
+
+  public int getBufferedBytes() {
+    synchronized (lock) {
+      return outbound.buffer.position();
+    }
+  }
+
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  /**
+   * @return the number of lines dropped because the buffer stayed full, because they were longer than
+   *     the buffer, or because a failed connection cut them off
+   */
+  public long getDroppedLines() {
+    return droppedLines.sum();
+  }
+
+  /**
+   * @return the number of times the connection was opened again after it failed
+   */
+  public long getReconnects() {
+    return reconnects.sum();
+  }
+
+  public void forward(Collection<DataPoint> dataPoints) {
+    forward(dataPoints, defaultSanitizer);
+  }
+
+  public void forward(Collection<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(dataPoints::forEach, sanitizer);
+  }
+
+  public void forward(Iterator<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(DataPointProducer.of(dataPoints), sanitizer);
+  }
+
+  public void forward(Stream<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(DataPointProducer.of(dataPoints), sanitizer);
+  }
+
+  /**
+   * Buffers the points as they are produced. Returns once they are buffered, not once they are sent.
+   */
+  public void forward(DataPointProducer producer, Sanitizer sanitizer) {
+    EncodedGlobalTags encoded = encodeGlobalTags(sanitizer);
+    synchronized (lock) {
+      if (!start()) {
+        return;
+      }
+      try {
+        producer.produce(dp -> {
+          try {
+            writer.writeBytes(PUT);
+            dp.toTextLine(writer, encoded, sanitizer);
+            endLine();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } finally {
+        finishForward();
+      }
+    }
+  }
+
+  /**
+   * Buffers the points of the batch, encoding them straight from its columns.
+   */
+  public void forward(DataPointBatch batch, Sanitizer sanitizer) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    EncodedGlobalTags encoded = encodeGlobalTags(sanitizer);
+    synchronized (lock) {
+      if (!start()) {
+        return;
+      }
+      try {
+        for (int i = 0; i < batch.size(); i++) {
+          writer.writeBytes(PUT);
+          batch.writeTextLine(writer, i, encoded, sanitizer);
+          endLine();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        finishForward();
+      }
+    }
+  }
+
+  /**
+   * Waits up to the block timeout for the buffered lines to be sent, and closes the connection.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+      while (ioThread != null && outbound.buffer.position() > 0 && awaitDrain(deadline)) {
+        //Keep waiting
+      }
+      closed = true;
+      lock.notifyAll();
+    }
+    if (ioThread != null) {
+      ioThread.interrupt();
+      try {
+        ioThread.join(SELECT_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private EncodedGlobalTags encodeGlobalTags(Sanitizer sanitizer) {
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, sanitizer, encodedGlobalTags);
+    encodedGlobalTags = encoded;
+    return encoded;
+  }
+
+  /**
+   * Starts the thread that writes to the connection, if it is not running. Called with the lock held.
+   *
+   * @return false if the forwarder is closed or the thread could not be started
+   */
+  private boolean start() {
+    if (closed) {
+      LOGGER.warning("Forwarder is closed, dropping points");
+      return false;
+    }
+    if (ioThread == null) {
+      try {
+        selector = Selector.open();
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "Error creating selector", e);
+        return false;
+      }
+      ioThread = new Thread(new ConnectionWriter(), "apptuit-telnet-forwarder");
+      ioThread.setDaemon(true);
+      ioThread.start();
+    }
+    outbound.timedOut = false;
+    return true;
+  }
+
+  private void endLine() throws IOException {
+    writer.flush();
+    outbound.endLine();
+    updateBackpressure();
+  }
+
+  private void finishForward() {
+    writer.reset(outbound);
+    outbound.discardLine();
+    selector.wakeup();
+  }
+
+  /**
+   * Waits for the writer thread to drain some of the buffer. Called with the lock held.
+   *
+   * @return false if the deadline passed, the thread was interrupted or the forwarder was closed
+   */
+  private boolean awaitDrain(long deadline) {
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0 || closed) {
+      return false;
+    }
+    selector.wakeup();
+    try {
+      TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void updateBackpressure() {
+    int buffered = outbound.buffer.position();
+    if (!backpressured && buffered >= highWatermark) {
+      backpressured = true;
+    } else if (backpressured && buffered <= lowWatermark) {
+      backpressured = false;
+    }
+  }
+
+  /**
+   * Holds the lines waiting to be sent, followed by the part of the line being written. Guarded by
+   * the lock.
+   */
+  private class OutboundBuffer extends OutputStream {
+
+    private final ByteBuffer buffer;
+    private int lineStart = 0;
+    private boolean dropLine = false;
+    private boolean timedOut = false;
+
+    private OutboundBuffer(int size) {
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void write(int b) {
+      if (makeRoom(1)) {
+        buffer.put((byte) b);
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      if (makeRoom(length)) {
+        buffer.put(bytes, offset, length);
+      }
+    }
+
+    /**
+     * @return true if there is room for the bytes, false if the line is dropped
+     */
+    private boolean makeRoom(int length) {
+      if (dropLine) {
+        return false;
+      }
+      if (length > buffer.capacity() - (buffer.position() - lineStart)) {
+        //Longer than the buffer
+        dropLine = true;
+        return false;
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+      while (length > buffer.remaining()) {
+        if (timedOut || !awaitDrain(deadline)) {
+          timedOut = true;
+          dropLine = true;
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void endLine() {
+      if (dropLine) {
+        discardLine();
+      } else {
+        lineStart = buffer.position();
+      }
+    }
+
+    /**
+     * Discards the part of the line written so far.
+     */
+    private void discardLine() {
+      if (dropLine) {
+        droppedLines.increment();
+        dropLine = false;
+      }
+      buffer.position(lineStart);
+    }
+
+    /**
+     * Writes as many complete lines as the channel accepts without blocking.
+     *
+     * @param skipToNextLine true to drop the bytes up to the start of the next line first
+     * @param midLine        true if the last write on the channel ended in the middle of a line
+     * @return true if the channel is left in the middle of a line
+     */
+    private boolean writeTo(SocketChannel channel, boolean skipToNextLine, boolean midLine) throws IOException {
+      int position = buffer.position();
+      int start = 0;
+      if (skipToNextLine) {
+        while (start < lineStart && buffer.get(start) != '\n') {
+          start++;
+        }
+        start++;
+        droppedLines.increment();
+      }
+      buffer.limit(lineStart);
+      buffer.position(Math.min(start, lineStart));
+      int written = channel.write(buffer);
+      if (written > 0) {
+        midLine = buffer.get(buffer.position() - 1) != '\n';
+      } else if (skipToNextLine) {
+        midLine = false;
+      }
+      bytesSent.add(written);
+      int consumed = buffer.position();
+      buffer.limit(position);
+      buffer.compact();
+      lineStart -= consumed;
+      return midLine;
+    }
+  }
+
+  /**
+   * Connects, and writes the buffered lines whenever the connection accepts them.
+   */
+  private class ConnectionWriter implements Runnable {
+
+    private final ByteBuffer responses = ByteBuffer.allocate(KB);
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connectedBefore = false;
+    private boolean midLine = false;
+    private boolean lineCutOff = false;
+    private long reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          if (channel == null && !connect()) {
+            continue;
+          }
+          boolean pending = write();
+          key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+          selector.select(SELECT_TIMEOUT_MS);
+          selector.selectedKeys().clear();
+          readResponses();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Error writing to " + address + ", reconnecting", e);
+          disconnect();
+        }
+      }
+      disconnect();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Error closing selector", e);
+      }
+    }
+
+    private boolean connect() {
+      try {
+        channel = SocketChannel.open();
+        channel.socket().connect(address, CONNECT_TIMEOUT_MS);
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ);
+        if (connectedBefore) {
+          reconnects.increment();
+        }
+        connectedBefore = true;
+        reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+        return true;
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Error connecting to " + address, e);
+        disconnect();
+        try {
+          Thread.sleep(reconnectDelay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          closed = true;
+        }
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+        return false;
+      }
+    }
+
+    /**
+     * @return true if complete lines are still waiting to be written
+     */
+    private boolean write() throws IOException {
+      synchronized (lock) {
+        if (outbound.lineStart > 0) {
+          midLine = outbound.writeTo(channel, lineCutOff, midLine);
+          lineCutOff = false;
+          updateBackpressure();
+          lock.notifyAll();
+        }
+        return outbound.lineStart > 0;
+      }
+    }
+
+    /**
+     * Discards what the collector sends back, which is only error messages, and detects a closed
+     * connection.
+     */
+    private void readResponses() throws IOException {
+      int read;
+      while ((read = channel.read(responses)) > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine(new String(responses.array(), 0, read, StandardCharsets.UTF_8));
+        }
+        responses.clear();
+      }
+      if (read < 0) {
+        throw new IOException("Connection closed by " + address);
+      }
+    }
+
+    private void disconnect() {
+      if (midLine) {
+        //The rest of the line cannot be sent on another connection
+        lineCutOff = true;
+        midLine = false;
+      }
+      if (key != null) {
+        key.cancel();
+        key = null;
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Error closing connection", e);
+        }
+        channel = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Opens stream connections to Unix domain sockets, which Java supports from version 16. The client
+ * is built for Java 8, so the classes and methods added in 16 are looked up reflectively.
+ */
+final class UnixDomainSockets {
+
+  private static final ProtocolFamily UNIX;
+  private static final Method OPEN_SOCKET_CHANNEL;
+  private static final Method ADDRESS_OF;
+
+  static {
+    ProtocolFamily unix = null;
+    Method openSocketChannel = null;
+    Method addressOf = null;
+    try {
+      unix = StandardProtocolFamily.valueOf("UNIX");
+      openSocketChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+      addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+    } catch (IllegalArgumentException | ReflectiveOperationException e) {
+      unix = null;
+    }
+    UNIX = unix;
+    OPEN_SOCKET_CHANNEL = openSocketChannel;
+    ADDRESS_OF = addressOf;
+  }
+
+  private UnixDomainSockets() {
+  }
+
+  static boolean isSupported() {
+    return UNIX != null;
+  }
+
+  static ProtocolFamily family() {
+    checkSupported();
+    return UNIX;
+  }
+
+  static SocketAddress address(Path path) {
+    checkSupported();
+    try {
+      return (SocketAddress) ADDRESS_OF.invoke(null, path);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      throw rethrow(e.getCause());
+    }
+  }
+
+  /**
+   * @return a blocking channel connected to the socket
+   */
+  static SocketChannel connect(Path path) throws IOException {
+    SocketAddress address = address(path);
+    SocketChannel channel;
+    try {
+      channel = (SocketChannel) OPEN_SOCKET_CHANNEL.invoke(null, UNIX);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw rethrow(e.getCause());
+    }
+    try {
+      channel.connect(address);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private static void checkSupported() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable cause) {
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IllegalStateException(cause);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} on top of {@link HttpURLConnection}.
+ *
+ * <p>Connections are pooled by the JVM wide keep-alive cache of {@link HttpURLConnection}, which also
+ * lets HTTPS connections skip the TLS handshake on reuse. A connection only goes back to the pool
+ * once its response has been read to the end, so {@link Response#close()} drains any unread body.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  public UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  @Override
+  public Response post(URL url, Map<String, String> headers, EntityWriter entity) throws IOException {
+    HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+    urlConnection.setConnectTimeout(connectTimeoutMillis);
+    urlConnection.setReadTimeout(readTimeoutMillis);
+    urlConnection.setChunkedStreamingMode(0);
+    if (headers != null) {
+      headers.forEach(urlConnection::setRequestProperty);
+    }
+    urlConnection.setRequestMethod("POST");
+    urlConnection.setDoInput(true);
+    urlConnection.setDoOutput(true);
+
+    try (OutputStream outputStream = new BufferedOutputStream(urlConnection.getOutputStream(), BUFFER_SIZE)) {
+      entity.writeTo(outputStream);
+      outputStream.flush();
+    }
+    return new UrlConnectionResponse(urlConnection, urlConnection.getResponseCode());
+  }
+
+  private static class UrlConnectionResponse extends Response {
+
+    private final HttpURLConnection urlConnection;
+    private InputStream body;
+
+    private UrlConnectionResponse(HttpURLConnection urlConnection, int status) {
+      super(status);
+      this.urlConnection = urlConnection;
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      if (body == null) {
+        body = getStatus() < HttpURLConnection.HTTP_BAD_REQUEST ? urlConnection.getInputStream()
+            : urlConnection.getErrorStream();
+      }
+      return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+      InputStream inputStream = getBody();
+      if (inputStream == null) {
+        return;
+      }
+      try {
+        byte[] discard = new byte[BUFFER_SIZE];
+        while (inputStream.read(discard) >= 0) {
+          //drain, so the connection can be reused
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+  }
+}
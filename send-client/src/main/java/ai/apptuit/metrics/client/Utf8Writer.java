@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes text as UTF-8 straight into a reusable byte buffer, which is flushed to the target stream
+ * whenever it fills up. Nothing is allocated per write, except when formatting non-integral
+ * floating point numbers.
+ *
+ * <p>Instances are not thread safe.
+ */
+class Utf8Writer {
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] DECIMAL_ZERO = ".0".getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_LONG_DIGITS = 20;
+  private static final int MAX_CHAR_BYTES = 6;
+  private static final double MAX_EXACT_DOUBLE = 1e15;
+
+  /**
+   * For each ASCII char, 0 if it can be written as is in a JSON string, the char to write after the
+   * backslash for short escapes, or 'u' for chars that need a unicode escape.
+   */
+  private static final byte[] JSON_ESCAPES = new byte[128];
+
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      JSON_ESCAPES[i] = 'u';
+    }
+    JSON_ESCAPES['"'] = '"';
+    JSON_ESCAPES['\\'] = '\\';
+    JSON_ESCAPES['\n'] = 'n';
+    JSON_ESCAPES['\r'] = 'r';
+    JSON_ESCAPES['\t'] = 't';
+    JSON_ESCAPES['\b'] = 'b';
+    JSON_ESCAPES['\f'] = 'f';
+  }
+
+  private final byte[] buffer;
+  private int position;
+  private OutputStream out;
+
+  Utf8Writer(int bufferSize) {
+    if (bufferSize < MAX_LONG_DIGITS + MAX_CHAR_BYTES) {
+      throw new IllegalArgumentException("bufferSize too small: " + bufferSize);
+    }
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Discards any buffered bytes and directs further output to the stream.
+   */
+  Utf8Writer reset(OutputStream out) {
+    this.out = out;
+    this.position = 0;
+    return this;
+  }
+
+  Utf8Writer writeByte(int b) throws IOException {
+    ensureCapacity(1);
+    buffer[position++] = (byte) b;
+    return this;
+  }
+
+  Utf8Writer writeBytes(byte[] bytes) throws IOException {
+    return writeBytes(bytes, 0, bytes.length);
+  }
+
+  Utf8Writer writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    if (length > buffer.length - position) {
+      flushBuffer();
+      if (length > buffer.length) {
+        out.write(bytes, offset, length);
+        return this;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, position, length);
+    position += length;
+    return this;
+  }
+
+  /**
+   * Writes the string as UTF-8, without any escaping.
+   */
+  Utf8Writer writeString(String s) throws IOException {
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+      } else {
+        i = writeNonAscii(s, i, c);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Writes the string as UTF-8, escaping the characters that are not allowed in a JSON string.
+   * The enclosing quotes are not written.
+   */
+  Utf8Writer writeJsonString(String s) throws IOException {
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        byte escape = JSON_ESCAPES[c];
+        if (escape == 0) {
+          ensureCapacity(1);
+          buffer[position++] = (byte) c;
+        } else {
+          writeJsonEscape(c, escape);
+        }
+      } else {
+        i = writeNonAscii(s, i, c);
+      }
+    }
+    return this;
+  }
+
+  private void writeJsonEscape(char c, byte escape) throws IOException {
+    ensureCapacity(MAX_CHAR_BYTES);
+    buffer[position++] = '\\';
+    buffer[position++] = escape;
+    if (escape == 'u') {
+      buffer[position++] = '0';
+      buffer[position++] = '0';
+      buffer[position++] = HEX[(c >> 4) & 0xF];
+      buffer[position++] = HEX[c & 0xF];
+    }
+  }
+
+  private int writeNonAscii(String s, int i, char c) throws IOException {
+    ensureCapacity(4);
+    if (c < 0x800) {
+      buffer[position++] = (byte) (0xC0 | (c >> 6));
+      buffer[position++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+        && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int cp = Character.toCodePoint(c, s.charAt(i + 1));
+      buffer[position++] = (byte) (0xF0 | (cp >> 18));
+      buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+      buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+      return i + 1;
+    } else if (Character.isSurrogate(c)) {
+      //unpaired surrogate, same replacement as String.getBytes(UTF_8)
+      buffer[position++] = '?';
+    } else {
+      buffer[position++] = (byte) (0xE0 | (c >> 12));
+      buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buffer[position++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return i;
+  }
+
+  Utf8Writer writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      return writeBytes(MIN_LONG);
+    }
+    ensureCapacity(MAX_LONG_DIGITS);
+    if (value < 0) {
+      buffer[position++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      digits++;
+    }
+    int end = position + digits;
+    for (int i = end - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    position = end;
+    return this;
+  }
+
+  /**
+   * Writes the number in the same notation as {@link String#valueOf(Object)}, except that large
+   * integral doubles are written without an exponent.
+   */
+  Utf8Writer writeNumber(Number number) throws IOException {
+    if (number instanceof Long || number instanceof Integer
+        || number instanceof Short || number instanceof Byte) {
+      return writeLong(number.longValue());
+    }
+    if (number instanceof Double) {
+      return writeDouble(number.doubleValue());
+    }
+    return writeString(String.valueOf(number));
+  }
+
+  Utf8Writer writeDouble(double value) throws IOException {
+    if (value == (long) value && Math.abs(value) < MAX_EXACT_DOUBLE
+        && !(value == 0 && Double.doubleToRawLongBits(value) != 0)) {
+      writeLong((long) value);
+      return writeBytes(DECIMAL_ZERO);
+    }
+    return writeString(Double.toString(value));
+  }
+
+  /**
+   * @return number of bytes buffered and not yet written to the stream
+   */
+  int size() {
+    return position;
+  }
+
+  void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  private void ensureCapacity(int bytes) throws IOException {
+    if (buffer.length - position < bytes) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+}
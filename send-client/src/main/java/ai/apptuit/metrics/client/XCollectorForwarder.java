@@ -16,19 +16,35 @@
 
 package ai.apptuit.metrics.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
+ * Forwards points to xcollector as text lines over UDP. Lines are encoded straight into a direct
+ * buffer that is reused for every packet, and a packet is sent when the next line does not fit. A
+ * line longer than a packet is dropped.
+ *
+ * <p>A forwarder created with a socket path instead sends the lines to a local agent over a Unix
+ * domain stream socket, in the same packet sized writes. The connection is opened when points are
+ * first forwarded, and again by the next forward after it fails. This needs Java 16 or later.
+ *
+ * <p>Instances are thread safe, points forwarded concurrently are sent one forward at a time.
+ *
  * @author Rajiv Shivane
  */
 public class XCollectorForwarder {
@@ -40,11 +56,21 @@ public class XCollectorForwarder {
 
   private static final int KB = 1024;
   private static final int PACKET_SIZE = 8 * KB;
-  private static final int BUFFER_SIZE = 16 * KB;
 
   private final Map<String, String> globalTags;
   private final SocketAddress xcollectorAddress;
-  private DatagramSocket socket = null;
+  private final Path unixSocketPath;
+  private final Sanitizer defaultSanitizer = new Sanitizer.CachingSanitizer(Sanitizer.DEFAULT_SANITIZER);
+  private final PacketBuffer packet = new PacketBuffer();
+  private final Utf8Writer writer = new Utf8Writer(KB).reset(packet);
+  private final LongAdder packetsSent = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder sendErrors = new LongAdder();
+  private final LongAdder droppedLines = new LongAdder();
+  private DatagramChannel channel = null;
+  private SocketChannel stream = null;
+  private volatile SendListener sendListener;
+  private volatile EncodedGlobalTags encodedGlobalTags;
 
   public XCollectorForwarder(Map<String, String> globalTags) {
     this(globalTags, new InetSocketAddress(DEFAULT_HOST, DEFAULT_PORT));
@@ -53,57 +79,278 @@ public class XCollectorForwarder {
   XCollectorForwarder(Map<String, String> globalTags, SocketAddress xcollectorAddress) {
     this.globalTags = globalTags;
     this.xcollectorAddress = xcollectorAddress;
+    this.unixSocketPath = null;
+  }
+
+  /**
+   * Creates a forwarder that sends to the agent listening on the Unix domain socket at the path.
+   *
+   * @throws UnsupportedOperationException if the JVM does not support Unix domain sockets
+   */
+  public XCollectorForwarder(Map<String, String> globalTags, Path unixSocketPath) {
+    if (!UnixDomainSockets.isSupported()) {
+      throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+    }
+    this.globalTags = globalTags;
+    this.xcollectorAddress = null;
+    this.unixSocketPath = unixSocketPath;
+  }
+
+  /**
+   * Sets a listener that is told the size and send time of every packet, or null to measure nothing.
+   */
+  public void setSendListener(SendListener sendListener) {
+    this.sendListener = sendListener;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent.sum();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  public long getSendErrors() {
+    return sendErrors.sum();
+  }
+
+  /**
+   * @return the number of lines dropped because they were longer than a packet
+   */
+  public long getDroppedLines() {
+    return droppedLines.sum();
   }
 
   public void forward(Collection<DataPoint> dataPoints) {
-    forward(dataPoints, Sanitizer.DEFAULT_SANITIZER);
+    forward(dataPoints, defaultSanitizer);
   }
 
   public void forward(Collection<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(dataPoints::forEach, sanitizer);
+  }
 
-    if (socket == null) {
+  public void forward(Iterator<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(DataPointProducer.of(dataPoints), sanitizer);
+  }
+
+  public void forward(Stream<DataPoint> dataPoints, Sanitizer sanitizer) {
+    forward(DataPointProducer.of(dataPoints), sanitizer);
+  }
+
+  /**
+   * Forwards the points as they are produced, buffering no more than one packet.
+   */
+  public synchronized void forward(DataPointProducer producer, Sanitizer sanitizer) {
+    if (!openChannel()) {
+      return;
+    }
+    EncodedGlobalTags encoded = encodeGlobalTags(sanitizer);
+    try {
+      producer.produce(dp -> {
+        try {
+          dp.toTextLine(writer, encoded, sanitizer);
+          endLine();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      packet.sendLines();
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * Forwards the points of the batch, encoding them straight from its columns.
+   */
+  public synchronized void forward(DataPointBatch batch, Sanitizer sanitizer) {
+    if (batch.isEmpty() || !openChannel()) {
+      return;
+    }
+    EncodedGlobalTags encoded = encodeGlobalTags(sanitizer);
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        batch.writeTextLine(writer, i, encoded, sanitizer);
+        endLine();
+      }
+      packet.sendLines();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      clear();
+    }
+  }
+
+  private boolean openChannel() {
+    if (unixSocketPath != null) {
+      return openStream();
+    }
+    if (channel == null || !channel.isOpen()) {
       try {
-        socket = new DatagramSocket();
-      } catch (SocketException e) {
-        LOGGER.log(Level.SEVERE, "Error creating UDP socket", e);
-        return;
+        channel = DatagramChannel.open();
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "Error creating UDP channel", e);
+        return false;
       }
     }
+    return true;
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+  private boolean openStream() {
+    if (stream == null || !stream.isOpen()) {
+      try {
+        stream = UnixDomainSockets.connect(unixSocketPath);
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "Error connecting to " + unixSocketPath, e);
+        stream = null;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private EncodedGlobalTags encodeGlobalTags(Sanitizer sanitizer) {
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, sanitizer, encodedGlobalTags);
+    encodedGlobalTags = encoded;
+    return encoded;
+  }
+
+  private void endLine() throws IOException {
+    writer.flush();
+    packet.endLine();
+  }
+
+  private void clear() {
+    writer.reset(packet);
+    packet.clear();
+  }
 
-    int idx = 0;
-    for (DataPoint dp : dataPoints) {
-      dp.toTextLine(baos, globalTags, sanitizer);
-      int size = baos.size();
-      if (size >= PACKET_SIZE) {
-        sendPacket(baos, idx);
-        idx = baos.size();
+  private void send(ByteBuffer bytes) {
+    int size = bytes.remaining();
+    boolean success = false;
+    long start = System.nanoTime();
+    try {
+      if (stream != null) {
+        while (bytes.hasRemaining()) {
+          stream.write(bytes);
+        }
       } else {
-        idx = size;
+        channel.send(bytes, xcollectorAddress);
+      }
+      success = true;
+      packetsSent.increment();
+      bytesSent.add(size);
+    } catch (IOException e) {
+      sendErrors.increment();
+      if (!(e instanceof ClosedChannelException)) {
+        //Logged once, not again for each packet that follows a failure
+        LOGGER.log(Level.SEVERE, "Error sending packet", e);
       }
+      closeStream();
     }
-    sendPacket(baos, idx);
+    notifyListener(size, System.nanoTime() - start, success);
   }
 
-  private void sendPacket(ByteArrayOutputStream outputStream, int idx) {
-    if (idx <= 0) {
+  private void closeStream() {
+    if (stream == null) {
       return;
     }
-
-    int size = outputStream.size();
-    byte[] bytes = outputStream.toByteArray();
-    DatagramPacket packet = new DatagramPacket(bytes, 0, idx, xcollectorAddress);
     try {
-      socket.send(packet);
-      LOGGER.info(" Forwarded [" + idx + "] bytes.");
+      stream.close();
     } catch (IOException e) {
-      LOGGER.log(Level.SEVERE, "Error sending packet", e);
+      LOGGER.log(Level.FINE, "Error closing connection", e);
+    }
+  }
+
+  private void notifyListener(int bytes, long sendNanos, boolean success) {
+    SendListener listener = this.sendListener;
+    if (listener == null) {
+      return;
+    }
+    try {
+      listener.onPacket(bytes, sendNanos, success);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Error in send listener", e);
+    }
+  }
+
+  /**
+   * Holds the lines of a packet in a direct buffer. When a line does not fit, the complete lines
+   * before it are sent and the part of the line written so far is moved to the start of the buffer.
+   */
+  private class PacketBuffer extends OutputStream {
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+    private int lineStart = 0;
+    private boolean dropLine = false;
+
+    @Override
+    public void write(int b) {
+      if (makeRoom(1)) {
+        buffer.put((byte) b);
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      if (makeRoom(length)) {
+        buffer.put(bytes, offset, length);
+      }
+    }
+
+    /**
+     * @return true if there is room for the bytes, false if the line is too long and is dropped
+     */
+    private boolean makeRoom(int length) {
+      if (dropLine) {
+        return false;
+      }
+      if (length <= buffer.remaining()) {
+        return true;
+      }
+      if (lineStart > 0) {
+        int position = buffer.position();
+        sendLines();
+        buffer.limit(position);
+        buffer.position(lineStart);
+        buffer.compact();
+        lineStart = 0;
+        if (length <= buffer.remaining()) {
+          return true;
+        }
+      }
+      dropLine = true;
+      return false;
+    }
+
+    private void endLine() {
+      if (dropLine) {
+        droppedLines.increment();
+        buffer.position(lineStart);
+        dropLine = false;
+      }
+      lineStart = buffer.position();
     }
-    outputStream.reset();
-    int newSize = size - idx;
-    if (newSize > 0) {
-      outputStream.write(bytes, idx, newSize);
+
+    /**
+     * Sends the complete lines in the buffer, leaving the buffer positioned after them.
+     */
+    private void sendLines() {
+      if (lineStart == 0) {
+        return;
+      }
+      buffer.limit(lineStart);
+      buffer.position(0);
+      send(buffer);
+      buffer.limit(buffer.capacity());
+      buffer.position(lineStart);
+    }
+
+    private void clear() {
+      buffer.clear();
+      lineStart = 0;
+      dropLine = false;
     }
   }
 }
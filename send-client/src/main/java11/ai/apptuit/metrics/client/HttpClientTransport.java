@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+/**
+ * {@link HttpTransport} on top of the {@link HttpClient} added in Java 11.
+ *
+ * <p>The client keeps its own connection pool, negotiates HTTP/2 over TLS where the server supports it
+ * and then multiplexes concurrent requests over a single connection. This class is only compiled on
+ * JDK 11+ and ships in the versioned section of the multi-release jar; {@link HttpTransports} picks it
+ * when it is available.
+ *
+ * <p>The entity is streamed: it is written on the calling thread while the client sends it, one
+ * buffer at a time as the client asks for more, so that the body is never held in memory as a whole.
+ */
+final class HttpClientTransport implements HttpTransport {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final HttpClient client;
+  private final Duration readTimeout;
+
+  HttpClientTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+        .build();
+    this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+  }
+
+  @Override
+  public Response post(URL url, Map<String, String> headers, EntityWriter entity) throws IOException {
+    HttpRequest.Builder builder;
+    try {
+      builder = HttpRequest.newBuilder(url.toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid url: " + url, e);
+    }
+    if (headers != null) {
+      headers.forEach(builder::header);
+    }
+    StreamingBody body = new StreamingBody();
+    HttpRequest request = builder.timeout(readTimeout)
+        .POST(BodyPublishers.fromPublisher(body))
+        .build();
+
+    CompletableFuture<HttpResponse<InputStream>> exchange = client.sendAsync(request, BodyHandlers.ofInputStream());
+    //Once the exchange is over, nothing reads the body, so a blocked writer must give up
+    exchange.whenComplete((response, error) -> body.abort());
+    try {
+      entity.writeTo(body);
+      body.close();
+    } catch (IOException e) {
+      if (!body.isAborted()) {
+        exchange.cancel(true);
+        throw e;
+      }
+      //The client stopped reading the body first: the exchange failed, or the server responded before
+      //reading all of it. Either way the outcome of the exchange says what happened.
+    }
+    return new HttpClientResponse(await(exchange, url));
+  }
+
+  private static HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> exchange, URL url)
+      throws IOException {
+    try {
+      return exchange.get();
+    } catch (InterruptedException e) {
+      exchange.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + url);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Error sending request to " + url, cause);
+    }
+  }
+
+  /**
+   * Request body that is written to as a stream and published to the client in buffers, each one
+   * only once the client has asked for it.
+   */
+  private static final class StreamingBody extends OutputStream implements Flow.Publisher<ByteBuffer> {
+
+    private final Object lock = new Object();
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand = 0;
+    private boolean aborted = false;
+    private boolean closed = false;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      synchronized (lock) {
+        if (this.subscriber != null) {
+          subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+          });
+          subscriber.onError(new IllegalStateException("The request body can only be sent once"));
+          return;
+        }
+        this.subscriber = subscriber;
+      }
+      subscriber.onSubscribe(new Subscription());
+    }
+
+    private boolean isAborted() {
+      synchronized (lock) {
+        return aborted;
+      }
+    }
+
+    private void abort() {
+      synchronized (lock) {
+        aborted = true;
+        lock.notifyAll();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        publish();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          publish();
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (count > 0) {
+        publish();
+      }
+      awaitSubscriber(false).onComplete();
+    }
+
+    private void publish() throws IOException {
+      Flow.Subscriber<? super ByteBuffer> target = awaitSubscriber(true);
+      //The client may still be reading the published buffer, so the next one is a new array
+      target.onNext(ByteBuffer.wrap(buffer, 0, count));
+      buffer = new byte[BUFFER_SIZE];
+      count = 0;
+    }
+
+    private Flow.Subscriber<? super ByteBuffer> awaitSubscriber(boolean needsDemand) throws IOException {
+      synchronized (lock) {
+        while (!aborted && (subscriber == null || (needsDemand && demand == 0))) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the request body");
+          }
+        }
+        if (aborted) {
+          throw new IOException("The request body is no longer being sent");
+        }
+        if (needsDemand) {
+          demand--;
+        }
+        return subscriber;
+      }
+    }
+
+    private final class Subscription implements Flow.Subscription {
+
+      @Override
+      public void request(long n) {
+        synchronized (lock) {
+          demand = n <= 0 || demand + n < 0 ? Long.MAX_VALUE : demand + n;
+          lock.notifyAll();
+        }
+      }
+
+      @Override
+      public void cancel() {
+        abort();
+      }
+    }
+  }
+
+  private static class HttpClientResponse extends Response {
+
+    private final InputStream body;
+
+    private HttpClientResponse(HttpResponse<InputStream> response) {
+      super(response.statusCode());
+      this.body = response.body();
+    }
+
+    @Override
+    public InputStream getBody() {
+      return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        byte[] discard = new byte[BUFFER_SIZE];
+        while (body.read(discard) >= 0) {
+          //drain, so the connection can be reused
+        }
+      } finally {
+        body.close();
+      }
+    }
+  }
+}
@@ -16,15 +16,21 @@
 
 package ai.apptuit.metrics.client;
 
+import static org.awaitility.Awaitility.await;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
 
 import ai.apptuit.metrics.client.ApptuitPutClient.DatapointsHttpEntity;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,14 +39,23 @@ import java.io.PipedOutputStream;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * @author Rajiv Shivane
@@ -50,11 +65,23 @@ public class ApptuitPutClientTest {
 
   private static MockServer httpServer;
 
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   private TagEncodedMetricName tagEncodedMetricName;
   private HashMap<String, String> globalTags;
 
   private static String streamToString(InputStream inputStream) throws IOException {
-    return new Scanner(new GZIPInputStream(inputStream)).useDelimiter("\0").next();
+    return streamToString(inputStream, "gzip");
+  }
+
+  private static String streamToString(InputStream inputStream, String contentEncoding) throws IOException {
+    if ("gzip".equals(contentEncoding)) {
+      inputStream = new GZIPInputStream(inputStream);
+    } else if ("deflate".equals(contentEncoding)) {
+      inputStream = new InflaterInputStream(inputStream);
+    }
+    return new Scanner(inputStream, "UTF-8").useDelimiter("\0").next();
   }
 
   @BeforeClass
@@ -122,6 +149,28 @@ public class ApptuitPutClientTest {
     }
   }
 
+  @Test
+  public void testEntityMarshallingTagMergeAndEscaping() throws Exception {
+    Map<String, String> tags = new LinkedHashMap<>();
+    tags.put("host", "overridden");
+    tags.put("path", "C:\\temp\\\"quoted\"\n");
+    DataPoint dataPoint = new DataPoint("proc.stat.cpu", 1513650393, 0.25d, tags);
+    DatapointsHttpEntity entity = new DatapointsHttpEntity(Collections.singletonList(dataPoint), globalTags,
+        Sanitizer.NO_OP_SANITIZER, false);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    entity.writeTo(baos);
+    JSONArray jsonArray = (JSONArray) new JSONParser().parse(new String(baos.toByteArray(), StandardCharsets.UTF_8));
+    JSONObject json = (JSONObject) jsonArray.get(0);
+
+    assertEquals("proc.stat.cpu", json.get("metric"));
+    assertEquals(1513650393L, json.get("timestamp"));
+    assertEquals(0.25d, json.get("value"));
+    Map<String, String> expectedTags = new HashMap<>(tags);
+    expectedTags.putAll(globalTags);
+    assertEquals(expectedTags, json.get("tags"));
+  }
+
   @Test
   public void testPut200() throws Exception {
     testMethod(0, 200);
@@ -170,6 +219,493 @@ public class ApptuitPutClientTest {
     testAuth(putClient,"Bearer");
   }
 
+  @Test
+  public void testConnectionReuse() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    for (int i = 0; i < 3; i++) {
+      putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+    }
+    List<HttpExchange> exchanges = httpServer.getExchanges();
+    assertEquals(3, exchanges.size());
+    for (HttpExchange exchange : exchanges) {
+      assertEquals(exchanges.get(0).getRemoteAddress(), exchange.getRemoteAddress());
+    }
+  }
+
+  @Test
+  public void testConnectionReuseAfterError() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl(400));
+    for (int i = 0; i < 2; i++) {
+      try {
+        putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+      } catch (ResponseStatusException e) {
+        assertEquals(400, e.getResponseStatus());
+      }
+    }
+    List<HttpExchange> exchanges = httpServer.getExchanges();
+    assertEquals(2, exchanges.size());
+    assertEquals(exchanges.get(0).getRemoteAddress(), exchanges.get(1).getRemoteAddress());
+  }
+
+  @Test
+  public void testSharedTransportUsesHttpClientOnJava11() throws Exception {
+    assumeFalse(System.getProperty("java.specification.version").startsWith("1."));
+    assertSame(HttpTransports.shared(), HttpTransports.shared());
+    assertEquals("HttpClientTransport", HttpTransports.shared().getClass().getSimpleName());
+  }
+
+  @Test
+  public void testSharedTransportPropagatesEntityErrors() throws Exception {
+    IOException error = new IOException("Entity failed");
+    //Not NULs, which the mock server takes for the end of the body and then responds early
+    byte[] content = new byte[256 * 1024];
+    Arrays.fill(content, (byte) 'x');
+    try {
+      HttpTransports.shared().post(httpServer.getUrl(), Collections.emptyMap(), outputStream -> {
+        outputStream.write(content);
+        throw error;
+      }).close();
+      fail("Expected the entity error");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+  }
+
+  @Test(expected = ConnectException.class)
+  public void testSharedTransportStopsWritingOnConnectionError() throws Exception {
+    HttpTransports.shared().post(new URL("http://localhost:123/api/put"), Collections.emptyMap(),
+        outputStream -> outputStream.write(new byte[256 * 1024])).close();
+  }
+
+  @Test
+  public void testUrlConnectionTransportReusesConnection() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setTransport(new UrlConnectionTransport(5000, 15000));
+    for (int i = 0; i < 3; i++) {
+      putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+    }
+    List<HttpExchange> exchanges = httpServer.getExchanges();
+    assertEquals(3, exchanges.size());
+    for (HttpExchange exchange : exchanges) {
+      assertEquals(exchanges.get(0).getRemoteAddress(), exchange.getRemoteAddress());
+    }
+  }
+
+  @Test
+  public void testCustomTransport() throws Exception {
+    List<Map<String, String>> requestHeaders = new ArrayList<>();
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setTransport((url, headers, entity) -> {
+      requestHeaders.add(headers);
+      entity.writeTo(new ByteArrayOutputStream());
+      return new HttpTransport.Response(503) {
+        @Override
+        public InputStream getBody() {
+          return new ByteArrayInputStream("unavailable".getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    });
+    try {
+      putClient.send(createDataPoints(1), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(503, e.getResponseStatus());
+      assertEquals("unavailable", e.getResponseBody());
+    }
+    assertEquals(1, requestHeaders.size());
+    assertEquals("Bearer " + MockServer.token, requestHeaders.get(0).get("Authorization"));
+    assertEquals(0, httpServer.getExchanges().size());
+  }
+
+  @Test
+  public void testSend400Details() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl(400));
+    try {
+      putClient.send(createDataPoints(2), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(MockServer.STATUS400_RESPONSE_BODY, e.getResponseBody());
+      PutResponse details = e.getPutResponse();
+      assertEquals(223, details.getSuccess());
+      assertEquals(2, details.getFailed());
+      assertEquals(2, details.getErrors().size());
+      PutResponse.PointError error = details.getErrors().get(1);
+      assertEquals("Unable to parse value to a number", error.getError());
+      assertEquals("tomcat.requests.duration.mean", error.getDataPoint().getMetric());
+      assertEquals("POST", error.getDataPoint().getTags().get("method"));
+      assertTrue(Double.isNaN(error.getDataPoint().getValue().doubleValue()));
+    }
+  }
+
+  @Test
+  public void testResendTransientRejectedPoints() throws Exception {
+    String details = "{\"success\":8,\"failed\":2,\"errors\":["
+        + "{\"datapoint\":{\"metric\":\"m1\",\"timestamp\":1513650393,\"value\":1,\"tags\":{\"host\":\"a\"}},"
+        + "\"error\":\"Please throttle writes: 1000 RPCs waiting\"},"
+        + "{\"datapoint\":{\"metric\":\"m2\",\"timestamp\":1513650393,\"value\":\"NaN\",\"tags\":{\"host\":\"a\"}},"
+        + "\"error\":\"Unable to parse value to a number\"}]}";
+    List<String> bodies = new ArrayList<>();
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setResendPolicy(PutResponse.TRANSIENT_ERRORS);
+    List<RequestStats> requests = new ArrayList<>();
+    putClient.setSendListener(requests::add);
+    putClient.setTransport((url, headers, entity) -> {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      entity.writeTo(body);
+      bodies.add(streamToString(new ByteArrayInputStream(body.toByteArray())));
+      int status = bodies.size() == 1 ? 400 : 200;
+      String response = bodies.size() == 1 ? details : "{\"success\":1,\"failed\":0,\"errors\":[]}";
+      return new HttpTransport.Response(status) {
+        @Override
+        public InputStream getBody() {
+          return new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    });
+
+    try {
+      putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(400, e.getResponseStatus());
+      assertEquals(9, e.getPutResponse().getSuccess());
+      assertEquals(1, e.getPutResponse().getFailed());
+      assertEquals("m2", e.getPutResponse().getErrors().get(0).getDataPoint().getMetric());
+    }
+    assertEquals(2, bodies.size());
+    DataPoint[] resent = Util.jsonToDataPoints(bodies.get(1));
+    assertEquals(1, resent.length);
+    assertEquals(new DataPoint("m1", 1513650393, 1L, Collections.singletonMap("host", "a")), resent[0]);
+    assertEquals(2, requests.size());
+    assertEquals(0, requests.get(0).getRetryCount());
+    assertEquals(1, requests.get(1).getRetryCount());
+
+    //nothing to resend without a policy
+    bodies.clear();
+    putClient.setResendPolicy(null);
+    try {
+      putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(2, e.getPutResponse().getFailed());
+    }
+    assertEquals(1, bodies.size());
+  }
+
+  @Test
+  public void testSendListener() throws Exception {
+    List<RequestStats> requests = new ArrayList<>();
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setCodec(ContentCodec.GZIP);
+    putClient.setSendListener(requests::add);
+    putClient.send(createDataPoints(50), Sanitizer.NO_OP_SANITIZER);
+
+    assertEquals(1, requests.size());
+    RequestStats stats = requests.get(0);
+    assertEquals(200, stats.getStatus());
+    assertEquals(0, stats.getRetryCount());
+    assertTrue(stats.getRawBytes() > stats.getCompressedBytes());
+    assertTrue(stats.getCompressedBytes() > 0);
+    assertTrue(stats.getEncodeNanos() >= 0);
+    assertTrue(stats.getTotalNanos() >= stats.getServerWaitNanos());
+    assertTrue(stats.getTotalNanos() >= stats.getConnectNanos() + stats.getUploadNanos());
+
+    putClient.setCodec(ContentCodec.NONE);
+    putClient.send(createDataPoints(5), Sanitizer.NO_OP_SANITIZER);
+    stats = requests.get(1);
+    assertEquals(stats.getRawBytes(), stats.getCompressedBytes());
+    assertEquals(httpServer.getRequestBodies().get(1).length(), stats.getRawBytes());
+  }
+
+  @Test
+  public void testSendListenerOnErrors() throws Exception {
+    List<RequestStats> requests = new ArrayList<>();
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl(500));
+    putClient.setSendListener(stats -> {
+      requests.add(stats);
+      throw new IllegalStateException("listener errors must not fail the send");
+    });
+    try {
+      putClient.send(createDataPoints(2), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(500, e.getResponseStatus());
+    }
+    assertEquals(1, requests.size());
+    assertEquals(500, requests.get(0).getStatus());
+
+    putClient = new ApptuitPutClient(MockServer.token, globalTags, new URL("http://localhost:1/"));
+    putClient.setSendListener(requests::add);
+    try {
+      putClient.send(createDataPoints(2), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ConnectException");
+    } catch (ConnectException e) {
+      //expected
+    }
+    assertEquals(2, requests.size());
+    assertEquals(-1, requests.get(1).getStatus());
+  }
+
+  @Test
+  public void testSendWithCodecs() throws Exception {
+    ContentCodec[] codecs = {ContentCodec.NONE, ContentCodec.gzip(Deflater.BEST_SPEED),
+        ContentCodec.deflate(Deflater.BEST_COMPRESSION)};
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    for (ContentCodec codec : codecs) {
+      httpServer.resetCapturedData();
+      putClient.setCodec(codec);
+      ArrayList<DataPoint> dataPoints = createDataPoints(5);
+      putClient.send(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+      Headers headers = httpServer.getExchanges().get(0).getRequestHeaders();
+      assertEquals(codec.getContentEncoding(), headers.getFirst("Content-Encoding"));
+      DataPoint[] unmarshalledDPs = Util.jsonToDataPoints(httpServer.getRequestBodies().get(0));
+      assertEquals(5, unmarshalledDPs.length);
+      assertEquals(getExpectedDataPoint(dataPoints.get(4), globalTags), unmarshalledDPs[4]);
+    }
+  }
+
+  @Test
+  public void testSendIterator() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    putClient.send(dataPoints.iterator(), Sanitizer.NO_OP_SANITIZER);
+    putClient.send(Collections.<DataPoint>emptyIterator(), Sanitizer.NO_OP_SANITIZER);
+
+    assertEquals(1, httpServer.getRequestBodies().size());
+    DataPoint[] unmarshalledDPs = Util.jsonToDataPoints(httpServer.getRequestBodies().get(0));
+    assertEquals(10, unmarshalledDPs.length);
+    for (int i = 0; i < dataPoints.size(); i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags), unmarshalledDPs[i]);
+    }
+  }
+
+  @Test
+  public void testSendStream() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    putClient.send(dataPoints.stream(), Sanitizer.NO_OP_SANITIZER);
+
+    DataPoint[] unmarshalledDPs = Util.jsonToDataPoints(httpServer.getRequestBodies().get(0));
+    assertEquals(10, unmarshalledDPs.length);
+    assertEquals(getExpectedDataPoint(dataPoints.get(9), globalTags), unmarshalledDPs[9]);
+  }
+
+  @Test
+  public void testSendBatch() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    DataPointBatch batch = createBatch(dataPoints);
+    putClient.send(batch, Sanitizer.NO_OP_SANITIZER);
+    putClient.send(new DataPointBatch(), Sanitizer.NO_OP_SANITIZER);
+
+    assertEquals(1, httpServer.getRequestBodies().size());
+    DataPoint[] unmarshalledDPs = Util.jsonToDataPoints(httpServer.getRequestBodies().get(0));
+    assertEquals(10, unmarshalledDPs.length);
+    for (int i = 0; i < dataPoints.size(); i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags), unmarshalledDPs[i]);
+    }
+  }
+
+  @Test
+  public void testSendBatchInChunks() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setMaxPointsPerRequest(4);
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    SendResult result = putClient.sendInChunks(createBatch(dataPoints), Sanitizer.NO_OP_SANITIZER, null);
+
+    assertEquals(3, result.getChunks().size());
+    assertEquals(10, result.getSentPoints());
+    DataPoint[] lastChunk = Util.jsonToDataPoints(httpServer.getRequestBodies().get(2));
+    assertEquals(2, lastChunk.length);
+    assertEquals(getExpectedDataPoint(dataPoints.get(9), globalTags), lastChunk[1]);
+  }
+
+  private DataPointBatch createBatch(List<DataPoint> dataPoints) {
+    DataPointBatch batch = new DataPointBatch(4);
+    DataPointBatch.Series series = new DataPointBatch.Series(tagEncodedMetricName.getMetricName(),
+        tagEncodedMetricName.getTags());
+    for (DataPoint dataPoint : dataPoints) {
+      batch.add(series, dataPoint.getTimestamp(), dataPoint.getValue().longValue());
+    }
+    return batch;
+  }
+
+  @Test
+  public void testSendProducerInChunks() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setMaxPointsPerRequest(3);
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    List<Integer> requestsSeenByProducer = new ArrayList<>();
+    putClient.send(sink -> {
+      for (DataPoint dataPoint : dataPoints) {
+        requestsSeenByProducer.add(httpServer.getRequestBodies().size());
+        sink.accept(dataPoint);
+      }
+    }, Sanitizer.NO_OP_SANITIZER);
+
+    //chunks are sent while the producer is still producing
+    assertEquals(0, (int) requestsSeenByProducer.get(0));
+    assertEquals(2, (int) requestsSeenByProducer.get(9));
+    assertEquals(4, httpServer.getRequestBodies().size());
+    List<DataPoint> received = new ArrayList<>();
+    for (String body : httpServer.getRequestBodies()) {
+      received.addAll(Arrays.asList(Util.jsonToDataPoints(body)));
+    }
+    for (int i = 0; i < dataPoints.size(); i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags), received.get(i));
+    }
+  }
+
+  @Test
+  public void testSplitByPoints() throws Exception {
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setMaxPointsPerRequest(3);
+    ArrayList<DataPoint> dataPoints = createDataPoints(10);
+    putClient.send(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+    List<String> requestBodies = httpServer.getRequestBodies();
+    assertEquals(4, requestBodies.size());
+    List<DataPoint> received = new ArrayList<>();
+    for (String body : requestBodies) {
+      DataPoint[] dps = Util.jsonToDataPoints(body);
+      assertTrue(dps.length <= 3);
+      received.addAll(Arrays.asList(dps));
+    }
+    assertEquals(10, received.size());
+    for (int i = 0; i < dataPoints.size(); i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags), received.get(i));
+    }
+  }
+
+  @Test
+  public void testSplitByBytes() throws Exception {
+    int maxBytes = 1000;
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setMaxBytesPerRequest(maxBytes);
+    putClient.setMaxConcurrentRequests(3);
+    SendResult result = putClient.sendInChunks(createDataPoints(50), Sanitizer.NO_OP_SANITIZER, null);
+
+    assertTrue(result.isSuccess());
+    assertEquals(50, result.getSentPoints());
+    assertTrue(result.getChunks().size() > 1);
+    int received = 0;
+    for (String body : httpServer.getRequestBodies()) {
+      assertTrue(body.getBytes(StandardCharsets.UTF_8).length <= maxBytes);
+      received += Util.jsonToDataPoints(body).length;
+    }
+    assertEquals(50, received);
+    for (int i = 0; i < result.getChunks().size(); i++) {
+      assertEquals(i, result.getChunks().get(i).getIndex());
+    }
+  }
+
+  @Test
+  public void testSplitPartialFailure() throws Exception {
+    AtomicInteger requestCount = new AtomicInteger();
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setMaxPointsPerRequest(4);
+    putClient.setMaxConcurrentRequests(2);
+    putClient.setTransport((url, headers, entity) -> {
+      entity.writeTo(new ByteArrayOutputStream());
+      int status = requestCount.incrementAndGet() == 2 ? 413 : 200;
+      return new HttpTransport.Response(status) {
+        @Override
+        public InputStream getBody() {
+          return null;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    });
+
+    SendResult result = putClient.sendInChunks(createDataPoints(10), Sanitizer.NO_OP_SANITIZER, null);
+    assertEquals(3, result.getChunks().size());
+    assertEquals(1, result.getFailedChunks().size());
+    assertEquals(413, ((ResponseStatusException) result.getFailedChunks().get(0).getError()).getResponseStatus());
+    assertEquals(10, result.getSentPoints() + result.getFailedPoints());
+
+    requestCount.set(0);
+    try {
+      putClient.send(createDataPoints(10), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(413, e.getResponseStatus());
+    }
+  }
+
+  @Test
+  public void testSpoolAndReplay() throws Exception {
+    AtomicInteger status = new AtomicInteger(503);
+    List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    List<Map<String, String>> deliveredHeaders = Collections.synchronizedList(new ArrayList<>());
+    ApptuitPutClient putClient = new ApptuitPutClient(MockServer.token, globalTags, httpServer.getUrl());
+    putClient.setTransport((url, headers, entity) -> {
+      PipedInputStream pis = new PipedInputStream(1024 * 1024);
+      entity.writeTo(new PipedOutputStream(pis));
+      int responseStatus = status.get();
+      if (responseStatus == 200) {
+        delivered.add(streamToString(pis));
+        deliveredHeaders.add(headers);
+      }
+      return new HttpTransport.Response(responseStatus) {
+        @Override
+        public InputStream getBody() {
+          return null;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    });
+    DiskSpool spool = new DiskSpool(tempFolder.newFolder(), 1024 * 1024, 64 * 1024);
+    putClient.setSpool(spool, 100);
+
+    ArrayList<DataPoint> outagePoints = createDataPoints(5);
+    Map<String, String> reqHeaders = Collections.singletonMap("X-Request-Source", "outage");
+    SendResult outageResult = putClient.sendInChunks(outagePoints, Sanitizer.NO_OP_SANITIZER, reqHeaders);
+    assertEquals(5, outageResult.getFailedPoints());
+    assertTrue(outageResult.getFailedChunks().get(0).isSpooled());
+    assertEquals(1, spool.getPendingRecords());
+
+    ArrayList<DataPoint> spooledPoints = createDataPoints(3);
+    putClient.send(spooledPoints, Sanitizer.NO_OP_SANITIZER);
+    assertEquals("Spooled requests are not thrown", 2, spool.getPendingRecords());
+
+    status.set(400);
+    try {
+      putClient.send(createDataPoints(1), Sanitizer.NO_OP_SANITIZER);
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(400, e.getResponseStatus());
+    }
+    assertEquals("Non transient errors are not spooled", 2, spool.getPendingRecords());
+
+    status.set(200);
+    putClient.send(createDataPoints(2), Sanitizer.NO_OP_SANITIZER);
+    await().atMost(5, TimeUnit.SECONDS).until(spool::isEmpty);
+    await().atMost(5, TimeUnit.SECONDS).until(() -> delivered.size() == 3);
+
+    DataPoint[] replayed = Util.jsonToDataPoints(delivered.get(1));
+    assertEquals("outage", deliveredHeaders.get(1).get("X-Request-Source"));
+    assertEquals(5, replayed.length);
+    for (int i = 0; i < replayed.length; i++) {
+      assertEquals(getExpectedDataPoint(outagePoints.get(i), globalTags), replayed[i]);
+    }
+    assertEquals(3, Util.jsonToDataPoints(delivered.get(2)).length);
+  }
+
   private void testAuth(ApptuitPutClient putClient, String authType) throws IOException, ParseException {
     ArrayList<DataPoint> dataPoints = createDataPoints(10);
     putClient.send(dataPoints, Sanitizer.NO_OP_SANITIZER);
@@ -329,7 +865,8 @@ public class ApptuitPutClientTest {
 
     private void handleExchange(HttpExchange exchange) throws IOException {
       exchanges.add(exchange);
-      requestBodies.add(streamToString(exchange.getRequestBody()));
+      requestBodies.add(streamToString(exchange.getRequestBody(),
+          exchange.getRequestHeaders().getFirst("Content-Encoding")));
 
       int status = getResponseType(exchange);
       byte[] response;
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ai.apptuit.metrics.client.AsyncApptuitPutClient.OverflowPolicy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncApptuitPutClientTest {
+
+  private BlockingPutClient putClient;
+  private AsyncApptuitPutClient asyncClient;
+
+  @Before
+  public void setUp() throws Exception {
+    putClient = new BlockingPutClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    putClient.release.countDown();
+    if (asyncClient != null) {
+      asyncClient.close();
+    }
+  }
+
+  @Test
+  public void testSendCompletesFuture() throws Exception {
+    putClient.release.countDown();
+    asyncClient = new AsyncApptuitPutClient(putClient);
+    List<DataPoint> batch = createBatch(3);
+    asyncClient.send(batch).get(5, TimeUnit.SECONDS);
+    assertEquals(1, putClient.sent.size());
+    assertSame(batch, putClient.sent.get(0));
+  }
+
+  @Test
+  public void testSendErrorCompletesExceptionally() throws Exception {
+    putClient.release.countDown();
+    putClient.error = new ResponseStatusException(500, "oops");
+    asyncClient = new AsyncApptuitPutClient(putClient);
+    try {
+      asyncClient.send(createBatch(1)).get(5, TimeUnit.SECONDS);
+      fail("Expected send to fail");
+    } catch (ExecutionException e) {
+      assertSame(putClient.error, e.getCause());
+    }
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    asyncClient = new AsyncApptuitPutClient(putClient, 2, 1, OverflowPolicy.DROP_OLDEST, 0);
+    CompletableFuture<Void> inFlight = asyncClient.send(createBatch(1));
+    putClient.started.await(5, TimeUnit.SECONDS);
+    CompletableFuture<Void> first = asyncClient.send(createBatch(1));
+    CompletableFuture<Void> second = asyncClient.send(createBatch(1));
+    CompletableFuture<Void> third = asyncClient.send(createBatch(1));
+
+    assertRejected(first);
+    assertEquals(1, asyncClient.getDroppedBatches());
+    putClient.release.countDown();
+    CompletableFuture.allOf(inFlight, second, third).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testDropNewest() throws Exception {
+    asyncClient = new AsyncApptuitPutClient(putClient, 2, 1, OverflowPolicy.DROP_NEWEST, 0);
+    CompletableFuture<Void> inFlight = asyncClient.send(createBatch(1));
+    putClient.started.await(5, TimeUnit.SECONDS);
+    CompletableFuture<Void> first = asyncClient.send(createBatch(1));
+    CompletableFuture<Void> second = asyncClient.send(createBatch(1));
+    CompletableFuture<Void> third = asyncClient.send(createBatch(1));
+
+    assertRejected(third);
+    assertEquals(1, asyncClient.getDroppedBatches());
+    putClient.release.countDown();
+    CompletableFuture.allOf(inFlight, first, second).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testBlockTimesOut() throws Exception {
+    asyncClient = new AsyncApptuitPutClient(putClient, 1, 1, OverflowPolicy.BLOCK, 50);
+    asyncClient.send(createBatch(1));
+    putClient.started.await(5, TimeUnit.SECONDS);
+    asyncClient.send(createBatch(1));
+
+    long t0 = System.currentTimeMillis();
+    CompletableFuture<Void> blocked = asyncClient.send(createBatch(1));
+    assertTrue(System.currentTimeMillis() - t0 >= 50);
+    assertRejected(blocked);
+  }
+
+  @Test
+  public void testSendAfterClose() throws Exception {
+    putClient.release.countDown();
+    asyncClient = new AsyncApptuitPutClient(putClient);
+    asyncClient.close();
+    assertRejected(asyncClient.send(createBatch(1)));
+  }
+
+  @Test
+  public void testCloseDrainsQueue() throws Exception {
+    asyncClient = new AsyncApptuitPutClient(putClient);
+    CompletableFuture<Void> first = asyncClient.send(createBatch(1));
+    CompletableFuture<Void> second = asyncClient.send(createBatch(1));
+    putClient.release.countDown();
+    asyncClient.close();
+    assertTrue(first.isDone() && !first.isCompletedExceptionally());
+    assertTrue(second.isDone() && !second.isCompletedExceptionally());
+    assertEquals(0, asyncClient.getQueueSize());
+  }
+
+  @Test
+  public void testSendsRacingCloseAllComplete() throws Exception {
+    putClient.release.countDown();
+    asyncClient = new AsyncApptuitPutClient(putClient, 4, 1, OverflowPolicy.DROP_OLDEST, 0);
+    List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(() -> {
+        CompletableFuture<Void> future;
+        do {
+          future = asyncClient.send(createBatch(1));
+          futures.add(future);
+        } while (!future.isCompletedExceptionally());
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    Thread.sleep(20);
+    asyncClient.close();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    for (CompletableFuture<Void> future : futures) {
+      assertTrue(future.isDone());
+    }
+  }
+
+  private void assertRejected(CompletableFuture<Void> future) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected batch to be rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  private List<DataPoint> createBatch(int size) {
+    List<DataPoint> dataPoints = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      dataPoints.add(new DataPoint("proc.stat.cpu", System.currentTimeMillis() / 1000, i,
+          Collections.singletonMap("type", "idle")));
+    }
+    return dataPoints;
+  }
+
+  private static class BlockingPutClient extends ApptuitPutClient {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Collection<DataPoint>> sent = Collections.synchronizedList(new ArrayList<>());
+    private volatile IOException error;
+
+    BlockingPutClient() {
+      super("token", Collections.emptyMap());
+    }
+
+    @Override
+    public void send(Collection<DataPoint> dataPoints) throws IOException {
+      send(dataPoints, Sanitizer.NO_OP_SANITIZER);
+    }
+
+    @Override
+    public void send(Collection<DataPoint> dataPoints, Sanitizer sanitizer) throws IOException {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      if (error != null) {
+        throw error;
+      }
+      sent.add(dataPoints);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class ContentCodecTest {
+
+  @Test
+  public void testIdentity() throws Exception {
+    byte[] body = createBody(1000);
+    assertNull(ContentCodec.NONE.getContentEncoding());
+    assertArrayEquals(body, encode(ContentCodec.NONE, body));
+  }
+
+  @Test
+  public void testGzipRoundTrip() throws Exception {
+    ContentCodec codec = ContentCodec.gzip(Deflater.BEST_SPEED);
+    assertEquals("gzip", codec.getContentEncoding());
+    for (int size : new int[]{0, 1, 1000, 100_000}) {
+      byte[] body = createBody(size);
+      assertArrayEquals(body, decode(new GZIPInputStream(new ByteArrayInputStream(encode(codec, body)))));
+    }
+  }
+
+  @Test
+  public void testDeflateRoundTrip() throws Exception {
+    ContentCodec codec = ContentCodec.deflate(Deflater.DEFAULT_COMPRESSION);
+    assertEquals("deflate", codec.getContentEncoding());
+    for (int size : new int[]{0, 1, 1000, 100_000}) {
+      byte[] body = createBody(size);
+      assertArrayEquals(body, decode(new InflaterInputStream(new ByteArrayInputStream(encode(codec, body)))));
+    }
+  }
+
+  @Test
+  public void testLevels() throws Exception {
+    byte[] body = createBody(100_000);
+    int stored = encode(ContentCodec.gzip(Deflater.NO_COMPRESSION), body).length;
+    int fast = encode(ContentCodec.gzip(Deflater.BEST_SPEED), body).length;
+    int best = encode(ContentCodec.gzip(Deflater.BEST_COMPRESSION), body).length;
+    assertTrue(stored > body.length);
+    assertTrue(fast < stored);
+    assertTrue(best <= fast);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLevel() throws Exception {
+    ContentCodec.gzip(10);
+  }
+
+  @Test
+  public void testEncodeFailureDoesNotCorruptPool() throws Exception {
+    ContentCodec codec = ContentCodec.gzip(Deflater.BEST_SPEED);
+    try {
+      codec.encode(new ByteArrayOutputStream(), out -> {
+        out.write(createBody(100));
+        throw new IOException("entity failed");
+      });
+    } catch (IOException expected) {
+      //expected
+    }
+    byte[] body = createBody(1000);
+    assertArrayEquals(body, decode(new GZIPInputStream(new ByteArrayInputStream(encode(codec, body)))));
+  }
+
+  @Test
+  public void testConcurrentEncoding() throws Exception {
+    ContentCodec codec = ContentCodec.gzip(Deflater.DEFAULT_COMPRESSION);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        byte[] body = createBody(i * 500);
+        results.add(executor.submit(() -> {
+          byte[] encoded = encode(codec, body);
+          return Arrays.equals(body, decode(new GZIPInputStream(new ByteArrayInputStream(encoded))));
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  static byte[] createBody(int size) {
+    Random random = new Random(size);
+    StringBuilder sb = new StringBuilder(size + 100);
+    while (sb.length() < size) {
+      sb.append("{\"metric\":\"proc.stat.cpu\",\"timestamp\":").append(1513650393 + random.nextInt(60))
+          .append(",\"value\":").append(random.nextDouble()).append(",\"tags\":{\"host\":\"host-")
+          .append(random.nextInt(10)).append("\"}},");
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  static byte[] encode(ContentCodec codec, byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.encode(out, stream -> stream.write(body));
+    return out.toByteArray();
+  }
+
+  private static byte[] decode(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int read;
+    while ((read = in.read(buf)) > 0) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
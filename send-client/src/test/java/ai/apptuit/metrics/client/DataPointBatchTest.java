@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class DataPointBatchTest {
+
+  private static final Map<String, String> TAGS = Collections.singletonMap("host", "web-1");
+  private static final DataPointBatch.Series CPU = new DataPointBatch.Series("proc.stat.cpu", TAGS);
+  private static final DataPointBatch.Series MEM = new DataPointBatch.Series("proc.meminfo", TAGS);
+
+  @Test
+  public void testAddAndGrow() throws Exception {
+    DataPointBatch batch = new DataPointBatch(2);
+    for (int i = 0; i < 5; i++) {
+      batch.add(CPU, 1500000000L + i, i);
+    }
+    batch.add(MEM, 1500000010L, 2.5);
+
+    assertEquals(6, batch.size());
+    assertSame(CPU, batch.getSeries(4));
+    assertEquals(1500000004L, batch.getTimestamp(4));
+    assertFalse(batch.isDouble(4));
+    assertEquals(4, batch.getLongValue(4));
+    assertTrue(batch.isDouble(5));
+    assertEquals(2.5, batch.getDoubleValue(5), 0);
+    assertEquals(2, batch.getLongValue(5));
+    assertEquals(new DataPoint("proc.stat.cpu", 1500000004L, 4L, TAGS), batch.getDataPoint(4));
+    assertEquals(new DataPoint("proc.meminfo", 1500000010L, 2.5, TAGS), batch.getDataPoint(5));
+  }
+
+  @Test
+  public void testClearKeepsCapacity() throws Exception {
+    DataPointBatch batch = new DataPointBatch(2);
+    batch.add(CPU, 1, 1L);
+    batch.add(CPU, 2, 2L);
+    batch.clear();
+    assertTrue(batch.isEmpty());
+    batch.add(MEM, 3, 3L);
+    assertEquals(1, batch.size());
+    assertSame(MEM, batch.getSeries(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testIndexBeyondSize() throws Exception {
+    DataPointBatch batch = new DataPointBatch();
+    batch.add(CPU, 1, 1L);
+    batch.getTimestamp(1);
+  }
+
+  @Test
+  public void testForEach() throws Exception {
+    DataPointBatch batch = new DataPointBatch();
+    batch.add(CPU, 1, 1L);
+    batch.add(MEM, 2, 0.5);
+    List<DataPoint> dataPoints = new ArrayList<>();
+    batch.forEach(dataPoints::add);
+    assertEquals(2, dataPoints.size());
+    assertEquals(batch.getDataPoint(1), dataPoints.get(1));
+  }
+
+  @Test
+  public void testTextLineMatchesDataPoint() throws Exception {
+    DataPointBatch batch = new DataPointBatch();
+    batch.add(CPU, 1500000000L, 42L);
+    batch.add(MEM, 1500000000L, 0.75);
+    Map<String, String> globalTags = Collections.singletonMap("dc", "us-east");
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, Sanitizer.PROMETHEUS_SANITIZER, null);
+    for (int i = 0; i < batch.size(); i++) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      batch.getDataPoint(i).toTextLine(expected, globalTags, Sanitizer.PROMETHEUS_SANITIZER);
+
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      Utf8Writer writer = new Utf8Writer(64).reset(actual);
+      batch.writeTextLine(writer, i, encoded, Sanitizer.PROMETHEUS_SANITIZER);
+      writer.flush();
+      assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+          new String(actual.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testJsonMatchesDataPoints() throws Exception {
+    DataPointBatch batch = new DataPointBatch();
+    batch.add(CPU, 1500000000L, 42L);
+    batch.add(MEM, 1500000000L, 0.75);
+    batch.add(MEM, 1500000001L, Double.NaN);
+    Map<String, String> globalTags = Collections.singletonMap("host", "global");
+    List<DataPoint> dataPoints = new ArrayList<>();
+    batch.forEach(dataPoints::add);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new ApptuitPutClient.DatapointsHttpEntity(dataPoints, globalTags, Sanitizer.PROMETHEUS_SANITIZER,
+        ContentCodec.NONE).writeTo(expected);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new ApptuitPutClient.DatapointsHttpEntity(batch,
+        EncodedGlobalTags.encode(globalTags, Sanitizer.PROMETHEUS_SANITIZER, null),
+        Sanitizer.PROMETHEUS_SANITIZER).writeTo(actual);
+    assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+        new String(actual.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
@@ -18,12 +18,17 @@ package ai.apptuit.metrics.client;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -210,6 +215,59 @@ public class DataPointTest {
             out.toString());
   }
 
+  @Test
+  public void testToTextGlobalTagsOverridePointTags() throws Exception {
+    Map<String, String> tags = new LinkedHashMap<>();
+    tags.put("host", "local");
+    tags.put("type", "idle");
+    DataPoint dataPoint = new DataPoint("proc.stat.cpu", 1500000000L, 0.5, tags);
+    Map<String, String> globalTags = new LinkedHashMap<>();
+    globalTags.put("host", "global");
+    globalTags.put("dc", "us-east");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    dataPoint.toTextLine(out, globalTags, Sanitizer.NO_OP_SANITIZER);
+
+    assertEquals("proc.stat.cpu 1500000000 0.5 type=idle host=global dc=us-east\n",
+            new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testTextLineWriterMatchesToTextLine() throws Exception {
+    Map<String, String> globalTags = new LinkedHashMap<>();
+    globalTags.put("host", "global");
+    globalTags.put("dc", "us east");
+    DataPoint dp1 = new DataPoint("proc.stat.cpu", 1500000000L, 0.5, Collections.singletonMap("host", "local"));
+    DataPoint dp2 = new DataPoint("proc.stat.mem", 1500000001L, 2, Collections.singletonMap("type", "free"));
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    dp1.toTextLine(expected, globalTags, Sanitizer.PROMETHEUS_SANITIZER);
+    dp2.toTextLine(expected, globalTags, Sanitizer.PROMETHEUS_SANITIZER);
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    Consumer<DataPoint> writer = DataPoint.textLineWriter(actual, globalTags, Sanitizer.PROMETHEUS_SANITIZER);
+    writer.accept(dp1);
+    writer.accept(dp2);
+
+    assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+            new String(actual.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testEncodedGlobalTagsCached() throws Exception {
+    Map<String, String> globalTags = Collections.singletonMap("host", "a\"b");
+    EncodedGlobalTags encoded = EncodedGlobalTags.encode(globalTags, Sanitizer.NO_OP_SANITIZER, null);
+    assertSame(encoded, EncodedGlobalTags.encode(globalTags, Sanitizer.NO_OP_SANITIZER, encoded));
+    assertNotSame(encoded, EncodedGlobalTags.encode(globalTags, Sanitizer.PROMETHEUS_SANITIZER, encoded));
+    assertSame(EncodedGlobalTags.NONE, EncodedGlobalTags.encode(null, Sanitizer.NO_OP_SANITIZER, encoded));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utf8Writer writer = new Utf8Writer(64).reset(out);
+    encoded.writeJson(writer, Collections.singletonMap("host", "local"), Sanitizer.NO_OP_SANITIZER);
+    writer.flush();
+    assertEquals("\"host\":\"a\\\"b\"", new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
   @Test
   public void testToJsonNoTags() throws Exception {
     long epoch = System.currentTimeMillis();
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskSpoolTest {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = folder.newFolder("spool");
+  }
+
+  @Test
+  public void testReplayInOrder() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    for (int i = 0; i < 20; i++) {
+      append(spool, 1000 + i, "record-" + i);
+    }
+    assertEquals(20, spool.getPendingRecords());
+
+    List<String> replayed = new ArrayList<>();
+    List<Long> timestamps = new ArrayList<>();
+    assertEquals(20, spool.replay((timestamp, data) -> {
+      timestamps.add(timestamp);
+      replayed.add(new String(data, StandardCharsets.UTF_8));
+    }, 100));
+
+    for (int i = 0; i < 20; i++) {
+      assertEquals("record-" + i, replayed.get(i));
+      assertEquals(1000L + i, (long) timestamps.get(i));
+    }
+    assertTrue(spool.isEmpty());
+    assertEquals(0, spool.replay((timestamp, data) -> replayed.add("unexpected"), 100));
+  }
+
+  @Test
+  public void testReplayStopsOnFailure() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    append(spool, 1, "first");
+    append(spool, 2, "second");
+
+    assertEquals(0, spool.replay((timestamp, data) -> {
+      throw new IOException("endpoint down");
+    }, 10));
+    assertEquals(2, spool.getPendingRecords());
+
+    List<String> replayed = new ArrayList<>();
+    assertEquals(1, spool.replay((timestamp, data) -> replayed.add(new String(data, StandardCharsets.UTF_8)), 1));
+    assertEquals("first", replayed.get(0));
+    assertEquals(1, spool.getPendingRecords());
+  }
+
+  @Test
+  public void testRecoveryAfterRestart() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    for (int i = 0; i < 10; i++) {
+      append(spool, i, "record-" + i);
+    }
+    spool.replay((timestamp, data) -> {
+    }, 3);
+    spool.close();
+
+    DiskSpool recovered = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    assertEquals(7, recovered.getPendingRecords());
+    List<String> replayed = new ArrayList<>();
+    recovered.replay((timestamp, data) -> replayed.add(new String(data, StandardCharsets.UTF_8)), 100);
+    assertEquals(7, replayed.size());
+    assertEquals("record-3", replayed.get(0));
+    assertEquals("record-9", replayed.get(6));
+  }
+
+  @Test
+  public void testCloseDuringReplay() throws Exception {
+    assertTrue(MappedBuffers.isSupported());
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    append(spool, 1, "first");
+    append(spool, 2, "second");
+
+    assertEquals(0, spool.replay((timestamp, data) -> spool.close(), 10));
+    assertEquals(0, spool.getPendingRecords());
+
+    DiskSpool recovered = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    assertEquals("A record handled as the spool closed stays pending", 2, recovered.getPendingRecords());
+  }
+
+  @Test
+  public void testRecoveryDiscardsCorruptRecords() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    append(spool, 1, "good");
+    append(spool, 2, "corrupt");
+    append(spool, 3, "after");
+    spool.close();
+
+    File[] segments = directory.listFiles();
+    assertEquals(1, segments.length);
+    try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+      // payload of the second record, after the 17 byte headers and the payload of the first
+      file.seek(17 + 4 + 17);
+      file.write('X');
+    }
+
+    DiskSpool recovered = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    assertEquals(1, recovered.getPendingRecords());
+    List<String> replayed = new ArrayList<>();
+    recovered.replay((timestamp, data) -> replayed.add(new String(data, StandardCharsets.UTF_8)), 100);
+    assertEquals(1, replayed.size());
+    assertEquals("good", replayed.get(0));
+
+    append(recovered, 4, "new");
+    recovered.replay((timestamp, data) -> replayed.add(new String(data, StandardCharsets.UTF_8)), 100);
+    assertEquals("new", replayed.get(1));
+  }
+
+  @Test
+  public void testDiskBudgetDropsOldest() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+    for (int i = 0; i < 30; i++) {
+      append(spool, i, "record-" + i);
+    }
+    assertTrue(spool.getDiskBytes() <= 2 * SEGMENT_SIZE);
+    assertTrue(spool.getDroppedRecords() > 0);
+    assertEquals(30, spool.getDroppedRecords() + spool.getPendingRecords());
+
+    List<String> replayed = new ArrayList<>();
+    spool.replay((timestamp, data) -> replayed.add(new String(data, StandardCharsets.UTF_8)), 100);
+    assertEquals("record-29", replayed.get(replayed.size() - 1));
+  }
+
+  @Test
+  public void testRecordLargerThanSegment() throws Exception {
+    DiskSpool spool = new DiskSpool(directory, 10 * SEGMENT_SIZE, SEGMENT_SIZE);
+    byte[] large = new byte[2 * SEGMENT_SIZE];
+    large[large.length - 1] = 42;
+    spool.append(1, large, 0, large.length);
+    List<byte[]> replayed = new ArrayList<>();
+    spool.replay((timestamp, data) -> replayed.add(data), 1);
+    assertEquals(large.length, replayed.get(0).length);
+    assertEquals(42, replayed.get(0)[large.length - 1]);
+  }
+
+  private void append(DiskSpool spool, long timestamp, String data) throws IOException {
+    byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+    spool.append(timestamp, bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * An in-process stand-in for the ingest endpoints, for load and resilience tests that exercise the
+ * network stack. It accepts the put API over HTTP, gzip or deflate encoded or not, xcollector lines
+ * over UDP, and {@code put} lines over TCP, and decodes the points it receives.
+ *
+ * <p>Faults can be injected into the put API: latency, slow reads of the request body, scripted or
+ * random error responses, 413 for bodies over a size, 429 above a rate of points, and connections
+ * closed without a response. TCP connections can be read slowly and reset.
+ *
+ * <p>Counters record requests, responses by status, bytes on the wire, and the points decoded and
+ * accepted, from which the throughput is derived.
+ */
+public class MockIngestServer implements Closeable {
+
+  public static final String PUT_PATH = "/api/put";
+
+  private static final int UDP_PACKET_SIZE = 64 * 1024;
+
+  private final HttpServer httpServer;
+  private final ExecutorService httpExecutor = Executors.newCachedThreadPool(daemonThreads("mock-ingest-http"));
+  private final DatagramSocket udpSocket;
+  private final ServerSocket tcpSocket;
+  private final List<Socket> connections = Collections.synchronizedList(new ArrayList<>());
+  private final List<DataPoint> points = Collections.synchronizedList(new ArrayList<>());
+  private final Map<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder droppedConnections = new LongAdder();
+  private final LongAdder wireBytes = new LongAdder();
+  private final LongAdder pointsReceived = new LongAdder();
+  private final LongAdder pointsAccepted = new LongAdder();
+  private final LongAdder udpPackets = new LongAdder();
+  private final LongAdder lines = new LongAdder();
+  private final LongAdder tcpConnections = new LongAdder();
+  private final AtomicInteger failuresPending = new AtomicInteger();
+  private final AtomicInteger closesPending = new AtomicInteger();
+  private volatile long startNanos = System.nanoTime();
+
+  private volatile boolean recordPoints = false;
+  private volatile long latencyMillis = 0;
+  private volatile int slowReadChunkBytes = 0;
+  private volatile long slowReadDelayMillis = 0;
+  private volatile int pendingFailureStatus = HttpURLConnection.HTTP_UNAVAILABLE;
+  private volatile double failureRate = 0;
+  private volatile int failureStatus = HttpURLConnection.HTTP_UNAVAILABLE;
+  private volatile long maxBodyBytes = Long.MAX_VALUE;
+  private volatile long maxPointsPerSecond = Long.MAX_VALUE;
+  private volatile long tcpLineDelayMillis = 0;
+  private volatile int tcpResetEveryLines = 0;
+  private final Random random = new Random(42);
+  private long throttleWindowStart = System.nanoTime();
+  private long throttleWindowPoints = 0;
+
+  public MockIngestServer() throws IOException {
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    httpServer = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+    httpServer.createContext(PUT_PATH, this::handlePut);
+    httpServer.setExecutor(httpExecutor);
+    httpServer.start();
+    udpSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+    tcpSocket = new ServerSocket(0, 50, loopback);
+    startThread("mock-ingest-udp", this::receiveUdp);
+    startThread("mock-ingest-tcp", this::acceptTcp);
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return r -> {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static void startThread(String name, Runnable runnable) {
+    daemonThreads(name).newThread(runnable).start();
+  }
+
+  public URL getPutUrl() throws MalformedURLException {
+    return new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + PUT_PATH);
+  }
+
+  public InetSocketAddress getUdpAddress() {
+    return new InetSocketAddress("127.0.0.1", udpSocket.getLocalPort());
+  }
+
+  public InetSocketAddress getTcpAddress() {
+    return new InetSocketAddress("127.0.0.1", tcpSocket.getLocalPort());
+  }
+
+  /**
+   * Keeps the decoded points, for {@link #getPoints()}. Off by default, to not hold on to the points
+   * of a soak test.
+   */
+  public MockIngestServer setRecordPoints(boolean recordPoints) {
+    this.recordPoints = recordPoints;
+    return this;
+  }
+
+  /**
+   * Delays every put request before its body is read.
+   */
+  public MockIngestServer setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+    return this;
+  }
+
+  /**
+   * Reads put request bodies chunkBytes at a time, sleeping delayMillis after each chunk, so that
+   * the client blocks writing the body. A chunk size of 0 reads at full speed.
+   */
+  public MockIngestServer setSlowRead(int chunkBytes, long delayMillis) {
+    this.slowReadChunkBytes = chunkBytes;
+    this.slowReadDelayMillis = delayMillis;
+    return this;
+  }
+
+  /**
+   * Responds to the next count put requests with the status, after reading their bodies.
+   */
+  public MockIngestServer failNext(int count, int status) {
+    this.pendingFailureStatus = status;
+    failuresPending.set(count);
+    return this;
+  }
+
+  /**
+   * Responds to each put request with the status with the given probability.
+   */
+  public MockIngestServer setFailureRate(double rate, int status) {
+    this.failureStatus = status;
+    this.failureRate = rate;
+    return this;
+  }
+
+  /**
+   * Closes the connection of the next count put requests without reading them or responding. The
+   * JDK HTTP server does not expose its sockets, so the connection is closed with a FIN rather than
+   * reset, use {@link #setTcpResetEveryLines(int)} to reset connections.
+   */
+  public MockIngestServer closeNext(int count) {
+    closesPending.set(count);
+    return this;
+  }
+
+  /**
+   * Responds with 413 to put requests whose body on the wire is larger than maxBodyBytes.
+   */
+  public MockIngestServer setMaxBodyBytes(long maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+    return this;
+  }
+
+  /**
+   * Responds with 429 and a Retry-After of one second to put requests that take the points accepted
+   * in the current second above maxPointsPerSecond.
+   */
+  public MockIngestServer setMaxPointsPerSecond(long maxPointsPerSecond) {
+    this.maxPointsPerSecond = maxPointsPerSecond;
+    return this;
+  }
+
+  /**
+   * Sleeps delayMillis after each line read from a TCP connection.
+   */
+  public MockIngestServer setTcpLineDelayMillis(long delayMillis) {
+    this.tcpLineDelayMillis = delayMillis;
+    return this;
+  }
+
+  /**
+   * Resets each TCP connection after it has sent the given number of lines, or never if 0.
+   */
+  public MockIngestServer setTcpResetEveryLines(int lines) {
+    this.tcpResetEveryLines = lines;
+    return this;
+  }
+
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  public long getResponseCount(int status) {
+    LongAdder count = responses.get(status);
+    return count == null ? 0 : count.sum();
+  }
+
+  /**
+   * @return the number of put request connections closed and TCP connections reset as an injected
+   *     fault
+   */
+  public long getDroppedConnectionCount() {
+    return droppedConnections.sum();
+  }
+
+  /**
+   * @return the bytes of put request bodies as sent, before decompression, and of UDP and TCP lines
+   */
+  public long getWireBytes() {
+    return wireBytes.sum();
+  }
+
+  /**
+   * @return the number of points decoded, including those of requests that were failed
+   */
+  public long getPointsReceived() {
+    return pointsReceived.sum();
+  }
+
+  /**
+   * @return the number of points decoded from successful put requests, UDP packets and TCP lines
+   */
+  public long getPointsAccepted() {
+    return pointsAccepted.sum();
+  }
+
+  public long getUdpPacketCount() {
+    return udpPackets.sum();
+  }
+
+  public long getLineCount() {
+    return lines.sum();
+  }
+
+  public long getTcpConnectionCount() {
+    return tcpConnections.sum();
+  }
+
+  /**
+   * @return the points accepted per second since the server was created or last reset
+   */
+  public double getThroughput() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return pointsAccepted.sum() / seconds;
+  }
+
+  /**
+   * @return the accepted points, if they are being recorded
+   */
+  public List<DataPoint> getPoints() {
+    synchronized (points) {
+      return new ArrayList<>(points);
+    }
+  }
+
+  /**
+   * Clears the counters and recorded points. Faults stay as they are set.
+   */
+  public void reset() {
+    for (LongAdder counter : new LongAdder[]{requests, droppedConnections, wireBytes, pointsReceived, pointsAccepted,
+        udpPackets, lines, tcpConnections}) {
+      counter.reset();
+    }
+    responses.clear();
+    points.clear();
+    startNanos = System.nanoTime();
+  }
+
+  private void handlePut(HttpExchange exchange) throws IOException {
+    requests.increment();
+    if (decrementIfPositive(closesPending)) {
+      droppedConnections.increment();
+      exchange.close();
+      return;
+    }
+    sleep(latencyMillis);
+
+    byte[] body = readBody(exchange.getRequestBody());
+    wireBytes.add(body.length);
+    List<DataPoint> decoded;
+    try {
+      decoded = decodeJson(decompress(body, exchange.getRequestHeaders().getFirst("Content-Encoding")));
+    } catch (IOException | ParseException | RuntimeException e) {
+      respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Unable to parse request: " + e);
+      return;
+    }
+    pointsReceived.add(decoded.size());
+
+    int status = chooseStatus(body.length, decoded.size());
+    if (status != HttpURLConnection.HTTP_OK) {
+      if (status == 429) {
+        exchange.getResponseHeaders().add("Retry-After", "1");
+      }
+      respond(exchange, status, "{\"success\":0,\"failed\":" + decoded.size() + ",\"errors\":[]}");
+      return;
+    }
+    accept(decoded);
+    respond(exchange, status, "{\"success\":" + decoded.size() + ",\"failed\":0,\"errors\":[]}");
+  }
+
+  private int chooseStatus(int bodyBytes, int pointCount) {
+    if (decrementIfPositive(failuresPending)) {
+      return pendingFailureStatus;
+    }
+    if (failureRate > 0) {
+      synchronized (random) {
+        if (random.nextDouble() < failureRate) {
+          return failureStatus;
+        }
+      }
+    }
+    if (bodyBytes > maxBodyBytes) {
+      return HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+    }
+    if (isThrottled(pointCount)) {
+      return 429;
+    }
+    return HttpURLConnection.HTTP_OK;
+  }
+
+  private synchronized boolean isThrottled(int pointCount) {
+    long now = System.nanoTime();
+    if (now - throttleWindowStart >= 1_000_000_000L) {
+      throttleWindowStart = now;
+      throttleWindowPoints = 0;
+    }
+    if (throttleWindowPoints + pointCount > maxPointsPerSecond) {
+      return true;
+    }
+    throttleWindowPoints += pointCount;
+    return false;
+  }
+
+  private byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int chunk = slowReadChunkBytes;
+    byte[] buffer = new byte[chunk > 0 ? chunk : 64 * 1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+      if (chunk > 0) {
+        sleep(slowReadDelayMillis);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static InputStream decompress(byte[] body, String contentEncoding) throws IOException {
+    InputStream in = new ByteArrayInputStream(body);
+    if ("gzip".equalsIgnoreCase(contentEncoding)) {
+      return new GZIPInputStream(in);
+    }
+    if ("deflate".equalsIgnoreCase(contentEncoding)) {
+      return new InflaterInputStream(in);
+    }
+    return in;
+  }
+
+  private static List<DataPoint> decodeJson(InputStream in) throws IOException, ParseException {
+    JSONArray array = (JSONArray) new JSONParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    List<DataPoint> decoded = new ArrayList<>(array.size());
+    for (Object o : array) {
+      JSONObject point = (JSONObject) o;
+      Map<String, String> tags = new HashMap<>();
+      JSONObject jsonTags = (JSONObject) point.get("tags");
+      if (jsonTags != null) {
+        for (Object tag : jsonTags.entrySet()) {
+          Map.Entry<?, ?> entry = (Map.Entry<?, ?>) tag;
+          tags.put((String) entry.getKey(), String.valueOf(entry.getValue()));
+        }
+      }
+      decoded.add(new DataPoint((String) point.get("metric"), ((Number) point.get("timestamp")).longValue(),
+          (Number) point.get("value"), tags));
+    }
+    return decoded;
+  }
+
+  /**
+   * Decodes a line in the OpenTSDB text format, with or without the {@code put} command.
+   */
+  static DataPoint decodeLine(String line) {
+    String[] fields = line.trim().split(" +");
+    int i = "put".equals(fields[0]) ? 1 : 0;
+    String metric = fields[i];
+    long timestamp = Long.parseLong(fields[i + 1]);
+    String value = fields[i + 2];
+    Number number = value.matches("-?\\d+") ? (Number) Long.parseLong(value) : (Number) Double.parseDouble(value);
+    Map<String, String> tags = new HashMap<>();
+    for (int t = i + 3; t < fields.length; t++) {
+      int eq = fields[t].indexOf('=');
+      tags.put(fields[t].substring(0, eq), fields[t].substring(eq + 1));
+    }
+    return new DataPoint(metric, timestamp, number, tags);
+  }
+
+  private void accept(List<DataPoint> decoded) {
+    pointsAccepted.add(decoded.size());
+    if (recordPoints) {
+      points.addAll(decoded);
+    }
+  }
+
+  private void acceptLine(String line) {
+    if (line.isEmpty()) {
+      return;
+    }
+    lines.increment();
+    wireBytes.add(line.getBytes(StandardCharsets.UTF_8).length + 1);
+    DataPoint dp;
+    try {
+      dp = decodeLine(line);
+    } catch (RuntimeException e) {
+      return;
+    }
+    pointsReceived.increment();
+    accept(Collections.singletonList(dp));
+  }
+
+  private void respond(HttpExchange exchange, int status, String body) throws IOException {
+    responses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private void receiveUdp() {
+    byte[] buffer = new byte[UDP_PACKET_SIZE];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (!udpSocket.isClosed()) {
+      try {
+        packet.setLength(buffer.length);
+        udpSocket.receive(packet);
+      } catch (IOException e) {
+        //Closed
+        return;
+      }
+      udpPackets.increment();
+      String text = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+      for (String line : text.split("\n")) {
+        acceptLine(line);
+      }
+    }
+  }
+
+  private void acceptTcp() {
+    while (!tcpSocket.isClosed()) {
+      try {
+        Socket socket = tcpSocket.accept();
+        tcpConnections.increment();
+        connections.add(socket);
+        startThread("mock-ingest-tcp-reader", () -> readTcp(socket));
+      } catch (IOException e) {
+        //Closed
+      }
+    }
+  }
+
+  private void readTcp(Socket socket) {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+      int count = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        acceptLine(line);
+        sleep(tcpLineDelayMillis);
+        int resetEvery = tcpResetEveryLines;
+        if (resetEvery > 0 && ++count >= resetEvery) {
+          droppedConnections.increment();
+          //Linger of 0 makes close send a RST rather than a FIN
+          socket.setSoLinger(true, 0);
+          socket.close();
+          return;
+        }
+      }
+    } catch (IOException e) {
+      //Closed
+    } finally {
+      connections.remove(socket);
+    }
+  }
+
+  private static boolean decrementIfPositive(AtomicInteger counter) {
+    return counter.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0;
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpServer.stop(0);
+    httpExecutor.shutdownNow();
+    udpSocket.close();
+    tcpSocket.close();
+    synchronized (connections) {
+      for (Socket socket : new ArrayList<>(connections)) {
+        socket.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MockIngestServerTest {
+
+  private MockIngestServer server;
+  private Map<String, String> globalTags;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new MockIngestServer().setRecordPoints(true);
+    globalTags = new HashMap<>();
+    globalTags.put("host", "rajiv");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testPutDecodesGzipPoints() throws Exception {
+    ApptuitPutClient client = new ApptuitPutClient("token", globalTags, server.getPutUrl());
+    client.send(createPoints(100));
+
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, server.getResponseCount(HttpURLConnection.HTTP_OK));
+    assertEquals(100, server.getPointsAccepted());
+    DataPoint first = server.getPoints().get(0);
+    assertEquals("proc_stat_cpu", first.getMetric());
+    assertEquals(0L, first.getValue());
+    assertEquals("rajiv", first.getTags().get("host"));
+    assertTrue(server.getWireBytes() > 0);
+  }
+
+  @Test
+  public void testScriptedFailures() throws Exception {
+    ApptuitPutClient client = new ApptuitPutClient("token", globalTags, server.getPutUrl());
+    server.failNext(2, HttpURLConnection.HTTP_UNAVAILABLE);
+    for (int i = 0; i < 2; i++) {
+      assertStatus(client, HttpURLConnection.HTTP_UNAVAILABLE);
+    }
+    client.send(createPoints(10));
+
+    assertEquals(2, server.getResponseCount(HttpURLConnection.HTTP_UNAVAILABLE));
+    assertEquals(30, server.getPointsReceived());
+    assertEquals(10, server.getPointsAccepted());
+  }
+
+  @Test
+  public void testTooLargeAndThrottled() throws Exception {
+    ApptuitPutClient client = new ApptuitPutClient("token", globalTags, server.getPutUrl());
+    server.setMaxBodyBytes(10);
+    assertStatus(client, HttpURLConnection.HTTP_ENTITY_TOO_LARGE);
+
+    server.setMaxBodyBytes(Long.MAX_VALUE).setMaxPointsPerSecond(15);
+    client.send(createPoints(10));
+    assertStatus(client, 429);
+    assertEquals(10, server.getPointsAccepted());
+  }
+
+  @Test
+  public void testClosedConnectionAndLatency() throws Exception {
+    ApptuitPutClient client = new ApptuitPutClient("token", globalTags, server.getPutUrl());
+    server.closeNext(1);
+    try {
+      client.send(createPoints(10));
+      fail("Expected the connection to be closed");
+    } catch (IOException e) {
+      assertEquals(1, server.getDroppedConnectionCount());
+    }
+
+    server.setLatencyMillis(200).setSlowRead(512, 10);
+    long start = System.nanoTime();
+    client.send(createPoints(100));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(100, server.getPointsAccepted());
+  }
+
+  @Test
+  public void testUdpLines() throws Exception {
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags, server.getUdpAddress());
+    forwarder.forward(createPoints(1000));
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> server.getPointsAccepted() == 1000);
+    assertEquals(forwarder.getPacketsSent(), server.getUdpPacketCount());
+    assertEquals(new DataPoint("proc_stat_cpu", 1500000000L, 0L, expectedTags(0)), server.getPoints().get(0));
+  }
+
+  @Test
+  public void testTcpReset() throws Exception {
+    server.setTcpResetEveryLines(50);
+    try (TelnetForwarder forwarder = new TelnetForwarder(globalTags, server.getTcpAddress())) {
+      //Lines in flight when a connection is reset are lost, so keep sending until it reconnects
+      await().atMost(20, TimeUnit.SECONDS).until(() -> {
+        forwarder.forward(createPoints(20));
+        return forwarder.getReconnects() >= 2;
+      });
+      assertTrue(server.getDroppedConnectionCount() >= 2);
+      assertTrue(server.getTcpConnectionCount() >= 3);
+
+      server.setTcpResetEveryLines(0);
+      await().atMost(10, TimeUnit.SECONDS).until(() -> forwarder.getBufferedBytes() == 0);
+      long lines = server.getLineCount();
+      forwarder.forward(createPoints(20));
+      await().atMost(10, TimeUnit.SECONDS).until(() -> server.getLineCount() >= lines + 20);
+    }
+  }
+
+  @Test
+  public void testDecodeLine() throws Exception {
+    DataPoint dp = MockIngestServer.decodeLine("put proc.stat.cpu 1500000000 2.5 host=rajiv cpu=0");
+    Map<String, String> tags = new HashMap<>();
+    tags.put("host", "rajiv");
+    tags.put("cpu", "0");
+    assertEquals(new DataPoint("proc.stat.cpu", 1500000000L, 2.5, tags), dp);
+    assertEquals(-3L, MockIngestServer.decodeLine("m 1 -3").getValue());
+  }
+
+  private void assertStatus(ApptuitPutClient client, int status) throws IOException {
+    try {
+      client.send(createPoints(10));
+      fail("Expected status " + status);
+    } catch (ResponseStatusException e) {
+      assertEquals(status, e.getResponseStatus());
+    }
+  }
+
+  private Map<String, String> expectedTags(int i) {
+    Map<String, String> tags = new HashMap<>(globalTags);
+    tags.put("cpu", String.valueOf(i % 4));
+    return tags;
+  }
+
+  private List<DataPoint> createPoints(int count) {
+    List<DataPoint> dataPoints = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      dataPoints.add(new DataPoint("proc.stat.cpu", 1500000000L + i, (long) i,
+          Collections.singletonMap("cpu", String.valueOf(i % 4))));
+    }
+    return dataPoints;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import org.junit.Test;
+
+public class PutResponseTest {
+
+  @Test
+  public void testSuccess() throws Exception {
+    PutResponse response = parse("{\"success\":10,\"failed\":0,\"errors\":[]}");
+    assertEquals(10, response.getSuccess());
+    assertEquals(0, response.getFailed());
+    assertTrue(response.getErrors().isEmpty());
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    PutResponse response = parse("{\n  \"errors\": [\n"
+        + "    {\"datapoint\": {\"metric\": \"sys.cpu\", \"timestamp\": 1365465600, \"value\": 42.5,"
+        + " \"tags\": {\"host\": \"web\\u002d01\", \"note\": \"a\\\"b\"}},"
+        + " \"error\": \"Please throttle writes\"},\n"
+        + "    {\"datapoint\": {\"metric\": \"sys.mem\", \"timestamp\": 1365465600, \"value\": \"x\"},"
+        + " \"error\": \"Unable to parse value to a number\"}\n"
+        + "  ],\n  \"failed\": 2,\n  \"success\": 0\n}");
+    assertEquals(0, response.getSuccess());
+    assertEquals(2, response.getFailed());
+    assertEquals(2, response.getErrors().size());
+
+    PutResponse.PointError first = response.getErrors().get(0);
+    assertEquals("Please throttle writes", first.getError());
+    assertEquals("sys.cpu", first.getDataPoint().getMetric());
+    assertEquals(1365465600L, first.getDataPoint().getTimestamp());
+    assertEquals(42.5, first.getDataPoint().getValue());
+    assertEquals("web-01", first.getDataPoint().getTags().get("host"));
+    assertEquals("a\"b", first.getDataPoint().getTags().get("note"));
+    assertTrue(PutResponse.TRANSIENT_ERRORS.test(first));
+
+    PutResponse.PointError second = response.getErrors().get(1);
+    assertNull(second.getDataPoint());
+    assertFalse(PutResponse.TRANSIENT_ERRORS.test(second));
+  }
+
+  @Test
+  public void testUnknownFieldsSkipped() throws Exception {
+    PutResponse response = parse("{\"extra\":{\"a\":[1,2,{\"b\":null}],\"c\":true},\"success\":3,"
+        + "\"failed\":1,\"errors\":[{\"datapoint\":{\"metric\":\"m\",\"timestamp\":1,\"value\":2,"
+        + "\"tags\":{},\"foo\":[]},\"error\":\"bad\",\"code\":7}]}");
+    assertEquals(3, response.getSuccess());
+    assertEquals(new DataPoint("m", 1, 2L, Collections.emptyMap()), response.getErrors().get(0).getDataPoint());
+  }
+
+  @Test
+  public void testErrorsCapped() throws Exception {
+    StringBuilder sb = new StringBuilder("{\"success\":0,\"failed\":").append(PutResponse.MAX_ERRORS + 5)
+        .append(",\"errors\":[");
+    for (int i = 0; i < PutResponse.MAX_ERRORS + 5; i++) {
+      sb.append(i > 0 ? "," : "").append("{\"error\":\"e").append(i).append("\"}");
+    }
+    sb.append("]}");
+    PutResponse response = parse(sb.toString());
+    assertEquals(PutResponse.MAX_ERRORS + 5, response.getFailed());
+    assertEquals(PutResponse.MAX_ERRORS, response.getErrors().size());
+  }
+
+  @Test
+  public void testNotDetails() throws Exception {
+    assertNull(parse(""));
+    assertNull(parse("Un-Authorized"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformed() throws Exception {
+    parse("{\"success\":1,\"errors\":[");
+  }
+
+  private static PutResponse parse(String body) throws IOException {
+    return PutResponse.parse(new StringReader(body));
+  }
+}
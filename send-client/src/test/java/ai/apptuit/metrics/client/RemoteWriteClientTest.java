@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteWriteClientTest {
+
+  private static final String TOKEN = "MOCK_APPTUIT_TOKEN";
+
+  private HttpServer httpServer;
+  private List<Headers> requestHeaders = new ArrayList<>();
+  private List<List<TimeSeries>> requests = new ArrayList<>();
+  private int responseStatus = 204;
+  private URL url;
+
+  @Before
+  public void setUp() throws Exception {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    httpServer.createContext("/api/v1/write", exchange -> {
+      requestHeaders.add(exchange.getRequestHeaders());
+      requests.add(decodeWriteRequest(SnappyTest.uncompress(readFully(exchange.getRequestBody()))));
+      byte[] response = responseStatus >= 400 ? "bad request".getBytes(StandardCharsets.UTF_8) : new byte[0];
+      exchange.sendResponseHeaders(responseStatus, response.length > 0 ? response.length : -1);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    httpServer.start();
+    url = new URL("http://localhost:" + httpServer.getAddress().getPort() + "/api/v1/write");
+  }
+
+  @After
+  public void tearDown() {
+    httpServer.stop(0);
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    Map<String, String> globalTags = Collections.singletonMap("host", "web-1");
+    RemoteWriteClient client = new RemoteWriteClient(TOKEN, globalTags, url);
+    List<DataPoint> dataPoints = new ArrayList<>();
+    dataPoints.add(new DataPoint("proc.stat.cpu", 1500000010L, 12.5, tags("type", "idle")));
+    dataPoints.add(new DataPoint("proc.stat.cpu", 1500000000L, 10, tags("type", "idle")));
+    dataPoints.add(new DataPoint("proc.stat.cpu", 1500000000L, 3L, tags("type", "user")));
+    client.send(dataPoints);
+
+    Headers headers = requestHeaders.get(0);
+    assertEquals("snappy", headers.getFirst("Content-Encoding"));
+    assertEquals("application/x-protobuf", headers.getFirst("Content-Type"));
+    assertEquals("0.1.0", headers.getFirst("X-Prometheus-Remote-Write-Version"));
+    assertEquals("Bearer " + TOKEN, headers.getFirst("Authorization"));
+
+    List<TimeSeries> series = requests.get(0);
+    assertEquals(2, series.size());
+
+    TimeSeries idle = series.get(0);
+    Map<String, String> expectedLabels = new LinkedHashMap<>();
+    expectedLabels.put("__name__", "proc_stat_cpu");
+    expectedLabels.put("host", "web-1");
+    expectedLabels.put("type", "idle");
+    assertEquals(expectedLabels, idle.labels);
+    assertEquals(new ArrayList<>(expectedLabels.keySet()), new ArrayList<>(idle.labels.keySet()));
+    assertEquals(2, idle.timestamps.size());
+    assertEquals(1500000000000L, (long) idle.timestamps.get(0));
+    assertEquals(10.0, idle.values.get(0), 0);
+    assertEquals(1500000010000L, (long) idle.timestamps.get(1));
+    assertEquals(12.5, idle.values.get(1), 0);
+
+    TimeSeries user = series.get(1);
+    assertEquals("user", user.labels.get("type"));
+    assertEquals(3.0, user.values.get(0), 0);
+  }
+
+  @Test
+  public void testGlobalTagsOverridePointTags() throws Exception {
+    RemoteWriteClient client = new RemoteWriteClient(TOKEN, Collections.singletonMap("host", "global"), url);
+    client.send(Collections.singletonList(new DataPoint("m", 1500000000L, 1, tags("host", "local"))),
+        Sanitizer.NO_OP_SANITIZER);
+    assertEquals("global", requests.get(0).get(0).labels.get("host"));
+  }
+
+  @Test
+  public void testSeriesLabelsWrittenOnce() throws Exception {
+    RemoteWriteClient client = new RemoteWriteClient(TOKEN, null, url);
+    List<DataPoint> dataPoints = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      dataPoints.add(new DataPoint("jvm.memory.used", 1500000000L + i, i, tags("area", "heap")));
+    }
+    RemoteWriteClient.ProtoBuffer message = client.encodeWriteRequest(dataPoints, Sanitizer.PROMETHEUS_SANITIZER);
+    //Each sample is at most 20 bytes, the labels are not repeated
+    assertTrue(message.size() < 1000 * 20 + 100);
+
+    client.send(dataPoints);
+    assertEquals(1, requests.get(0).size());
+    assertEquals(1000, requests.get(0).get(0).values.size());
+  }
+
+  @Test
+  public void testEmptySendIsNoOp() throws Exception {
+    new RemoteWriteClient(TOKEN, null, url).send(Collections.emptyList());
+    assertEquals(0, requests.size());
+  }
+
+  @Test
+  public void testErrorResponse() throws Exception {
+    responseStatus = 400;
+    RemoteWriteClient client = new RemoteWriteClient(TOKEN, null, url);
+    try {
+      client.send(Collections.singletonList(new DataPoint("m", 1500000000L, 1, tags("a", "b"))));
+      fail("Expected ResponseStatusException");
+    } catch (ResponseStatusException e) {
+      assertEquals(400, e.getResponseStatus());
+      assertEquals("bad request", e.getResponseBody());
+    }
+  }
+
+  private static Map<String, String> tags(String key, String value) {
+    Map<String, String> tags = new HashMap<>();
+    tags.put(key, value);
+    return tags;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int read;
+    while ((read = in.read(buf)) > 0) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static List<TimeSeries> decodeWriteRequest(byte[] bytes) {
+    List<TimeSeries> series = new ArrayList<>();
+    ProtoReader reader = new ProtoReader(bytes, 0, bytes.length);
+    while (reader.hasMore()) {
+      assertEquals(1, reader.readTag() >>> 3);
+      series.add(decodeTimeSeries(reader.readMessage()));
+    }
+    return series;
+  }
+
+  private static TimeSeries decodeTimeSeries(ProtoReader reader) {
+    TimeSeries series = new TimeSeries();
+    while (reader.hasMore()) {
+      int field = reader.readTag() >>> 3;
+      ProtoReader message = reader.readMessage();
+      if (field == 1) {
+        String name = null;
+        String value = null;
+        while (message.hasMore()) {
+          int labelField = message.readTag() >>> 3;
+          ProtoReader string = message.readMessage();
+          String s = new String(string.bytes, string.pos, string.end - string.pos, StandardCharsets.UTF_8);
+          if (labelField == 1) {
+            name = s;
+          } else {
+            value = s;
+          }
+        }
+        series.labels.put(name, value);
+      } else {
+        assertEquals(2, field);
+        while (message.hasMore()) {
+          int sampleField = message.readTag() >>> 3;
+          if (sampleField == 1) {
+            series.values.add(Double.longBitsToDouble(message.readFixed64()));
+          } else {
+            series.timestamps.add(message.readVarInt());
+          }
+        }
+      }
+    }
+    return series;
+  }
+
+  private static class TimeSeries {
+
+    private final Map<String, String> labels = new LinkedHashMap<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<Double> values = new ArrayList<>();
+  }
+
+  private static class ProtoReader {
+
+    private final byte[] bytes;
+    private final int end;
+    private int pos;
+
+    private ProtoReader(byte[] bytes, int pos, int end) {
+      this.bytes = bytes;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    private boolean hasMore() {
+      return pos < end;
+    }
+
+    private int readTag() {
+      return (int) readVarInt();
+    }
+
+    private long readVarInt() {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = bytes[pos++] & 0xff;
+        value |= (long) (b & 0x7f) << shift;
+        if (b < 0x80) {
+          return value;
+        }
+      }
+    }
+
+    private long readFixed64() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value |= (long) (bytes[pos++] & 0xff) << (8 * i);
+      }
+      return value;
+    }
+
+    private ProtoReader readMessage() {
+      int length = (int) readVarInt();
+      ProtoReader message = new ProtoReader(bytes, pos, pos + length);
+      pos += length;
+      return message;
+    }
+  }
+}
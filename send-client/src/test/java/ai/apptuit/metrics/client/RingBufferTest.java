@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RingBufferTest {
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("apptuit", ".ring");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Map<String, String> globalTags = Collections.singletonMap("host", "rajiv");
+    Map<String, String> tags = new HashMap<>();
+    tags.put("region", "わ-é-😀");
+    tags.put("host", "overridden");
+    Map<String, String> expectedTags = new HashMap<>(tags);
+    expectedTags.putAll(globalTags);
+
+    try (RingBufferSender sender = new RingBufferSender(globalTags, file);
+        RingBufferReader reader = new RingBufferReader(file)) {
+      List<DataPoint> dataPoints = new ArrayList<>();
+      dataPoints.add(new DataPoint("proc.stat.cpu", 1500000000L, 42L, tags));
+      dataPoints.add(new DataPoint("proc.meminfo", 1500000001L, 2.5, Collections.emptyMap()));
+      sender.send(dataPoints);
+      DataPointBatch batch = new DataPointBatch();
+      batch.add(new DataPointBatch.Series("proc.stat.cpu", tags), 1500000002L, -7L);
+      sender.send(batch);
+      assertEquals(3, sender.getPointsSent());
+
+      DataPointBatch drained = new DataPointBatch();
+      assertEquals(3, reader.drainTo(drained, 100));
+      assertEquals(new DataPoint("proc.stat.cpu", 1500000000L, 42L, expectedTags), drained.getDataPoint(0));
+      assertEquals(new DataPoint("proc.meminfo", 1500000001L, 2.5, globalTags), drained.getDataPoint(1));
+      assertEquals(new DataPoint("proc.stat.cpu", 1500000002L, -7L, expectedTags), drained.getDataPoint(2));
+      assertSame(drained.getSeries(0), drained.getSeries(2));
+      assertEquals(0, reader.getPendingBytes());
+      assertEquals(0, reader.drainTo(drained, 100));
+    }
+  }
+
+  @Test
+  public void testWrapAroundAndFull() throws Exception {
+    try (RingBufferSender sender = new RingBufferSender(null, file, 1024);
+        RingBufferReader reader = new RingBufferReader(file)) {
+      DataPointBatch drained = new DataPointBatch();
+      for (int i = 0; i < 1000; i++) {
+        sender.send(Collections.singletonList(new DataPoint("m" + i, i, (long) i, Collections.emptyMap())));
+        assertEquals(1, reader.drainTo(drained, 10));
+        assertEquals(new DataPoint("m" + i, i, (long) i, Collections.emptyMap()), drained.getDataPoint(i));
+      }
+
+      int sent = 0;
+      while (sender.getDroppedPoints() == 0) {
+        sender.send(Collections.singletonList(new DataPoint("full", sent, (long) sent, Collections.emptyMap())));
+        sent++;
+      }
+      assertEquals(sent - 1, reader.drainTo(new DataPointBatch(), Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testUnreadPointsKeptWhenSenderReopens() throws Exception {
+    try (RingBufferSender sender = new RingBufferSender(null, file, 4096)) {
+      sender.send(Collections.singletonList(new DataPoint("m", 1, 1L, Collections.emptyMap())));
+    }
+    try (RingBufferSender sender = new RingBufferSender(null, file, 4096);
+        RingBufferReader reader = new RingBufferReader(file)) {
+      sender.send(Collections.singletonList(new DataPoint("m", 2, 2L, Collections.emptyMap())));
+      assertEquals(2, reader.drainTo(new DataPointBatch(), 10));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosedRingIsUnmapped() throws Exception {
+    RingBufferReader reader;
+    try (RingBufferSender sender = new RingBufferSender(null, file, 4096)) {
+      reader = new RingBufferReader(file);
+      sender.send(Collections.singletonList(new DataPoint("m", 1, 1L, Collections.emptyMap())));
+    }
+    reader.close();
+    reader.getPendingBytes();
+  }
+
+  @Test(expected = IOException.class)
+  public void testReaderRejectsOtherFiles() throws Exception {
+    Files.write(file, new byte[4096]);
+    new RingBufferReader(file).close();
+  }
+
+  @Test
+  public void testConcurrentSenderAndReader() throws Exception {
+    int points = 200_000;
+    try (RingBufferSender sender = new RingBufferSender(null, file, 64 * 1024);
+        RingBufferReader reader = new RingBufferReader(file)) {
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      Thread producer = new Thread(() -> {
+        try {
+          for (int i = 0; i < points; ) {
+            long before = sender.getPointsSent();
+            sender.send(Collections.singletonList(new DataPoint("m", i, (long) i, Collections.emptyMap())));
+            if (sender.getPointsSent() > before) {
+              i++;
+            }
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      producer.start();
+      DataPointBatch drained = new DataPointBatch();
+      long deadline = System.currentTimeMillis() + 60_000;
+      while (drained.size() < points && System.currentTimeMillis() < deadline) {
+        reader.drainTo(drained, 1000);
+      }
+      producer.join();
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+      assertEquals(points, drained.size());
+      for (int i = 0; i < points; i++) {
+        assertEquals(i, drained.getTimestamp(i));
+        assertEquals(i, drained.getLongValue(i));
+      }
+    }
+  }
+}
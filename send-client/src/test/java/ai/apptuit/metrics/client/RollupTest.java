@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import ai.apptuit.metrics.client.RollupRule.Aggregation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class RollupTest {
+
+  private static final long EPOCH = 1500000000L;
+
+  @Test
+  public void testSumAcrossDroppedTag() throws Exception {
+    Rollup rollup = new Rollup(Collections.singletonList(
+        RollupRule.forMetric("kafka.records", Aggregation.SUM, "instance", "partition")));
+    DataPointBatch batch = new DataPointBatch();
+    for (int i = 0; i < 6; i++) {
+      batch.add(series("kafka.records", "topic", "t" + (i % 2), "instance", "i" + i, "partition", "p" + i),
+          EPOCH, 10L * i);
+    }
+    Series cpu = series("proc.stat.cpu", "host", "h1");
+    batch.add(cpu, EPOCH, 2.5);
+
+    DataPointBatch out = rollup.apply(batch, new DataPointBatch());
+
+    assertEquals(3, out.size());
+    assertSame(cpu, out.getSeries(0));
+    assertEquals(new DataPoint("kafka.records", EPOCH, 60L, tags("topic", "t0")), out.getDataPoint(1));
+    assertEquals(new DataPoint("kafka.records", EPOCH, 90L, tags("topic", "t1")), out.getDataPoint(2));
+  }
+
+  @Test
+  public void testAggregations() throws Exception {
+    Rollup rollup = new Rollup(Arrays.asList(
+        RollupRule.forMetric("max", Aggregation.MAX, "instance"),
+        RollupRule.forMetric("min", Aggregation.MIN, "instance"),
+        RollupRule.forMetric("avg", Aggregation.AVG, "instance"),
+        RollupRule.forMetric("mixed", Aggregation.SUM, "instance")));
+    DataPointBatch batch = new DataPointBatch();
+    for (String metric : new String[]{"max", "min", "avg"}) {
+      batch.add(series(metric, "instance", "a"), EPOCH, 3L);
+      batch.add(series(metric, "instance", "b"), EPOCH + 1, 8L);
+    }
+    batch.add(series("mixed", "instance", "a"), EPOCH, 3L);
+    batch.add(series("mixed", "instance", "b"), EPOCH, 0.5);
+
+    DataPointBatch out = rollup.apply(batch, new DataPointBatch());
+
+    assertEquals(new DataPoint("max", EPOCH + 1, 8L, tags()), out.getDataPoint(0));
+    assertEquals(new DataPoint("min", EPOCH + 1, 3L, tags()), out.getDataPoint(1));
+    assertEquals(new DataPoint("avg", EPOCH + 1, 5.5, tags()), out.getDataPoint(2));
+    assertEquals(new DataPoint("mixed", EPOCH, 3.5, tags()), out.getDataPoint(3));
+  }
+
+  @Test
+  public void testMatching() throws Exception {
+    RollupRule prefix = RollupRule.forPrefix("kafka.partition", Aggregation.SUM, "partition");
+    RollupRule longerPrefix = RollupRule.forPrefix("kafka.partition.lag", Aggregation.MAX, "partition");
+    RollupRule exact = RollupRule.forMetric("kafka.partition.lag.max", Aggregation.MIN, "partition");
+    Rollup rollup = new Rollup(Arrays.asList(prefix, longerPrefix, exact));
+
+    assertSame(prefix, rollup.match("kafka.partition"));
+    assertSame(prefix, rollup.match("kafka.partition.bytes"));
+    assertSame(longerPrefix, rollup.match("kafka.partition.lag.mean"));
+    assertSame(exact, rollup.match("kafka.partition.lag.max"));
+    assertNull(rollup.match("kafka.partitions"));
+    assertNull(rollup.match("kafka"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateRule() throws Exception {
+    new Rollup(Arrays.asList(RollupRule.forMetric("m", Aggregation.SUM, "a"),
+        RollupRule.forMetric("m", Aggregation.MAX, "b")));
+  }
+
+  @Test
+  public void testReportsWithSmallCache() throws Exception {
+    Rollup rollup = new Rollup(Collections.singletonList(
+        RollupRule.forMetric("m", Aggregation.SUM, "instance")), 1);
+    Series a = series("m", "instance", "a");
+    Series b = series("m", "instance", "b");
+    Series other = series("m", "instance", "c", "dc", "west");
+
+    assertEquals(new DataPoint("m", EPOCH, 3L, tags()), report(rollup, a, 1L, b, 2L).getDataPoint(0));
+    //the rolled up series was idle in this report and is forgotten
+    DataPointBatch out = report(rollup, other, 5L);
+    assertEquals(1, out.size());
+    assertEquals(new DataPoint("m", EPOCH, 5L, tags("dc", "west")), out.getDataPoint(0));
+    out = report(rollup, b, 4L, a, 1L, b, 2L);
+    assertEquals(1, out.size());
+    assertEquals(new DataPoint("m", EPOCH, 7L, tags()), out.getDataPoint(0));
+  }
+
+  private static DataPointBatch report(Rollup rollup, Object... seriesAndValues) {
+    DataPointBatch batch = new DataPointBatch();
+    for (int i = 0; i < seriesAndValues.length; i += 2) {
+      batch.add((Series) seriesAndValues[i], EPOCH, (Long) seriesAndValues[i + 1]);
+    }
+    return rollup.apply(batch, new DataPointBatch());
+  }
+
+  private static Series series(String metric, String... tags) {
+    return new Series(metric, tags(tags));
+  }
+
+  private static Map<String, String> tags(String... keyValues) {
+    Map<String, String> tags = new HashMap<>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      tags.put(keyValues[i], keyValues[i + 1]);
+    }
+    return tags;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class SanitizerTest {
+
+  private static final int ITERATIONS = 100_000;
+
+  /**
+   * Chars the generated strings are built from: allowed and disallowed ASCII, runs of underscores,
+   * letters and digits outside ASCII, surrogate pairs and lone surrogates.
+   */
+  private static final String[] ALPHABET = {
+      "a", "Z", "0", "9", "_", "__", "-", ".", "/", "$", " ", "\t", "\"", "=", "~", "\u007f", "\u0000",
+      "わ", "é", "Ω", "٣", "²", "–", "€", "𝐀", "😀", "\ud800", "\udc00"
+  };
+
+  @Test
+  public void testPrometheusSanitizerMatchesRegex() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < ITERATIONS; i++) {
+      String s = randomString(random);
+      assertEquals("Sanitizing [" + s + "]", prometheusRegex(s), Sanitizer.PROMETHEUS_SANITIZER.sanitizer(s));
+    }
+  }
+
+  @Test
+  public void testApptuitSanitizerMatchesRegex() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < ITERATIONS; i++) {
+      String s = randomString(random);
+      assertEquals("Sanitizing [" + s + "]", apptuitRegex(s), Sanitizer.APPTUIT_SANITIZER.sanitizer(s));
+    }
+  }
+
+  @Test
+  public void testSanitizedStringReturnedAsIs() throws Exception {
+    String name = "jvm_memory_used";
+    assertSame(name, Sanitizer.PROMETHEUS_SANITIZER.sanitizer(name));
+    String path = "proc.stat/cpu-わ_1";
+    assertSame(path, Sanitizer.APPTUIT_SANITIZER.sanitizer(path));
+  }
+
+  @Test
+  public void testExamples() throws Exception {
+    assertEquals("_1proc_stat_cpu", Sanitizer.PROMETHEUS_SANITIZER.sanitizer("1proc.stat$$cpu"));
+    assertEquals("a_b", Sanitizer.PROMETHEUS_SANITIZER.sanitizer("a__わ__b"));
+    assertEquals("1proc.stat_cpu_わ", Sanitizer.APPTUIT_SANITIZER.sanitizer("1proc.stat$ cpu__わ"));
+  }
+
+  @Test
+  public void testCachingSanitizerCounters() throws Exception {
+    Sanitizer.CachingSanitizer sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.PROMETHEUS_SANITIZER, 2);
+    assertEquals("a_b", sanitizer.sanitizer("a.b"));
+    assertEquals("a_b", sanitizer.sanitizer("a.b"));
+    assertEquals("c_d", sanitizer.sanitizer("c.d"));
+    assertEquals(1, sanitizer.getHitCount());
+    assertEquals(2, sanitizer.getMissCount());
+    assertEquals(0, sanitizer.getEvictionCount());
+
+    //"a.b" was referenced, so "c.d" is evicted
+    assertEquals("e_f", sanitizer.sanitizer("e.f"));
+    assertEquals(1, sanitizer.getEvictionCount());
+    assertEquals(2, sanitizer.size());
+    sanitizer.sanitizer("a.b");
+    assertEquals(2, sanitizer.getHitCount());
+    sanitizer.sanitizer("c.d");
+    assertEquals(4, sanitizer.getMissCount());
+  }
+
+  @Test
+  public void testCachingSanitizerBounded() throws Exception {
+    Sanitizer.CachingSanitizer sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.PROMETHEUS_SANITIZER, 100);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("m_" + i, sanitizer.sanitizer("m." + i));
+    }
+    assertEquals(100, sanitizer.size());
+    assertEquals(900, sanitizer.getEvictionCount());
+  }
+
+  @Test
+  public void testCachingSanitizerConcurrent() throws Exception {
+    Sanitizer.CachingSanitizer sanitizer = new Sanitizer.CachingSanitizer(Sanitizer.APPTUIT_SANITIZER, 64);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      int seed = t;
+      threads[t] = new Thread(() -> {
+        Random random = new Random(seed);
+        try {
+          for (int i = 0; i < 20_000; i++) {
+            int n = random.nextInt(128);
+            assertEquals("m_" + n, sanitizer.sanitizer("m$" + n));
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertTrue(sanitizer.size() <= 64);
+    assertEquals(threads.length * 20_000, sanitizer.getHitCount() + sanitizer.getMissCount());
+  }
+
+  private static String randomString(Random random) {
+    int length = 1 + random.nextInt(12);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+    }
+    return sb.toString();
+  }
+
+  private static String prometheusRegex(String s) {
+    return ((Character.isDigit(s.charAt(0)) ? "_" : "") + s).replaceAll("[^a-zA-Z0-9_]", "_")
+        .replaceAll("[_]+", "_");
+  }
+
+  private static String apptuitRegex(String s) {
+    return s.replaceAll("[^\\p{L}\\-./_0-9]+", "_").replaceAll("[_]+", "_");
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ai.apptuit.metrics.client.DataPointBatch.Series;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import org.junit.Test;
+
+public class SeriesRegistryTest {
+
+  @Test
+  public void testInternReturnsSameSeries() throws Exception {
+    SeriesRegistry registry = new SeriesRegistry();
+    Map<String, String> tags = new LinkedHashMap<>();
+    tags.put("host", "web-1");
+    tags.put("env", "prod");
+    Map<String, String> reversed = new LinkedHashMap<>();
+    reversed.put("env", "prod");
+    reversed.put("host", "web-1");
+
+    Series series = registry.intern("proc.stat.cpu", tags);
+    assertSame(series, registry.intern("proc.stat.cpu", reversed));
+    assertSame(series, registry.get(series.getId()));
+    assertEquals(new Series("proc.stat.cpu", tags), series);
+    assertEquals(new Series("proc.stat.cpu", reversed).getId(), series.getId());
+    assertTrue(series.getTags() instanceof SortedMap);
+    assertEquals("[env, host]", series.getTags().keySet().toString());
+  }
+
+  @Test
+  public void testInternCopiesTags() throws Exception {
+    SeriesRegistry registry = new SeriesRegistry();
+    Map<String, String> tags = new HashMap<>();
+    tags.put("host", "web-1");
+    Series series = registry.intern("proc.stat.cpu", tags);
+    tags.put("host", "web-2");
+
+    assertEquals("web-1", series.getTags().get("host"));
+    assertNotEquals(series.getId(), registry.intern("proc.stat.cpu", tags).getId());
+  }
+
+  @Test
+  public void testDistinctIds() throws Exception {
+    SeriesRegistry registry = new SeriesRegistry();
+    List<Series> series = new ArrayList<>();
+    Set<Long> ids = new HashSet<>();
+    for (int i = 0; i < 10_000; i++) {
+      Map<String, String> tags = new HashMap<>();
+      tags.put("host", "web-" + (i % 100));
+      Series s = registry.intern("metric." + (i / 100), tags);
+      series.add(s);
+      ids.add(s.getId());
+    }
+    assertEquals(10_000, ids.size());
+    assertEquals(10_000, registry.size());
+  }
+
+  @Test
+  public void testUnreferencedSeriesDropped() throws Exception {
+    SeriesRegistry registry = new SeriesRegistry();
+    Map<String, String> tags = new HashMap<>();
+    tags.put("host", "web-1");
+    long id = registry.intern("proc.stat.cpu", tags).getId();
+    for (int i = 0; i < 50 && registry.get(id) != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(registry.get(id));
+    assertEquals(0, registry.size());
+    assertEquals(id, registry.intern("proc.stat.cpu", tags).getId());
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class SnappyTest {
+
+  @Test
+  public void testRoundTripSizes() throws Exception {
+    for (int size : new int[]{0, 1, 14, 15, 16, 100, 65535, 65536, 65537, 300_000}) {
+      byte[] input = ContentCodecTest.createBody(size);
+      assertArrayEquals("size " + size, input, uncompress(compress(input)));
+    }
+  }
+
+  @Test
+  public void testCompressesRepetitiveInput() throws Exception {
+    byte[] input = ContentCodecTest.createBody(100_000);
+    byte[] compressed = compress(input);
+    assertTrue(compressed.length < input.length / 2);
+  }
+
+  @Test
+  public void testLongRuns() throws Exception {
+    byte[] input = new byte[200_000];
+    Arrays.fill(input, (byte) 'a');
+    byte[] compressed = compress(input);
+    assertTrue(compressed.length < 20_000);
+    assertArrayEquals(input, uncompress(compressed));
+  }
+
+  @Test
+  public void testRandomInput() throws Exception {
+    byte[] input = new byte[100_000];
+    new Random(42).nextBytes(input);
+    byte[] compressed = compress(input);
+    assertTrue(compressed.length <= Snappy.maxCompressedLength(input.length));
+    assertArrayEquals(input, uncompress(compressed));
+  }
+
+  @Test
+  public void testOffsetIntoInput() throws Exception {
+    byte[] input = ContentCodecTest.createBody(5000);
+    byte[] output = new byte[Snappy.maxCompressedLength(3000)];
+    int length = Snappy.compress(input, 1000, 3000, output);
+    assertArrayEquals(Arrays.copyOfRange(input, 1000, 4000), uncompress(Arrays.copyOf(output, length)));
+  }
+
+  private static byte[] compress(byte[] input) {
+    byte[] output = new byte[Snappy.maxCompressedLength(input.length)];
+    int length = Snappy.compress(input, 0, input.length, output);
+    return Arrays.copyOf(output, length);
+  }
+
+  /**
+   * Decompresses the snappy block format, as a remote-write receiver would.
+   */
+  static byte[] uncompress(byte[] in) {
+    int ip = 0;
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in[ip++] & 0xff;
+      length |= (b & 0x7f) << shift;
+      if (b < 0x80) {
+        break;
+      }
+    }
+    byte[] out = new byte[length];
+    int op = 0;
+    while (ip < in.length) {
+      int tag = in[ip++] & 0xff;
+      int len;
+      int offset;
+      switch (tag & 0x03) {
+        case 0:
+          len = tag >>> 2;
+          if (len >= 60) {
+            int bytes = len - 59;
+            len = 0;
+            for (int i = 0; i < bytes; i++) {
+              len |= (in[ip++] & 0xff) << (8 * i);
+            }
+          }
+          len++;
+          System.arraycopy(in, ip, out, op, len);
+          ip += len;
+          op += len;
+          continue;
+        case 1:
+          len = ((tag >>> 2) & 0x07) + 4;
+          offset = ((tag >>> 5) << 8) | (in[ip++] & 0xff);
+          break;
+        case 2:
+          len = (tag >>> 2) + 1;
+          offset = (in[ip++] & 0xff) | (in[ip++] & 0xff) << 8;
+          break;
+        default:
+          len = (tag >>> 2) + 1;
+          offset = (in[ip++] & 0xff) | (in[ip++] & 0xff) << 8 | (in[ip++] & 0xff) << 16
+              | (in[ip++] & 0xff) << 24;
+      }
+      assertTrue(offset > 0 && offset <= op);
+      for (int i = 0; i < len; i++, op++) {
+        out[op] = out[op - offset];
+      }
+    }
+    assertEquals(length, op);
+    return out;
+  }
+}
@@ -21,10 +21,15 @@ import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 /**
  * @author Rajiv Shivane
@@ -32,6 +37,11 @@ import static org.junit.Assert.assertFalse;
 
 public class TagEncodedMetricNameTest {
 
+  private static final Pattern TAG_ENCODED_METRICNAME_PATTERN = Pattern.compile("([^\\[]+)\\[(.*)\\]");
+  private static final String[] ALPHABET = {
+      "a", "k", "v", "1", " ", "\t", ":", ",", "\"", "\"\"", "[", "]", "\n", "\u2028", "わ"
+  };
+
   private TagEncodedMetricName encodedMetricName;
 
   @Before
@@ -102,6 +112,25 @@ public class TagEncodedMetricNameTest {
     encodedMetricName.withTags("key");
   }
 
+  @Test
+  public void testNullTagValueIsAbsent() throws Exception {
+    TagEncodedMetricName name = encodedMetricName.withTags("k1", "v1", "k2", null);
+    assertEquals(encodedMetricName.withTags("k1", "v1"), name);
+
+    Map<String, String> tags = new HashMap<>();
+    tags.put("k1", null);
+    assertEquals(encodedMetricName.withTags("k2", "v2"), name.withTags("k2", "v2").withTags(tags));
+  }
+
+  @Test
+  public void testBuilderNullTagValueMatchesWithTags() throws Exception {
+    TagEncodedMetricName name = encodedMetricName.withTags("k1", "v1", "k2", "v2");
+    assertEquals(name.withTags("k1", null), name.toBuilder().tag("k1", null).build());
+    assertEquals(name.withTags("k3", null), name.toBuilder().tag("k3", null).build());
+    assertEquals(name.withTags("k2", "v2"),
+        TagEncodedMetricName.builder(name.getMetricName()).tag("k1", "v1").tag("k2", "v2").build());
+  }
+
   @Test
   public void testEqualsNoTags() throws Exception {
     assertEquals(encodedMetricName, encodedMetricName);
@@ -208,4 +237,226 @@ public class TagEncodedMetricNameTest {
     assertEquals(t, decoded);
   }
 
+  @Test
+  public void testWithTagsKeepsTagsSorted() throws Exception {
+    TagEncodedMetricName metric = TagEncodedMetricName.decode("asdf[k:0, b:1]")
+        .withTags("z", "2", "a", "3", "k", "4", "a", "5");
+    assertEquals("asdf[a:5,b:1,k:4,z:2]", metric.toString());
+    assertEquals("[a, b, k, z]", metric.getTags().keySet().toString());
+    assertEquals("4", metric.getTags().get("k"));
+    assertEquals(null, metric.getTags().get("c"));
+    assertEquals(TagEncodedMetricName.decode("asdf[z:2,k:4,b:1,a:5]"), metric);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testTagsUnmodifiable() throws Exception {
+    TagEncodedMetricName.decode("asdf[k:0]").getTags().put("k", "1");
+  }
+
+  @Test
+  public void testBuilder() throws Exception {
+    TagEncodedMetricName root = TagEncodedMetricName.decode("asdf[k:0]");
+    TagEncodedMetricName built = root.toBuilder().submetric("rate").tag("window", "1m").tag("k", "1").build();
+    assertEquals(root.submetric("rate").withTags("window", "1m", "k", "1"), built);
+    assertEquals(built.hashCode(), TagEncodedMetricName.decode("asdf.rate[window:1m,k:1]").hashCode());
+
+    Map<String, String> tags = new HashMap<>();
+    tags.put("b", "2");
+    tags.put("a", "1");
+    assertEquals("m[a:1,b:2]", TagEncodedMetricName.builder("m").tags(tags).build().toString());
+  }
+
+  @Test
+  public void testCompareTo() throws Exception {
+    TagEncodedMetricName a = TagEncodedMetricName.decode("a");
+    TagEncodedMetricName ak0 = TagEncodedMetricName.decode("a[k:0]");
+    TagEncodedMetricName ak1 = TagEncodedMetricName.decode("a[k:1]");
+    TagEncodedMetricName ak1z0 = TagEncodedMetricName.decode("a[k:1,z:0]");
+    TagEncodedMetricName ab = TagEncodedMetricName.decode("a.b");
+    assertTrue(a.compareTo(ak0) < 0);
+    assertTrue(ak0.compareTo(ak1) < 0);
+    assertTrue(ak1.compareTo(ak1z0) < 0);
+    assertTrue(ak1z0.compareTo(ab) < 0);
+    assertEquals(0, ak0.compareTo(TagEncodedMetricName.decode("a[k: 0]")));
+  }
+
+  @Test
+  public void testDecodeMatchesRegex() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      String s = randomName(random);
+      assertEquals("Decoding [" + s + "]", referenceDecode(s), decodeToString(s));
+    }
+  }
+
+  @Test
+  public void testDecodeExamples() throws Exception {
+    assertEquals("a[b", TagEncodedMetricName.decode("a[b").getMetricName());
+    assertEquals("[k:v]", TagEncodedMetricName.decode("[k:v]").getMetricName());
+    TagEncodedMetricName metric = TagEncodedMetricName.decode("[x[m[k:v]]tail");
+    assertEquals("x", metric.getMetricName());
+    assertEquals("v]", metric.getTags().get("m[k"));
+    metric = TagEncodedMetricName.decode("a[b\nc[k:v]");
+    assertEquals("b\nc", metric.getMetricName());
+    assertEquals("v", metric.getTags().get("k"));
+  }
+
+  @Test
+  public void testDecodeCache() throws Exception {
+    TagEncodedMetricName.DecodeCache cache = new TagEncodedMetricName.DecodeCache(2);
+    TagEncodedMetricName metric = cache.decode("asdf[k:0]");
+    assertEquals(TagEncodedMetricName.decode("asdf[k:0]"), metric);
+    assertSame(metric, cache.decode("asdf[k:0]"));
+    cache.decode("b");
+    cache.decode("c");
+    assertEquals(1, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeCacheFails() throws Exception {
+    new TagEncodedMetricName.DecodeCache().decode("asdf[k]");
+  }
+
+  private static String randomName(Random random) {
+    int length = 1 + random.nextInt(16);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+    }
+    return sb.toString();
+  }
+
+  private static String decodeToString(String s) {
+    try {
+      TagEncodedMetricName metric = TagEncodedMetricName.decode(s);
+      return metric.getMetricName() + metric.getTags();
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
+    }
+  }
+
+  /**
+   * Decodes as TagEncodedMetricName did with a regular expression.
+   */
+  private static String referenceDecode(String encodedTagName) {
+    try {
+      String metricName;
+      Map<String, String> tags = new TreeMap<>();
+      Matcher matcher = TAG_ENCODED_METRICNAME_PATTERN.matcher(encodedTagName);
+      if (matcher.find() && matcher.groupCount() == 2) {
+        metricName = matcher.group(1);
+        tags = referenceParseTags(matcher.group(2));
+      } else {
+        metricName = encodedTagName;
+      }
+      referenceCheckEmpty(metricName, "metricName");
+      return metricName + tags;
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Map<String, String> referenceParseTags(String tv) {
+    char[] tagValues = tv.toCharArray();
+    Map<String, String> tags = new TreeMap<>();
+    StringBuilder tagValueBuffer = new StringBuilder();
+
+    int last = 0;
+    parsing:
+    while (last < tagValues.length) {
+      int cur = last;
+
+      //Consume leading whitespace in front of tag
+      while (tagValues[cur] == ' ' || tagValues[cur] == '\t') {
+        cur++;
+        if (cur >= tagValues.length) {
+          break parsing;
+        }
+      }
+
+      //Extract Tag
+      while (tagValues[cur] != ':') {
+        cur++;
+        if (cur >= tagValues.length) {
+          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+        }
+      }
+      String k = new String(tagValues, last, cur - last).trim();
+      referenceCheckEmpty(k, "tag");
+
+      //Consume the ':'
+      if (tagValues[cur] == ':') {
+        cur++;
+      } else {
+        throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+      }
+
+      //Consume leading whitespace in front of value
+      while (cur < tagValues.length && (tagValues[cur] == ' ' || tagValues[cur] == '\t')) {
+        cur++;
+      }
+      if (cur >= tagValues.length) {
+        throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+      }
+
+      last = cur;
+      String v;
+      if (tagValues[cur] == '"') {
+        cur++;
+        boolean foundEndQuotedString = false;
+        while (cur < tagValues.length) {
+          char c = tagValues[cur];
+          cur++;
+          if (c == '"') {
+            if (cur < tagValues.length && tagValues[cur] == '"') {
+              //consume escaped quote
+              cur++;
+            } else {
+              foundEndQuotedString = true;
+              break;
+            }
+          }
+          tagValueBuffer.append(c);
+        }
+        if (!foundEndQuotedString) {
+          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+        }
+        v = tagValueBuffer.toString();
+        tagValueBuffer.setLength(0);
+
+        //Consume trailing whitespace
+        while (cur < tagValues.length && (tagValues[cur] == ' ' || tagValues[cur] == '\t')) {
+          cur++;
+        }
+      } else {
+        while (tagValues[cur] != ',') {
+          cur++;
+          if (cur >= tagValues.length) {
+            break;
+          }
+        }
+        v = new String(tagValues, last, cur - last).trim();
+      }
+      referenceCheckEmpty(v, "tag value");
+      tags.put(k, v);
+
+      if (cur < tagValues.length) {
+        if (tagValues[cur] == ',') {
+          cur++;
+        } else {
+          throw new IllegalArgumentException("Could not parse tags {" + tv + "}. Last:" + last + ". Index: " + cur);
+        }
+      }
+      last = cur;
+    }
+    return tags;
+  }
+
+  private static void referenceCheckEmpty(String s, String field) {
+    if (s == null || "".equals(s.trim())) {
+      throw new IllegalArgumentException(field + " must be defined");
+    }
+  }
 }
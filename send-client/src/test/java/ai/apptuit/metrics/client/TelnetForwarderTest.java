@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TelnetForwarderTest {
+
+  private Map<String, String> globalTags;
+  private MockServer server;
+  private TelnetForwarder forwarder;
+
+  @Before
+  public void setUp() throws Exception {
+    globalTags = new HashMap<>();
+    globalTags.put("host", "rajiv");
+    server = new MockServer(new ServerSocket(0));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (forwarder != null) {
+      forwarder.close();
+    }
+    server.stop();
+  }
+
+  @Test
+  public void testForwardPutLines() throws Exception {
+    forwarder = new TelnetForwarder(globalTags, server.getAddress());
+    List<DataPoint> dataPoints = createDataPoints(0, 1000);
+    forwarder.forward(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> server.getLines().size() == 1000);
+    List<String> lines = server.getLines();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(expectedLine(dataPoints.get(i)), lines.get(i));
+    }
+    assertEquals(0, forwarder.getDroppedLines());
+    assertFalse(forwarder.isBackpressured());
+  }
+
+  @Test
+  public void testForwardBatch() throws Exception {
+    forwarder = new TelnetForwarder(globalTags, server.getAddress());
+    List<DataPoint> dataPoints = createDataPoints(0, 100);
+    DataPointBatch batch = new DataPointBatch();
+    for (DataPoint dp : dataPoints) {
+      batch.add(new DataPointBatch.Series(dp.getMetric(), dp.getTags()), dp.getTimestamp(), dp.getValue().longValue());
+    }
+    forwarder.forward(batch, Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> server.getLines().size() == 100);
+    assertEquals(expectedLine(dataPoints.get(99)), server.getLines().get(99));
+  }
+
+  @Test
+  public void testReconnect() throws Exception {
+    forwarder = new TelnetForwarder(globalTags, server.getAddress());
+    forwarder.forward(createDataPoints(0, 10), Sanitizer.NO_OP_SANITIZER);
+    await().atMost(5, TimeUnit.SECONDS).until(() -> server.getLines().size() == 10);
+
+    server.closeConnections();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> {
+      forwarder.forward(createDataPoints(10, 1), Sanitizer.NO_OP_SANITIZER);
+      return forwarder.getReconnects() > 0;
+    });
+    List<DataPoint> dataPoints = createDataPoints(100, 10);
+    forwarder.forward(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> server.getLines().contains(expectedLine(dataPoints.get(9))));
+    List<String> lines = server.getLines();
+    int first = lines.indexOf(expectedLine(dataPoints.get(0)));
+    assertTrue(first > 0);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(expectedLine(dataPoints.get(i)), lines.get(first + i));
+    }
+  }
+
+  @Test
+  public void testBackpressureAndDrops() throws Exception {
+    InetSocketAddress address = server.getAddress();
+    server.stop();
+    forwarder = new TelnetForwarder(globalTags, address, 8 * 1024, 100);
+    List<DataPoint> dataPoints = createDataPoints(0, 1000);
+    forwarder.forward(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+    assertTrue(forwarder.isBackpressured());
+    assertTrue(forwarder.getDroppedLines() > 0);
+    assertTrue(forwarder.getBufferedBytes() <= 8 * 1024);
+    int buffered = 1000 - (int) forwarder.getDroppedLines();
+
+    server = new MockServer(new ServerSocket(address.getPort()));
+    await().atMost(30, TimeUnit.SECONDS).until(() -> server.getLines().size() == buffered);
+    assertFalse(forwarder.isBackpressured());
+    assertEquals(0, forwarder.getBufferedBytes());
+    for (int i = 0; i < buffered; i++) {
+      assertEquals(expectedLine(dataPoints.get(i)), server.getLines().get(i));
+    }
+  }
+
+  private String expectedLine(DataPoint dp) {
+    return "put " + dp.getMetric() + " " + dp.getTimestamp() + " " + dp.getValue()
+        + " type=idle host=rajiv";
+  }
+
+  private List<DataPoint> createDataPoints(int start, int count) {
+    List<DataPoint> dataPoints = new ArrayList<>(count);
+    for (int i = start; i < start + count; i++) {
+      dataPoints.add(new DataPoint("proc.stat.cpu", 1500000000L + i, (long) i,
+          Collections.singletonMap("type", "idle")));
+    }
+    return dataPoints;
+  }
+
+  private static class MockServer {
+
+    private final ServerSocket serverSocket;
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+    private final List<Socket> connections = Collections.synchronizedList(new ArrayList<>());
+
+    private MockServer(ServerSocket serverSocket) {
+      this.serverSocket = serverSocket;
+      Thread thread = new Thread(this::accept);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private InetSocketAddress getAddress() {
+      return new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+    }
+
+    private List<String> getLines() {
+      synchronized (lines) {
+        return new ArrayList<>(lines);
+      }
+    }
+
+    private void accept() {
+      while (!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          connections.add(socket);
+          Thread reader = new Thread(() -> read(socket));
+          reader.setDaemon(true);
+          reader.start();
+        } catch (IOException e) {
+          //Closed
+        }
+      }
+    }
+
+    private void read(Socket socket) {
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines.add(line);
+        }
+      } catch (IOException e) {
+        //Closed
+      }
+    }
+
+    private void closeConnections() throws IOException {
+      synchronized (connections) {
+        for (Socket socket : connections) {
+          socket.close();
+        }
+        connections.clear();
+      }
+    }
+
+    private void stop() throws IOException {
+      serverSocket.close();
+      closeConnections();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.json.simple.parser.JSONParser;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Utf8WriterTest {
+
+  private ByteArrayOutputStream out;
+  private Utf8Writer writer;
+
+  @Before
+  public void setUp() throws Exception {
+    out = new ByteArrayOutputStream();
+    writer = new Utf8Writer(32).reset(out);
+  }
+
+  @Test
+  public void testWriteString() throws Exception {
+    String s = "proc.stat.cpu わ é 😀 end";
+    writer.writeString(s).flush();
+    assertArrayEquals(s.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+  }
+
+  @Test
+  public void testWriteRandomStrings() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = random.nextInt(100);
+      for (int j = 0; j < len; j++) {
+        sb.append((char) random.nextInt(Character.MAX_VALUE + 1));
+      }
+      String s = sb.toString();
+      out.reset();
+      writer.reset(out).writeString(s).flush();
+      assertArrayEquals(s, s.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testWriteJsonString() throws Exception {
+    String s = "quote\" backslash\\ newline\n tab\t bell\u0007 わ";
+    writer.writeByte('"').writeJsonString(s).writeByte('"').flush();
+    String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertEquals("\"quote\\\" backslash\\\\ newline\\n tab\\t bell\\u0007 わ\"", json);
+    assertEquals(s, new JSONParser().parse(json));
+  }
+
+  @Test
+  public void testWriteLong() throws Exception {
+    long[] values = {0, 1, -1, 9, 10, 99, 1234567890123L, -987654321, Long.MAX_VALUE, Long.MIN_VALUE};
+    for (long value : values) {
+      assertWritten(Long.toString(value), value);
+    }
+  }
+
+  @Test
+  public void testWriteNumber() throws Exception {
+    assertWritten("42", 42);
+    assertWritten("42", (short) 42);
+    assertWritten("42.0", 42.0d);
+    assertWritten("-3.0", -3.0d);
+    assertWritten("0.5", 0.5d);
+    assertWritten("-0.0", -0.0d);
+    assertWritten("12345678.0", 12345678.0d);
+    assertWritten("1.0E20", 1e20d);
+    assertWritten("NaN", Double.NaN);
+    assertWritten("1.5", 1.5f);
+    assertWritten("1.25", new BigDecimal("1.25"));
+  }
+
+  @Test
+  public void testWriteLargerThanBuffer() throws Exception {
+    byte[] bytes = new byte[100];
+    new Random(7).nextBytes(bytes);
+    writer.writeByte('x').writeBytes(bytes).flush();
+    assertEquals(101, out.size());
+    assertEquals('x', out.toByteArray()[0]);
+  }
+
+  private void assertWritten(String expected, Number value) throws IOException {
+    out.reset();
+    writer.reset(out).writeNumber(value).flush();
+    assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
@@ -18,13 +18,27 @@ package ai.apptuit.metrics.client;
 
 import static org.awaitility.Awaitility.await;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -92,6 +106,155 @@ public class XCollectorForwarderTest {
     testForward(250, Sanitizer.NO_OP_SANITIZER);
   }
 
+  @Test
+  public void testForwardProducer() throws Exception {
+    ArrayList<DataPoint> dataPoints = createDataPoints(250);
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    forwarder.forward(dataPoints.stream(), Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 250);
+    DataPoint[] receivedDPs = mockServer.getReceivedDPs();
+    for (int i = 0; i < 250; i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags, Sanitizer.NO_OP_SANITIZER), receivedDPs[i]);
+    }
+  }
+
+  @Test
+  public void testForwardBatch() throws Exception {
+    ArrayList<DataPoint> dataPoints = createDataPoints(250);
+    DataPointBatch batch = new DataPointBatch();
+    DataPointBatch.Series series = new DataPointBatch.Series(tagEncodedMetricName.getMetricName(),
+            tagEncodedMetricName.getTags());
+    for (DataPoint dataPoint : dataPoints) {
+      batch.add(series, dataPoint.getTimestamp(), dataPoint.getValue().longValue());
+    }
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    forwarder.forward(batch, Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 250);
+    DataPoint[] receivedDPs = mockServer.getReceivedDPs();
+    for (int i = 0; i < 250; i++) {
+      assertEquals(getExpectedDataPoint(dataPoints.get(i), globalTags, Sanitizer.NO_OP_SANITIZER), receivedDPs[i]);
+    }
+  }
+
+  @Test
+  public void testSendListener() throws Exception {
+    List<Integer> packetSizes = new ArrayList<>();
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    forwarder.setSendListener(new SendListener() {
+      @Override
+      public void onRequest(RequestStats stats) {
+        fail("No put requests expected");
+      }
+
+      @Override
+      public void onPacket(int bytes, long sendNanos, boolean success) {
+        assertTrue(success);
+        assertTrue(sendNanos >= 0);
+        packetSizes.add(bytes);
+      }
+    });
+    forwarder.forward(createDataPoints(250), Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 250);
+    assertTrue(packetSizes.size() > 1);
+    for (int size : packetSizes) {
+      assertTrue(size > 0 && size <= 16 * 1024);
+    }
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    forwarder.forward(createDataPoints(250), Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 250);
+    assertTrue(forwarder.getPacketsSent() > 1);
+    assertTrue(forwarder.getBytesSent() > forwarder.getPacketsSent() * 4 * 1024);
+    assertEquals(0, forwarder.getSendErrors());
+    assertEquals(0, forwarder.getDroppedLines());
+  }
+
+  @Test
+  public void testLineLongerThanPacketDropped() throws Exception {
+    StringBuilder longValue = new StringBuilder();
+    for (int i = 0; i < 10 * 1024; i++) {
+      longValue.append('x');
+    }
+    List<DataPoint> dataPoints = new ArrayList<>(createDataPoints(20));
+    dataPoints.add(10, new DataPoint(tagEncodedMetricName.getMetricName(), 1500000000L, 1L,
+            tagEncodedMetricName.withTags("long", longValue.toString()).getTags()));
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    forwarder.forward(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 20);
+    assertEquals(1, forwarder.getDroppedLines());
+    DataPoint[] receivedDPs = mockServer.getReceivedDPs();
+    assertEquals(getExpectedDataPoint(dataPoints.get(11), globalTags, Sanitizer.NO_OP_SANITIZER), receivedDPs[10]);
+  }
+
+  @Test
+  public void testConcurrentForward() throws Exception {
+    XCollectorForwarder forwarder = new XCollectorForwarder(globalTags,
+            new InetSocketAddress("127.0.0.1", UDP_PORT));
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> forwarder.forward(createDataPoints(100), Sanitizer.NO_OP_SANITIZER));
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    await().atMost(5, TimeUnit.SECONDS).until(() -> mockServer.countReceivedDPs() == 400);
+    assertEquals(0, forwarder.getDroppedLines());
+  }
+
+  @Test
+  public void testForwardUnixSocket() throws Exception {
+    assumeTrue(UnixDomainSockets.isSupported());
+    Path dir = Files.createTempDirectory("xcollector");
+    Path path = dir.resolve("xcollector.sock");
+    List<String> lines = Collections.synchronizedList(new ArrayList<>());
+    ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+            .getMethod("open", ProtocolFamily.class).invoke(null, UnixDomainSockets.family());
+    try {
+      server.bind(UnixDomainSockets.address(path));
+      Thread reader = new Thread(() -> {
+        try (SocketChannel connection = server.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection),
+                     StandardCharsets.UTF_8))) {
+          in.lines().forEach(lines::add);
+        } catch (IOException e) {
+          //Closed
+        }
+      });
+      reader.setDaemon(true);
+      reader.start();
+
+      ArrayList<DataPoint> dataPoints = createDataPoints(1000);
+      XCollectorForwarder forwarder = new XCollectorForwarder(globalTags, path);
+      forwarder.forward(dataPoints, Sanitizer.NO_OP_SANITIZER);
+
+      await().atMost(5, TimeUnit.SECONDS).until(() -> lines.size() == 1000);
+      assertTrue(forwarder.getPacketsSent() > 1);
+      assertEquals(0, forwarder.getSendErrors());
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      dataPoints.get(999).toTextLine(expected, globalTags, Sanitizer.NO_OP_SANITIZER);
+      assertEquals(expected.toString("UTF-8").trim(), lines.get(999));
+    } finally {
+      server.close();
+      Files.deleteIfExists(path);
+      Files.delete(dir);
+    }
+  }
+
   private void testForward(int numDataPoints, Sanitizer sanitizer) throws SocketException {
     ArrayList<DataPoint> dataPoints = createDataPoints(numDataPoints);
 